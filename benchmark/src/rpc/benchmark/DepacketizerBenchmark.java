@@ -0,0 +1,97 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import rpc.packet.DefaultDepacketizer;
+import rpc.packet.DefaultPacketizer;
+import rpc.packet.DepacketizerListener;
+import rpc.packet.Packet;
+
+/**
+ * Throughput of {@link DefaultDepacketizer#unpack(byte[], int, int)}, with the packets fed in one piece, split into
+ * small segments as they arrive from the network, and after a corrupted packet that the depacketizer has to recover
+ * from.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DepacketizerBenchmark {
+
+    @Param({Payloads.SCALARS, Payloads.STRINGS, Payloads.BINARY, Payloads.NESTED})
+    public String payloadName;
+    /**
+     * The size of the segments in the split feed.
+     */
+    @Param({"1460"})
+    public int segmentLength;
+    protected byte[] packet;
+    /**
+     * A packet with a corrupted content byte followed by the valid packet.
+     */
+    protected byte[] corruptedStream;
+    protected DefaultDepacketizer depacketizer;
+    protected int packetReceived;
+
+    @Setup
+    public void setUp() throws Exception {
+        packet = new DefaultPacketizer().pack(false, 1, 1, Payloads.create(payloadName));
+
+        corruptedStream = new byte[packet.length * 2];
+        System.arraycopy(packet, 0, corruptedStream, 0, packet.length);
+        System.arraycopy(packet, 0, corruptedStream, packet.length, packet.length);
+        corruptedStream[packet.length - 5] ^= 1;
+
+        depacketizer = new DefaultDepacketizer();
+        depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                packetReceived++;
+            }
+        });
+    }
+
+    @Benchmark
+    public int unpack() {
+        depacketizer.unpack(packet, 0, packet.length);
+        return packetReceived;
+    }
+
+    @Benchmark
+    public int unpackSplit() {
+        for (int i = 0; i < packet.length; i += segmentLength) {
+            depacketizer.unpack(packet, i, Math.min(segmentLength, packet.length - i));
+        }
+        return packetReceived;
+    }
+
+    @Benchmark
+    public int unpackCorrupted() {
+        depacketizer.unpack(corruptedStream, 0, corruptedStream.length);
+        return packetReceived;
+    }
+}
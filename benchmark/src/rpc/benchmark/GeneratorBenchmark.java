@@ -0,0 +1,106 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import rpc.codec.CodecFactory;
+import rpc.codec.Generator;
+import rpc.packet.DefaultPacketizer;
+
+/**
+ * The exact-size generation used by {@link DefaultPacketizer#pack(boolean, int, int, Object)} (measure, then generate
+ * into the packet buffer) against generating into a {@link ByteArrayOutputStream} and copying the result into the
+ * packet as the packetizer did before. Both frame the packet the same way and compute its CRC32, they differ only in
+ * how the content gets into the packet.
+ * Run with the allocation profiler to see the copies: ant benchmark -Dbenchmark.args="GeneratorBenchmark -prof gc".
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeneratorBenchmark {
+
+    protected static final int contentOffset = 9;
+    @Param({"100", "1000", "10000", "100000", "1000000", "10000000"})
+    public int payloadSize;
+    protected List<Object> payload;
+    protected Generator generator;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.records(payloadSize);
+        generator = CodecFactory.getGenerator();
+    }
+
+    @Benchmark
+    public byte[] exact() throws Exception {
+        int contentLength = generator.measure(payload);
+        byte[] packet = frame(contentLength);
+        generator.generate(payload, packet, contentOffset);
+        return writeCRC32(packet);
+    }
+
+    @Benchmark
+    public byte[] stream() throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        generator.write(byteStream, payload);
+        byte[] content = byteStream.toByteArray();
+        byte[] packet = frame(content.length);
+        System.arraycopy(content, 0, packet, contentOffset, content.length);
+        return writeCRC32(packet);
+    }
+
+    /**
+     * The packet buffer with the header, the 4-byte packet length and the 3-byte info written, the content starts at
+     * {@link #contentOffset} and the CRC32 takes the last 4 bytes.
+     */
+    protected static byte[] frame(int contentLength) {
+        byte[] packet = new byte[contentOffset + contentLength + 4];
+        packet[0] = 1;
+        packet[1] = 7;
+        packet[2] = (byte) (128 | (contentLength >> 24));
+        packet[3] = (byte) (contentLength >> 16);
+        packet[4] = (byte) (contentLength >> 8);
+        packet[5] = (byte) contentLength;
+        packet[6] = 1;
+        packet[7] = 0;
+        packet[8] = 1;
+        return packet;
+    }
+
+    protected static byte[] writeCRC32(byte[] packet) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(packet, 6, packet.length - 10);
+        long crc = crc32.getValue();
+        packet[packet.length - 4] = (byte) (crc >> 24);
+        packet[packet.length - 3] = (byte) (crc >> 16);
+        packet[packet.length - 2] = (byte) (crc >> 8);
+        packet[packet.length - 1] = (byte) crc;
+        return packet;
+    }
+}
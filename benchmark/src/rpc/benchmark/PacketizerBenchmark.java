@@ -0,0 +1,60 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import rpc.packet.DefaultPacketizer;
+
+/**
+ * Throughput of {@link DefaultPacketizer#pack(boolean, int, int, Object)}.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketizerBenchmark {
+
+    @Param({Payloads.SCALARS, Payloads.STRINGS, Payloads.BINARY, Payloads.NESTED})
+    public String payloadName;
+    protected List<Object> payload;
+    protected DefaultPacketizer packetizer;
+    protected int requestId;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.create(payloadName);
+        packetizer = new DefaultPacketizer();
+        requestId = 1;
+    }
+
+    @Benchmark
+    public byte[] pack() throws Exception {
+        if (++requestId > 1073741823) {
+            requestId = 1;
+        }
+        return packetizer.pack(false, 1, requestId, payload);
+    }
+}
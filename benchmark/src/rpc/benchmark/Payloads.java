@@ -0,0 +1,121 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The payload mixes of the benchmarks, all are generated from a fixed seed.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class Payloads {
+
+    /**
+     * A few scalar arguments, like most of the method invocations.
+     */
+    public static final String SCALARS = "scalars";
+    /**
+     * Maps with string keys and values.
+     */
+    public static final String STRINGS = "strings";
+    /**
+     * A large byte array.
+     */
+    public static final String BINARY = "binary";
+    /**
+     * Lists nested 32 levels deep.
+     */
+    public static final String NESTED = "nested";
+
+    protected Payloads() {
+    }
+
+    public static List<Object> create(String name) {
+        Random random = new Random(0);
+        if (name.equals(SCALARS)) {
+            return Arrays.asList(new Object[]{1, 100000L, 2.5D, true, null, (short) 7, new Date(0L)});
+        } else if (name.equals(STRINGS)) {
+            List<Object> payload = new ArrayList<Object>();
+            for (int i = 0; i < 20; i++) {
+                Map<Object, Object> record = new HashMap<Object, Object>();
+                record.put("id", "user-" + i);
+                record.put("name", randomString(random, 16));
+                record.put("email", randomString(random, 24) + "@example.com");
+                record.put("description", randomString(random, 200));
+                payload.add(record);
+            }
+            return payload;
+        } else if (name.equals(BINARY)) {
+            byte[] data = new byte[1048576];
+            random.nextBytes(data);
+            return Arrays.asList(new Object[]{"file", data});
+        } else if (name.equals(NESTED)) {
+            List<Object> payload = new ArrayList<Object>();
+            List<Object> list = payload;
+            for (int i = 0; i < 32; i++) {
+                List<Object> child = new ArrayList<Object>();
+                list.add(i);
+                list.add("level " + i);
+                list.add(child);
+                list = child;
+            }
+            return payload;
+        }
+        throw new IllegalArgumentException(String.format("unknown payload: %1$s", name));
+    }
+
+    /**
+     * A list of records with scalars, a string and a binary field, roughly {@code size} bytes when encoded.
+     */
+    public static List<Object> records(int size) {
+        Random random = new Random(0);
+        List<Object> payload = new ArrayList<Object>();
+        int recordSize = Math.min(size, 65536);
+        int remaining = size;
+        int id = 0;
+        while (remaining > 0) {
+            int dataSize = Math.max(0, Math.min(remaining, recordSize) - 60);
+            int nameLength = Math.min(dataSize / 4, 32);
+            byte[] data = new byte[dataSize - nameLength];
+            random.nextBytes(data);
+            Map<Object, Object> record = new HashMap<Object, Object>();
+            record.put("id", id++);
+            record.put("time", 0L);
+            record.put("name", randomString(random, nameLength));
+            record.put("value", (double) id);
+            record.put("data", data);
+            payload.add(record);
+            remaining -= Math.max(recordSize, 60);
+        }
+        payload.add(Arrays.asList(new Object[]{true, null}));
+        return payload;
+    }
+
+    protected static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import rpc.RPC;
+import rpc.RPCIdAllocator;
+
+/**
+ * Request id allocation of {@link RPC#send(int, Object[], boolean, boolean, boolean)} from multiple callers of a
+ * connection, the lock-free {@link RPCIdAllocator#nextId()} against the previous allocation that probed the request map
+ * while holding the monitor of the id set.
+ * Run with different thread counts to see the scaling: ant benchmark -Dbenchmark.args="RequestIdBenchmark -t 1 -t 4"
+ * (or -t max).
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestIdBenchmark {
+
+    protected RPCIdAllocator casAllocator;
+    protected LockIdSet lockIdSet;
+    protected Map<Integer, Object> requestList;
+
+    @Setup
+    public void setUp() {
+        casAllocator = new RPCIdAllocator();
+        lockIdSet = new LockIdSet();
+        requestList = Collections.synchronizedMap(new HashMap<Integer, Object>());
+    }
+
+    @Benchmark
+    public int cas() {
+        return casAllocator.nextId();
+    }
+
+    @Benchmark
+    public int synchronizedProbe() {
+        int requestId = 0;
+        synchronized (lockIdSet) {
+            while (requestId == 0 || requestList.get(requestId) != null) {
+                requestId = lockIdSet.id++;
+                if (lockIdSet.id > 1073741823) {
+                    lockIdSet.id = 1;
+                }
+            }
+        }
+        return requestId;
+    }
+
+    /**
+     * The id set of the previous allocation.
+     */
+    protected static class LockIdSet {
+
+        protected int id = 1;
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import rpc.SequentialSender;
+
+/**
+ * Multiple producers acquiring sequence ids and sending their tasks, the ring buffer {@link SequentialSender} against
+ * the previous one that kept the tasks sent out of order in a {@link HashMap} and ran them while holding its monitor.
+ * Run with different thread counts to see the scaling: ant benchmark -Dbenchmark.args="SequentialSenderBenchmark -t 1
+ * -t 4" (or -t max).
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SequentialSenderBenchmark {
+
+    protected SequentialSender ringSender;
+    protected LockSequentialSender lockSender;
+    protected Runnable task;
+
+    @Setup
+    public void setUp() {
+        ringSender = new SequentialSender();
+        lockSender = new LockSequentialSender();
+        task = new Runnable() {
+
+            protected long count;
+
+            @Override
+            public void run() {
+                count++;
+            }
+        };
+    }
+
+    @Benchmark
+    public long ring() throws InterruptedException {
+        long sequenceId = ringSender.acquireSequenceId();
+        ringSender.send(sequenceId, task);
+        return sequenceId;
+    }
+
+    @Benchmark
+    public long lock() {
+        long sequenceId = lockSender.acquireSequenceId();
+        lockSender.send(sequenceId, task);
+        return sequenceId;
+    }
+
+    /**
+     * The implementation before the ring buffer.
+     */
+    protected static class LockSequentialSender {
+
+        protected AtomicLong sequenceIdCounter;
+        protected long currentSequenceId;
+        protected final Map<Long, Runnable> taskList;
+
+        protected LockSequentialSender() {
+            sequenceIdCounter = new AtomicLong(0L);
+            currentSequenceId = 0;
+            taskList = new HashMap<Long, Runnable>();
+        }
+
+        protected long acquireSequenceId() {
+            return sequenceIdCounter.getAndIncrement();
+        }
+
+        protected synchronized void send(long sequenceId, Runnable task) {
+            if (sequenceId == currentSequenceId) {
+                task.run();
+                currentSequenceId++;
+
+                Runnable _task = null;
+                while ((_task = taskList.remove(currentSequenceId)) != null) {
+                    _task.run();
+                    currentSequenceId++;
+                }
+            } else if (sequenceId > currentSequenceId && sequenceId < sequenceIdCounter.get()) {
+                taskList.put(sequenceId, task);
+            }
+        }
+    }
+}
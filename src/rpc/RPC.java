@@ -18,13 +18,23 @@ package rpc;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javassist.CannotCompileException;
@@ -32,14 +42,23 @@ import javassist.NotFoundException;
 import rpc.RPCRegistry.RPCRegistryMethod;
 import rpc.annotation.RequestTypeId;
 import rpc.annotation.Sequential;
+import rpc.codec.CodecFactory;
+import rpc.codec.CodecProvider;
+import rpc.codec.DecoderPlan;
+import rpc.codec.DefaultCodecProvider;
 import rpc.codec.exception.UnsupportedDataTypeException;
 import rpc.exception.InvocationFailedException;
+import rpc.packet.AcknowledgementSource;
+import rpc.packet.DecoderPlanResolver;
 import rpc.packet.DefaultDepacketizer;
 import rpc.packet.DefaultPacketizer;
 import rpc.packet.Depacketizer;
 import rpc.packet.DepacketizerListener;
 import rpc.packet.Packet;
 import rpc.packet.Packetizer;
+import rpc.packet.compress.CompressionStats;
+import rpc.packet.compress.Compressor;
+import rpc.packet.compress.CompressorFactory;
 import rpc.transport.RemoteInput;
 import rpc.transport.RemoteOutput;
 import rpc.util.ClassMaker;
@@ -50,6 +69,12 @@ import rpc.util.ClassMaker;
 public class RPC<T> implements RemoteInput, Closeable {
 
     private static final Logger LOG = Logger.getLogger(RPC.class.getName());
+    /**
+     * The request type id and the sequential id of the stream chunks and the result items with the messages ending
+     * them, they are sent in order apart from the control messages (sequential id 0) so those do not wait behind them.
+     * The methods cannot use it.
+     */
+    protected static final int BULK_SEQUENTIAL_ID = 16383;
     //
     protected final RPCRegistry rpcRegistry;
     //
@@ -60,13 +85,30 @@ public class RPC<T> implements RemoteInput, Closeable {
     //
     protected final RPCIdSet requestIdSet;
     protected final RPCIdSet respondIdSet;
+    /**
+     * The request id sets, their largest responded ids are sent to the remote connection.
+     */
+    protected final RPCIdSet[] acknowledgedIdSets;
     protected final Map<Integer, RPCRequest> requestList;
     protected final Map<Integer, RPCRequest> respondList;
+    protected final RPCRequestPool requestPool;
+    protected final ThreadLocal<RPCBatch> batch;
+    protected final RPCRoundTripTimer roundTripTimer;
+    protected volatile int callTimeout;
     //
     protected final RPCIdSet[] _sequentialRequestIdSet;
     protected final RPCIdSet[] _sequentialRespondIdSet;
     protected final Map<Integer, RPCRequest>[] _sequentialRequestList;
     protected final Map<Integer, RPCRequest>[] _sequentialRespondList;
+    protected final RPCIdSet bulkRequestIdSet;
+    protected final RPCIdSet bulkRespondIdSet;
+    protected final Map<Integer, RPCRequest> bulkRequestList;
+    protected final Map<Integer, RPCRequest> bulkRespondList;
+    /**
+     * Invoke the requests of each sequential id, by sequential id, the control messages (sequential id 0) are invoked
+     * by the thread feeding the packets.
+     */
+    protected final RPCSequentialExecutor[] sequentialExecutors;
     //
     protected final RPCIdSet[] sequentialRequestIdSet;
     protected final RPCIdSet[] sequentialRespondIdSet;
@@ -74,10 +116,28 @@ public class RPC<T> implements RemoteInput, Closeable {
     protected final Map<Integer, RPCRequest>[] sequentialRespondList;
     //
     protected final RPCRegistryMethod[] localMethodMap;
+    protected final RPCRegistryMethod[] remoteMethodMap;
     protected final Map<Class<?>, Object> remoteImplementations;
     //
+    protected final AtomicInteger streamId;
+    protected final ConcurrentMap<Integer, RPCInputStream> incomingStreams;
+    protected final ConcurrentMap<Integer, RPCStreamSender> outgoingStreams;
+    protected final ConcurrentMap<Integer, RPCResultIterator<?>> incomingResults;
+    protected final ConcurrentMap<Integer, RPCResultSender> outgoingResults;
+    //
+    protected final ConcurrentMap<RPCCallKey, RPCCoalescedCall> coalescedCalls;
+    protected final AtomicInteger coalescedCallCount;
+    /**
+     * The caches of the {@link rpc.annotation.Cached} remote methods, by request type id.
+     */
+    protected final RPCResponseCache[] responseCaches;
+    //
     protected long lastPacketReceiveTime;
     protected long lastHeartBeatSendTime;
+    /**
+     * Select the {@link RPCRegistry.RPCRegistryWorker} that maintains this connection.
+     */
+    protected int workerShard;
     //
     protected final List<RPCListener> listeners;
     protected RemoteOutput out;
@@ -85,6 +145,22 @@ public class RPC<T> implements RemoteInput, Closeable {
     //
     protected final Packetizer packetizer;
     protected final Depacketizer depacketizer;
+    /**
+     * Parse the packets put together from {@link RPCControl#FRAGMENT}.
+     */
+    protected final Depacketizer fragmentDepacketizer;
+    /**
+     * The packets being put together, by fragment id, the oldest ones and those with no fragment received for the retry
+     * timeout are dropped, they are incomplete because some fragments lost and the packet is resent with a new
+     * fragment id.
+     */
+    protected final Map<Integer, RPCFragments> fragments;
+    protected final RPCOutputScheduler outputScheduler;
+    /**
+     * The codec selected, the packetizer switch to it after the remote side accepted it.
+     */
+    protected CodecProvider codecProvider;
+    protected final CompressionStats compressionStats;
 
     protected RPC(RPCRegistry rpcRegistry,
             List<RPCRegistryMethod> localMethodRegistry, List<RPCRegistryMethod> remoteMethodRegistry,
@@ -101,6 +177,9 @@ public class RPC<T> implements RemoteInput, Closeable {
         respondIdSet = new RPCIdSet(-1);
         requestList = Collections.synchronizedMap(new HashMap<Integer, RPCRequest>());
         respondList = Collections.synchronizedMap(new HashMap<Integer, RPCRequest>());
+        requestPool = new RPCRequestPool(1024);
+        batch = new ThreadLocal<RPCBatch>();
+        roundTripTimer = new RPCRoundTripTimer(rpcRegistry.initialRetryTimeout, rpcRegistry.minRetryTimeout, rpcRegistry.maxRetryTimeout);
 
         //<editor-fold defaultstate="collapsed" desc="local">
         int localMethodTypeIdMax = 0;
@@ -175,6 +254,8 @@ public class RPC<T> implements RemoteInput, Closeable {
             }
         }
 
+        remoteMethodMap = new RPCRegistryMethod[remoteMethodTypeIdMax + 1];
+
         _sequentialRequestIdSet = new RPCIdSet[remoteSequentialIdMax + 1];
         _sequentialRequestList = new Map[remoteSequentialIdMax + 1];
 
@@ -184,6 +265,10 @@ public class RPC<T> implements RemoteInput, Closeable {
         for (RPCRegistryMethod method : remoteMethodRegistry) {
             RequestTypeId requestTypeId = method.method.getAnnotation(RequestTypeId.class);
 
+            if (remoteMethodMap[requestTypeId.value()] == null) {
+                remoteMethodMap[requestTypeId.value()] = method;
+            }
+
             Sequential sequentialAnnotation = method.method.getAnnotation(Sequential.class);
             if (sequentialAnnotation != null) {
                 if (_sequentialRequestIdSet[sequentialAnnotation.value()] == null) {
@@ -223,8 +308,46 @@ public class RPC<T> implements RemoteInput, Closeable {
         sequentialRespondList[0] = _sequentialRespondList[0];
 
         localMethodMap[0] = new RPCRegistryMethod(null, null, false, false, false);
+
+        bulkRequestIdSet = new RPCIdSet(BULK_SEQUENTIAL_ID);
+        bulkRespondIdSet = new RPCIdSet(BULK_SEQUENTIAL_ID);
+        bulkRequestList = Collections.synchronizedMap(new HashMap<Integer, RPCRequest>());
+        bulkRespondList = Collections.synchronizedMap(new HashMap<Integer, RPCRequest>());
         //</editor-fold>
 
+        sequentialExecutors = new RPCSequentialExecutor[_sequentialRespondIdSet.length];
+        for (int i = 1; i < _sequentialRespondIdSet.length; i++) {
+            if (_sequentialRespondIdSet[i] != null) {
+                sequentialExecutors[i] = new RPCSequentialExecutor(this, _sequentialRespondIdSet[i], _sequentialRespondList[i]);
+            }
+        }
+
+        List<RPCIdSet> acknowledgedIdSetList = new ArrayList<RPCIdSet>();
+        acknowledgedIdSetList.add(requestIdSet);
+        acknowledgedIdSetList.add(bulkRequestIdSet);
+        for (RPCIdSet _idSet : _sequentialRequestIdSet) {
+            if (_idSet != null) {
+                acknowledgedIdSetList.add(_idSet);
+            }
+        }
+        acknowledgedIdSets = acknowledgedIdSetList.toArray(new RPCIdSet[acknowledgedIdSetList.size()]);
+
+        // stream id allocated by this side are positive, those allocated by the remote side are stored negated
+        streamId = new AtomicInteger(0);
+        incomingStreams = new ConcurrentHashMap<Integer, RPCInputStream>();
+        outgoingStreams = new ConcurrentHashMap<Integer, RPCStreamSender>();
+        incomingResults = new ConcurrentHashMap<Integer, RPCResultIterator<?>>();
+        outgoingResults = new ConcurrentHashMap<Integer, RPCResultSender>();
+
+        coalescedCalls = new ConcurrentHashMap<RPCCallKey, RPCCoalescedCall>();
+        coalescedCallCount = new AtomicInteger(0);
+        responseCaches = new RPCResponseCache[remoteMethodMap.length];
+        for (int i = 0; i < remoteMethodMap.length; i++) {
+            if (remoteMethodMap[i] != null && remoteMethodMap[i].cached != null) {
+                responseCaches[i] = new RPCResponseCache(remoteMethodMap[i].cached.timeToLive(), remoteMethodMap[i].cached.maxSize());
+            }
+        }
+
         lastPacketReceiveTime = System.currentTimeMillis();
         lastHeartBeatSendTime = lastPacketReceiveTime;
 
@@ -232,13 +355,93 @@ public class RPC<T> implements RemoteInput, Closeable {
         out = null;
         userObject = null;
 
+        codecProvider = rpcRegistry.codecProvider;
         packetizer = new DefaultPacketizer();
         depacketizer = new DefaultDepacketizer();
+        fragmentDepacketizer = new DefaultDepacketizer();
+        fragments = new LinkedHashMap<Integer, RPCFragments>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, RPCFragments> eldest) {
+                return size() > 16;
+            }
+        };
+        outputScheduler = new RPCOutputScheduler(this, rpcRegistry.fragmentSize);
+        compressionStats = new CompressionStats();
+        packetizer.setCompressor(rpcRegistry.compressor);
+        packetizer.setCompressionThreshold(rpcRegistry.compressionThreshold);
+        packetizer.setCompressionStats(compressionStats);
+        depacketizer.setCompressionStats(compressionStats);
+        fragmentDepacketizer.setCompressionStats(compressionStats);
+        depacketizer.setMaxPacketSize(rpcRegistry.maxPacketSize);
+        fragmentDepacketizer.setMaxPacketSize(rpcRegistry.maxPacketSize);
+        depacketizer.setCodecProvider(codecProvider);
+        fragmentDepacketizer.setCodecProvider(codecProvider);
+        packetizer.setAcknowledgementSource(new AcknowledgementSource() {
+
+            @Override
+            public int[] pollAcknowledgements(byte[] packetData) {
+                return RPC.this.pollAcknowledgements(packetData);
+            }
+        });
+        DecoderPlanResolver decoderPlanResolver = new DecoderPlanResolver() {
+
+            @Override
+            public DecoderPlan getDecoderPlan(boolean isRespond, int requestTypeId) {
+                RPCRegistryMethod[] methodMap = isRespond ? remoteMethodMap : localMethodMap;
+                if (requestTypeId >= methodMap.length || methodMap[requestTypeId] == null) {
+                    return null;
+                }
+                return isRespond ? methodMap[requestTypeId].returnPlan : methodMap[requestTypeId].parameterPlan;
+            }
+        };
+        depacketizer.setDecoderPlanResolver(decoderPlanResolver);
+        fragmentDepacketizer.setDecoderPlanResolver(decoderPlanResolver);
         //<editor-fold defaultstate="collapsed" desc="add depacketizer listener">
-        depacketizer.addListener(new DepacketizerListener() {
+        DepacketizerListener depacketizerListener = new DepacketizerListener() {
 
             @Override
             public void packetReceived(Packet packet) {
+                int[] acknowledgements = packet.getAcknowledgements();
+                if (acknowledgements != null) {
+                    for (int i = 0; i + 1 < acknowledgements.length; i += 2) {
+                        RPCError error = acknowledge(acknowledgements[i], acknowledgements[i + 1]);
+                        if (error != null) {
+                            LOG.log(Level.SEVERE, "acknowledgement failed, sequential id: {0}, responded id: {1}, error: {2}", new Object[]{acknowledgements[i], acknowledgements[i + 1], error});
+                        }
+                    }
+                }
+
+                if (packet.getBatchSize() == 0 && !packet.isRespond() && packet.getRequestTypeId() == 0
+                        && (fragmentReceived(packet.getContent()) || selectiveAcknowledgementReceived(packet.getContent()))) {
+                    lastPacketReceiveTime = System.currentTimeMillis();
+                    return;
+                }
+
+                // the responds to a batch are sent back in one batch
+                if (packet.getBatchSize() == 0) {
+                    received(packet);
+                    return;
+                }
+                if (packet.getBatchIndex() == 0) {
+                    beginBatch();
+                }
+                try {
+                    received(packet);
+                } finally {
+                    if (packet.getBatchIndex() == packet.getBatchSize() - 1) {
+                        try {
+                            endBatch();
+                        } catch (IOException ex) {
+                            LOG.log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }
+            }
+
+            protected void received(Packet packet) {
                 lastPacketReceiveTime = System.currentTimeMillis();
 
                 boolean isRespond = packet.isRespond();
@@ -253,22 +456,23 @@ public class RPC<T> implements RemoteInput, Closeable {
                 List<Object> contentList = ((List<Object>) content);
 
                 if (isRespond) {
-                    if (requestTypeId >= sequentialRequestIdSet.length) {
-                        return;
-                    }
-
-                    RPCIdSet _idSet = sequentialRequestIdSet[requestTypeId];
-                    Map<Integer, RPCRequest> _requestList = sequentialRequestList[requestTypeId];
-                    if (_requestList == null) {
-                        _idSet = requestIdSet;
-                        _requestList = requestList;
-                    }
-
-                    RPCRequest request = _requestList.get(requestId);
-                    if (request == null) {
+                    RPCIdSet _idSet;
+                    Map<Integer, RPCRequest> _requestList;
+                    if (requestTypeId == BULK_SEQUENTIAL_ID) {
+                        _idSet = bulkRequestIdSet;
+                        _requestList = bulkRequestList;
+                    } else if (requestTypeId >= sequentialRequestIdSet.length) {
                         return;
+                    } else {
+                        _idSet = sequentialRequestIdSet[requestTypeId];
+                        _requestList = sequentialRequestList[requestTypeId];
+                        if (_requestList == null) {
+                            _idSet = requestIdSet;
+                            _requestList = requestList;
+                        }
                     }
 
+                    int failed = 0;
                     if (contentList.size() != 1) {
                         if (contentList.size() == 2
                                 && contentList.get(0) == null && contentList.get(1) instanceof Short) {
@@ -293,44 +497,45 @@ public class RPC<T> implements RemoteInput, Closeable {
                                 case RESPOND_ID_UPDATE_FAILED:
                                     LOG.log(Level.SEVERE, null, new Exception("respond id update failed"));
                                     break;
+                                case REQUEST_CANCELLED:
+                                    LOG.log(Level.INFO, "request cancelled");
+                                    break;
                             }
-                            request.requestFailed = true;
+                            failed = RPCRequest.FAILED;
                         } else {
                             LOG.log(Level.SEVERE, null, new Exception("size of the respond list is incorrect"));
                             return;
                         }
                     }
-                    request.respond = contentList.get(0);
-                    request.responded = true;
-                    synchronized (request) {
-                        request.notified = true;
-                        request.notifyAll();
-                    }
 
+                    // the request is removed from the list, and then recycled, under the lock only, so the record is
+                    // still the one of this request id when it is marked responded
                     synchronized (_idSet) {
-                        if (requestId == _idSet.respondedId) {
-                            _requestList.remove(requestId);
-                            _idSet.respondedId++;
-                            if (_idSet.respondedId > 1073741823) {
-                                _idSet.respondedId = 1;
-                            }
-
-                            RPCRequest _request = null;
-                            while ((_request = _requestList.get(_idSet.respondedId)) != null) {
-                                if (!_request.responded) {
-                                    break;
-                                }
-                                _requestList.remove(_idSet.respondedId);
-                                _idSet.respondedId++;
-                                if (_idSet.respondedId > 1073741823) {
-                                    _idSet.respondedId = 1;
-                                }
-                            }
+                        RPCRequest request = _requestList.get(requestId);
+                        if (request == null) {
+                            return;
+                        }
+                        boolean resent = request.is(RPCRequest.RESENT);
+                        int sendTime = request.time;
+                        Object packetData = request.data;
+                        if (!request.setIfNotResponded(failed)) {
+                            // expired or cancelled
+                            return;
+                        }
+                        if (!resent) {
+                            roundTripTimer.sample((int) System.currentTimeMillis() - sendTime);
+                            acknowledgementsReceived(packetData);
                         }
+                        request.data = contentList.get(0);
+                        request.notifyWaiter();
                     }
+
+                    removeResponded(_idSet, _requestList);
                 } else {
                     RPCRegistryMethod method = null;
-                    if (requestTypeId >= sequentialRespondIdSet.length || (method = localMethodMap[requestTypeId]) == null) {
+                    if (requestTypeId == BULK_SEQUENTIAL_ID) {
+                        method = localMethodMap[0];
+                    } else if (requestTypeId >= sequentialRespondIdSet.length || (method = localMethodMap[requestTypeId]) == null) {
                         LOG.log(Level.SEVERE, "method with requestTypeId {0} not found", new Object[]{requestTypeId});
                         try {
                             respond(requestId, requestTypeId, new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_NOT_REGISTERED.getValue()});
@@ -340,58 +545,21 @@ public class RPC<T> implements RemoteInput, Closeable {
                         return;
                     }
 
-                    RPCIdSet _idSet = sequentialRespondIdSet[requestTypeId];
-                    Map<Integer, RPCRequest> _respondList = sequentialRespondList[requestTypeId];
+                    RPCIdSet _idSet = requestTypeId == BULK_SEQUENTIAL_ID ? bulkRespondIdSet : sequentialRespondIdSet[requestTypeId];
+                    Map<Integer, RPCRequest> _respondList = requestTypeId == BULK_SEQUENTIAL_ID ? bulkRespondList : sequentialRespondList[requestTypeId];
                     if (_respondList != null) {
                         synchronized (_idSet) {
                             if (_idSet.id == requestId) {
-                                _idSet.id++;
-                                if (_idSet.id > 1073741823) {
-                                    _idSet.id = 1;
-                                }
-
-                                Object[] respond = invoke(requestTypeId, contentList.toArray());
-
-                                RPCRequest rpcRequest = new RPCRequest(requestTypeId, requestId, System.currentTimeMillis(), null, respond);
-                                rpcRequest.responded = true;
-                                _respondList.put(requestId, rpcRequest);
-
-                                if (!method.noRespond) {
-                                    try {
-                                        respond(requestId, requestTypeId, respond);
-                                    } catch (Exception ex) {
-                                        LOG.log(Level.SEVERE, null, ex);
-                                    }
-                                }
-
-                                RPCRequest _rpcRequest;
-                                while ((_rpcRequest = _respondList.get(_idSet.id)) != null) {
-                                    _idSet.id++;
-                                    if (_idSet.id > 1073741823) {
-                                        _idSet.id = 1;
-                                    }
-
-                                    respond = invoke(requestTypeId, ((List<Object>) _rpcRequest.requestArgs).toArray());
-
-                                    _rpcRequest.respond = respond;
-                                    _rpcRequest.responded = true;
-
-                                    if (!method.noRespond) {
-                                        try {
-                                            respond(_rpcRequest.requestId, _rpcRequest.requestTypeId, respond);
-                                        } catch (Exception ex) {
-                                            LOG.log(Level.SEVERE, null, ex);
-                                        }
-                                    }
-                                }
+                                _respondList.put(requestId, requestPool.obtain(requestTypeId, requestId, RPCRequest.OWNED_BY_LIST, content));
+                                invokeSequential(_idSet, _respondList);
                             } else {
                                 RPCRequest rpcRequest = _respondList.get(requestId);
                                 if (rpcRequest == null) {
-                                    _respondList.put(requestId, new RPCRequest(requestTypeId, requestId, System.currentTimeMillis(), content, null));
+                                    _respondList.put(requestId, requestPool.obtain(requestTypeId, requestId, RPCRequest.OWNED_BY_LIST, content));
                                 } else {
-                                    if (rpcRequest.responded && !method.noRespond) {
+                                    if (rpcRequest.is(RPCRequest.RESPONDED) && !method.noRespond) {
                                         try {
-                                            respond(rpcRequest.requestId, rpcRequest.requestTypeId, (Object[]) rpcRequest.respond);
+                                            respond(rpcRequest.requestId, requestTypeId, (Object[]) rpcRequest.data);
                                         } catch (Exception ex) {
                                             LOG.log(Level.SEVERE, null, ex);
                                         }
@@ -401,21 +569,34 @@ public class RPC<T> implements RemoteInput, Closeable {
                         }
                     } else {
                         Object respond = null;
+                        RPCRequest invoking = null;
 
                         _idSet = respondIdSet;
                         _respondList = respondList;
                         synchronized (_idSet) {
                             RPCRequest rpcRequest = _respondList.get(requestId);
-                            if (rpcRequest == null) {
-                                respond = invoke(requestTypeId, contentList.toArray());
-
-                                rpcRequest = new RPCRequest(requestTypeId, requestId, System.currentTimeMillis(), null, respond);
-                                rpcRequest.responded = true;
+                            if (rpcRequest == null && method.streamParameters.length != 0) {
+                                // the method would block on reading the streams, which are fed by this thread
+                                rpcRequest = requestPool.obtain(requestTypeId, requestId, RPCRequest.OWNED_BY_LIST | RPCRequest.OWNED_BY_CALLER, null);
                                 _respondList.put(requestId, rpcRequest);
+                                invokeLater(method, rpcRequest, contentList.toArray());
+                                return;
+                            } else if (rpcRequest == null) {
+                                // held while invoking, so it is selectively acknowledged and not invoked again
+                                invoking = requestPool.obtain(requestTypeId, requestId, RPCRequest.OWNED_BY_LIST | RPCRequest.OWNED_BY_CALLER, null);
+                                _respondList.put(requestId, invoking);
                             } else {
-                                respond = rpcRequest.respond;
+                                if (!rpcRequest.is(RPCRequest.RESPONDED)) {
+                                    // still invoking
+                                    return;
+                                }
+                                respond = rpcRequest.data;
                             }
                         }
+                        if (invoking != null && (respond = invokeHeld(invoking, contentList.toArray())) == null) {
+                            // cancelled
+                            return;
+                        }
 
                         if (!method.noRespond) {
                             try {
@@ -427,7 +608,9 @@ public class RPC<T> implements RemoteInput, Closeable {
                     }
                 }
             }
-        });
+        };
+        depacketizer.addListener(depacketizerListener);
+        fragmentDepacketizer.addListener(depacketizerListener);
         //</editor-fold>
     }
 
@@ -453,7 +636,7 @@ public class RPC<T> implements RemoteInput, Closeable {
             out.close();
         }
         if (userObject != null) {
-            rpcRegistry.remove(userObject);
+            rpcRegistry.remove(userObject, this);
         }
         rpcRegistry.remove(this);
         synchronized (listeners) {
@@ -473,19 +656,98 @@ public class RPC<T> implements RemoteInput, Closeable {
         for (Map<Integer, RPCRequest> _requestList : requestListList) {
             synchronized (_requestList) {
                 for (RPCRequest _request : _requestList.values()) {
-                    if (!_request.responded) {
-                        synchronized (_request) {
-                            _request.notified = true;
-                            _request.notifyAll();
-                        }
+                    if (!_request.is(RPCRequest.RESPONDED)) {
+                        _request.notifyWaiter();
                     }
                 }
             }
         }
+
+        for (RPCStreamSender sender : outgoingStreams.values()) {
+            sender.close();
+        }
+        outgoingStreams.clear();
+        for (RPCInputStream stream : incomingStreams.values()) {
+            stream.abort("Connection closed");
+        }
+        incomingStreams.clear();
+        for (RPCResultSender sender : outgoingResults.values()) {
+            sender.close();
+        }
+        outgoingResults.clear();
+        for (RPCResultIterator<?> iterator : incomingResults.values()) {
+            iterator.abort("Connection closed");
+        }
+        incomingResults.clear();
     }
 
     public void setRemoteOutput(RemoteOutput out) {
         this.out = out;
+        offerCodec();
+    }
+
+    public CodecProvider getCodecProvider() {
+        return codecProvider;
+    }
+
+    /**
+     * Select the codec to generate the packets sent by this connection. The codec is offered to the remote side and is
+     * used after the remote side accepted it, the default BON codec is used until then. The packets received in this
+     * codec are parsed by its parser, see {@link rpc.codec.DefaultCodecProvider} for the options of the BON codec.
+     */
+    public void setCodecProvider(CodecProvider codecProvider) {
+        this.codecProvider = codecProvider;
+        depacketizer.setCodecProvider(codecProvider);
+        fragmentDepacketizer.setCodecProvider(codecProvider);
+        offerCodec();
+    }
+
+    public Compressor getCompressor() {
+        return packetizer.getCompressor();
+    }
+
+    /**
+     * Set the compressor used to compress the packets sent by this connection, null to disable compression. The
+     * compressor has to be registered to the {@link CompressorFactory} of the remote side, the built-in ones are
+     * always registered.
+     */
+    public void setCompressor(Compressor compressor) {
+        packetizer.setCompressor(compressor);
+    }
+
+    public int getCompressionThreshold() {
+        return packetizer.getCompressionThreshold();
+    }
+
+    /**
+     * Only the packets with content not shorter than {@code compressionThreshold} bytes are compressed.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        packetizer.setCompressionThreshold(compressionThreshold);
+    }
+
+    /**
+     * Get the compression ratio and the time spent on compressing and decompressing the packets of this connection.
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    protected void offerCodec() {
+        CodecProvider _codecProvider = codecProvider;
+        if (out == null || _codecProvider == packetizer.getCodecProvider()) {
+            return;
+        }
+        if (_codecProvider.getId() == CodecFactory.DEFAULT_CODEC_ID && _codecProvider.getVersion() == DefaultCodecProvider.VERSION) {
+            // every connection can parse the default codec
+            packetizer.setCodecProvider(_codecProvider);
+            return;
+        }
+        try {
+            sendControl(RPCControl.CODEC_OFFER, _codecProvider.getId(), _codecProvider.getVersion());
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
     }
 
     public RemoteOutput getRemoteOutput() {
@@ -530,253 +792,1816 @@ public class RPC<T> implements RemoteInput, Closeable {
             return null;
         }
 
-        if (requestTypeId >= sequentialRequestIdSet.length) {
+        if (requestTypeId >= sequentialRequestIdSet.length && requestTypeId != BULK_SEQUENTIAL_ID) {
             return null;
         }
 
-        RPCIdSet _idSet = sequentialRequestIdSet[requestTypeId];
-        Map<Integer, RPCRequest> _requestList = sequentialRequestList[requestTypeId];
-        if (_requestList == null) {
-            _idSet = requestIdSet;
-            _requestList = requestList;
-        }
-
-        int requestId = 0;
-        synchronized (_idSet) {
-            while (requestId == 0 || _requestList.get(requestId) != null) {
-                requestId = _idSet.id++;
-                if (_idSet.id > 1073741823) {
-                    _idSet.id = 1;
-                }
+        RPCRegistryMethod method = requestTypeId < remoteMethodMap.length ? remoteMethodMap[requestTypeId] : null;
+        if (blocking && batch.get() == null && method != null && (method.idempotent || method.cached != null)
+                && method.streamParameters.length == 0) {
+            // the arguments generated for the key are the content of the request sent
+            CodecProvider codecProvider = packetizer.getCodecProvider();
+            RPCCallKey key = new RPCCallKey(requestTypeId, codecProvider.getId(), codecProvider.getGenerator().generate(Arrays.asList(args)));
+            RPCResponseCache cache = responseCaches[requestTypeId];
+            if (cache == null) {
+                return coalescedSend(key, args);
+            }
+            Object returnObject = cache.get(key);
+            if (returnObject != null) {
+                return returnObject;
             }
+            long generation = cache.getGeneration();
+            returnObject = method.idempotent ? coalescedSend(key, args) : sendRequest(key, args);
+            cache.put(key, returnObject, generation);
+            return returnObject;
         }
-
-        return genericSend(_requestList, false, requestTypeId, requestId, args, respond, blocking);
+        return sendRequest(requestTypeId, args, respond, blocking);
     }
 
-    protected void respond(int requestId, int requestTypeId, Object[] respond)
-            throws IOException, UnsupportedDataTypeException {
+    /**
+     * Send the request of a {@link rpc.annotation.Idempotent} method, or wait for the one in flight with the same
+     * encoded arguments and return its result.
+     */
+    protected Object coalescedSend(RPCCallKey key, Object[] args)
+            throws IOException, UnsupportedDataTypeException, InvocationFailedException {
+        RPCCoalescedCall call = new RPCCoalescedCall();
+        RPCCoalescedCall inFlightCall = coalescedCalls.putIfAbsent(key, call);
+        if (inFlightCall != null) {
+            coalescedCallCount.incrementAndGet();
+            return inFlightCall.await();
+        }
+
+        Object returnObject = null;
+        Throwable failure = null;
         try {
-            genericSend(null, true, requestTypeId, requestId, respond, false, false);
+            returnObject = sendRequest(key, args);
+            return returnObject;
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
         } catch (InvocationFailedException ex) {
-            LOG.log(Level.SEVERE, "Respond should not cause invocation failed exception", ex);
+            failure = ex;
+            throw ex;
+        } catch (RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } catch (Error ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            // the calls arrived after this are sent again
+            coalescedCalls.remove(key, call);
+            call.complete(returnObject, failure);
         }
     }
 
-    protected Object genericSend(Map<Integer, RPCRequest> requestList, boolean isRespond, int requestTypeId, int requestId, Object[] args, boolean respond, boolean blocking)
-            throws IOException, UnsupportedDataTypeException, InvocationFailedException {
-        byte[] packetData = packetizer.pack(isRespond, requestTypeId, requestId, Arrays.asList(args));
-        return genericSend(requestList, packetData, requestId, respond, blocking);
+    /**
+     * Get the number of calls returned the result of another call in flight, see
+     * {@link rpc.annotation.Idempotent}.
+     */
+    public int getCoalescedCallCount() {
+        return coalescedCallCount.get();
     }
 
-    protected Object genericSend(Map<Integer, RPCRequest> requestList, byte[] packetData, int requestId, boolean respond, boolean blocking) throws IOException, InvocationFailedException {
-        // isolate this out for test purpose
-        if (out == null) {
-            throw new IOException("RemoteOutput is not set");
-        }
+    /**
+     * Get the cache of the {@link rpc.annotation.Cached} remote method, null if it is not cached.
+     */
+    public RPCResponseCache getResponseCache(int requestTypeId) {
+        return requestTypeId > 0 && requestTypeId < responseCaches.length ? responseCaches[requestTypeId] : null;
+    }
 
-        RPCRequest request = null;
-        if (respond) {
-            request = new RPCRequest(requestId, System.currentTimeMillis(), packetData);
-            if (!requestList.containsKey(requestId)) {
-                requestList.put(requestId, request);
+    /**
+     * Remove the results of the {@link rpc.annotation.Cached} remote method cached, 0 for all the methods.
+     */
+    public void invalidateCache(int requestTypeId) {
+        for (int i = 0; i < responseCaches.length; i++) {
+            if (responseCaches[i] != null && (requestTypeId == 0 || requestTypeId == i)) {
+                responseCaches[i].invalidate();
             }
         }
+    }
 
-        if (respond) {
-            if (!blocking) {
-                out.write(packetData);
-                return null;
-            } else {
-                synchronized (request) {
-                    out.write(packetData);
-                    while (!request.notified) {
-                        try {
-                            request.wait();
-                        } catch (InterruptedException ex) {
-                            Thread.currentThread().interrupt();
-                            throw new IOException("Thread interruptted when waiting for respond");
-                        }
-                    }
-                }
-                if (!request.responded) {
-                    throw new IOException("Connection closed");
-                }
-                if (request.requestFailed) {
-                    throw new IOException("Request failed due to unsynchronized class registration on local and remote connection");
-                }
-                return request.respond;
-            }
+    /**
+     * Tell the remote side to remove the results of the {@link rpc.annotation.Cached} method cached, the method is
+     * a local method of this side, 0 for all the methods.
+     */
+    public void invalidateRemoteCache(int requestTypeId) throws IOException {
+        sendControl(RPCControl.CACHE_INVALIDATE, requestTypeId);
+    }
+
+    protected Object sendRequest(int requestTypeId, Object[] args, boolean respond, boolean blocking)
+            throws IOException, UnsupportedDataTypeException, InvocationFailedException {
+        List<RPCStreamSender> streamSenders = null;
+        if (requestTypeId < remoteMethodMap.length && remoteMethodMap[requestTypeId] != null
+                && remoteMethodMap[requestTypeId].streamParameters.length != 0) {
+            streamSenders = openStreams(remoteMethodMap[requestTypeId], args);
+        }
+
+        RPCIdSet _idSet;
+        Map<Integer, RPCRequest> _requestList;
+        if (requestTypeId == BULK_SEQUENTIAL_ID) {
+            _idSet = bulkRequestIdSet;
+            _requestList = bulkRequestList;
         } else {
-            out.write(packetData);
-            return null;
+            _idSet = sequentialRequestIdSet[requestTypeId];
+            _requestList = sequentialRequestList[requestTypeId];
+            if (_requestList == null) {
+                _idSet = requestIdSet;
+                _requestList = requestList;
+            }
         }
-    }
 
-    protected Object[] invoke(int requestTypeId, Object[] args) {
-        if (requestTypeId == 0) {
-            if (args.length == 2 && args[0] instanceof Integer && args[1] instanceof Integer) {
-                // respondId notification
-                int _targetSequenceId = (Integer) args[0];
-                int _targetRespondedId = (Integer) args[1];
+        int requestId = _idSet.nextId(_requestList);
 
-                if (_targetSequenceId >= _sequentialRespondIdSet.length) {
-                    return new Object[]{null, RPCError.REMOTE_CONNECTION_SEQUENTIAL_ID_NOT_REGISTERED.getValue()};
+        if (streamSenders == null) {
+            return claimResult(requestTypeId, genericSend(_requestList, false, requestTypeId, requestId, args, respond, blocking));
+        }
+        boolean succeed = false;
+        try {
+            Object returnObject = genericSend(_requestList, false, requestTypeId, requestId, args, respond, blocking);
+            succeed = true;
+            return claimResult(requestTypeId, returnObject);
+        } finally {
+            if (!succeed) {
+                for (RPCStreamSender sender : streamSenders) {
+                    sender.close();
                 }
+            }
+        }
+    }
 
-                RPCIdSet _idSet = _sequentialRespondIdSet[_targetSequenceId];
-                Map<Integer, RPCRequest> _respondList = _sequentialRespondList[_targetSequenceId];
-                if (_idSet == null) {
-                    return new Object[]{null, RPCError.REMOTE_CONNECTION_SEQUENTIAL_ID_NOT_REGISTERED.getValue()};
-                }
+    /**
+     * Send the blocking request with the arguments generated already for the key, the method has no stream
+     * parameters.
+     */
+    protected Object sendRequest(RPCCallKey key, Object[] args) throws IOException, UnsupportedDataTypeException, InvocationFailedException {
+        int requestTypeId = key.requestTypeId;
+        RPCIdSet _idSet = sequentialRequestIdSet[requestTypeId];
+        Map<Integer, RPCRequest> _requestList = sequentialRequestList[requestTypeId];
+        if (_requestList == null) {
+            _idSet = requestIdSet;
+            _requestList = requestList;
+        }
 
-                if (_targetRespondedId + 1 < _idSet.respondedId) {
-                    return new Object[]{null, RPCError.RESPOND_ID_UPDATE_FAILED.getValue()};
-                }
-                for (int i = _idSet.respondedId; i <= _targetRespondedId; i++) {
-                    _respondList.remove(i);
-                }
-                _idSet.respondedId = _targetRespondedId;
-            } else if (args.length == 1 && args[0] instanceof Integer) {
-                // respondId notification, no sequential id
-                int _targetRespondedId = (Integer) args[0];
+        int requestId = _idSet.nextId(_requestList);
+        byte[] packetData = packetizer.pack(false, requestTypeId, requestId, key.codecId, key.arguments);
+        return claimResult(requestTypeId, genericSend(_requestList, packetData, getPriority(false, requestTypeId, Arrays.asList(args)), requestTypeId, requestId, true, true));
+    }
 
-                if (_targetRespondedId + 1 < respondIdSet.respondedId) {
-                    return new Object[]{null, RPCError.RESPOND_ID_UPDATE_FAILED.getValue()};
-                }
-                for (int i = respondIdSet.respondedId; i <= _targetRespondedId; i++) {
-                    respondList.remove(i);
-                }
-                respondIdSet.respondedId = _targetRespondedId;
-            } else {
-                // heart beat: args.length == 1 && args[0] == null
+    /**
+     * Replace the stream arguments by stream id and start sending them, the chunks may reach the remote side before
+     * the request.
+     */
+    protected List<RPCStreamSender> openStreams(RPCRegistryMethod method, Object[] args) {
+        List<RPCStreamSender> streamSenders = new ArrayList<RPCStreamSender>();
+        for (int parameterIndex : method.streamParameters) {
+            Object arg = args[parameterIndex];
+            if (arg == null) {
+                continue;
             }
+            InputStream in = arg instanceof ReadableByteChannel ? Channels.newInputStream((ReadableByteChannel) arg) : (InputStream) arg;
 
-            return new Object[]{null};
+            int _streamId;
+            do {
+                _streamId = streamId.incrementAndGet() & 1073741823;
+            } while (_streamId == 0);
+
+            RPCStreamSender sender = new RPCStreamSender(this, _streamId, in, rpcRegistry.streamChunkSize, rpcRegistry.streamWindowSize);
+            outgoingStreams.put(_streamId, sender);
+            streamSenders.add(sender);
+            args[parameterIndex] = _streamId;
         }
+        for (RPCStreamSender sender : streamSenders) {
+            rpcRegistry.executor.execute(sender);
+        }
+        return streamSenders;
+    }
 
-        Object[] returnObject = new Object[0];
+    /**
+     * Start sending the items of the {@link Iterator} returned by the method invoked, the result id is responded
+     * instead. The items may reach the remote side before the respond.
+     */
+    protected Integer openResult(Iterator<?> iterator) {
+        int _resultId;
+        do {
+            _resultId = streamId.incrementAndGet() & 1073741823;
+        } while (_resultId == 0);
+
+        RPCResultSender sender = new RPCResultSender(this, _resultId, iterator, rpcRegistry.resultBatchSize, rpcRegistry.streamWindowSize);
+        outgoingResults.put(_resultId, sender);
+        rpcRegistry.executor.execute(sender);
+        return _resultId;
+    }
 
-        if (requestTypeId > localMethodMap.length) {
-            LOG.log(Level.SEVERE, "requestTypeId {0} greater than array size {1}", new Object[]{requestTypeId, localMethodMap.length});
-            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_NOT_REGISTERED.getValue()};
+    /**
+     * Replace the result id responded by the {@link RPCResultIterator} receiving the items, for the methods returning
+     * {@link Iterator}.
+     */
+    protected Object claimResult(int requestTypeId, Object returnObject) {
+        if (!(returnObject instanceof Integer) || requestTypeId >= remoteMethodMap.length
+                || remoteMethodMap[requestTypeId] == null || !remoteMethodMap[requestTypeId].resultStream) {
+            return returnObject;
         }
+        RPCResultIterator<?> iterator = getIncomingResult(-(Integer) returnObject);
+        iterator.claim();
+        releaseIncomingResult(iterator);
+        return iterator;
+    }
 
-        RPCRegistryMethod method = localMethodMap[requestTypeId];
-        if (method == null) {
-            LOG.log(Level.SEVERE, "method with requestTypeId {0} not found", new Object[]{requestTypeId});
-            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_NOT_REGISTERED.getValue()};
-        }
+    protected void removeOutgoingResult(int resultId) {
+        outgoingResults.remove(resultId);
+    }
 
-        if (method.instance == null) {
-            LOG.log(Level.SEVERE, "instance with requestTypeId {0} not found", new Object[]{requestTypeId});
-            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_INSTANCE_NOT_REGISTERED.getValue()};
+    protected RPCResultIterator<?> getIncomingResult(int resultId) {
+        RPCResultIterator<?> iterator = incomingResults.get(resultId);
+        if (iterator == null) {
+            iterator = new RPCResultIterator<Object>(this, resultId, rpcRegistry.streamWindowSize / 2);
+            RPCResultIterator<?> _iterator = incomingResults.putIfAbsent(resultId, iterator);
+            if (_iterator != null) {
+                iterator = _iterator;
+            }
         }
+        return iterator;
+    }
 
-        if (method.userObject) {
-            Object[] newArgs = new Object[args.length + 1];
-            newArgs[0] = userObject;
-            System.arraycopy(args, 0, newArgs, 1, args.length);
-            args = newArgs;
-        }
+    /**
+     * The results allocated by the remote side may get their items before the respond arrived, they are created on
+     * demand.
+     */
+    protected RPCResultIterator<?> findIncomingResult(int resultId) {
+        return resultId < 0 ? getIncomingResult(resultId) : incomingResults.get(resultId);
+    }
 
-        try {
-            returnObject = new Object[]{method.method.invoke(method.instance, args)};
-        } catch (Exception ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            return new Object[]{null, RPCError.REMOTE_METHOD_INVOKE_ERROR.getValue()};
+    protected void releaseIncomingResult(RPCResultIterator<?> iterator) {
+        if (iterator.isReleasable()) {
+            incomingResults.remove(iterator.resultId, iterator);
         }
-
-        return returnObject;
     }
 
-    public <R> R getRemote(Class<R> objClass) {
-        return objClass.cast(remoteImplementations.get(objClass));
+    protected void removeOutgoingStream(int streamId) {
+        outgoingStreams.remove(streamId);
     }
 
-    public <L> void bind(Class<L> objectClass, L instance) {
-        Integer methodRegistryIndex;
-        if ((methodRegistryIndex = registeredLocalClasses.get(objectClass)) == null) {
-            LOG.log(Level.SEVERE, "class {0} not registered", objectClass.getName());
-            return;
+    protected RPCInputStream getIncomingStream(int streamId) {
+        RPCInputStream stream = incomingStreams.get(streamId);
+        if (stream == null) {
+            stream = new RPCInputStream(this, streamId, rpcRegistry.streamWindowSize / 2);
+            RPCInputStream _stream = incomingStreams.putIfAbsent(streamId, stream);
+            if (_stream != null) {
+                stream = _stream;
+            }
         }
+        return stream;
+    }
 
-        //for (int i = methodRegistryIndex + objectClass.getDeclaredMethods().length - 1; i >= methodRegistryIndex; i--) {
-        int end = methodRegistryIndex + objectClass.getDeclaredMethods().length;
-        for (int i = methodRegistryIndex; i < end; i++) {
-            RPCRegistryMethod method = localMethodRegistry.get(i);
-            method.instance = instance;
-        }
+    /**
+     * The streams allocated by the remote side may get their chunks before the request arrived, they are created on
+     * demand.
+     */
+    protected RPCInputStream findIncomingStream(int streamId) {
+        return streamId < 0 ? getIncomingStream(streamId) : incomingStreams.get(streamId);
     }
 
-    public void unbind(Class<?> objectClass) {
-        Integer methodRegistryIndex;
-        if ((methodRegistryIndex = registeredLocalClasses.get(objectClass)) == null) {
-            LOG.log(Level.SEVERE, "class {0} not registered", objectClass.getName());
-            return;
+    protected void releaseIncomingStream(RPCInputStream stream) {
+        if (stream.isReleasable()) {
+            incomingStreams.remove(stream.streamId, stream);
         }
+    }
 
-        int end = methodRegistryIndex + objectClass.getDeclaredMethods().length;
-        for (int i = methodRegistryIndex; i < end; i++) {
-            RPCRegistryMethod method = localMethodRegistry.get(i);
-            method.instance = null;
+    protected void sendStreamControl(RPCControl control, int streamId, Object data) throws IOException {
+        if (data == null) {
+            sendControl(control, streamId);
+        } else {
+            sendControl(control, streamId, data);
         }
     }
 
-    @Override
-    public void feed(byte[] b, int offset, int length) {
-        depacketizer.unpack(b, offset, length);
+    protected void sendControl(RPCControl control, Object... controlArgs) throws IOException {
+        sendControl(0, control, controlArgs);
     }
 
-    protected static class RPCIdSet {
-
-        protected final int sequentialId;
-        protected int id;
-        protected int respondedId;
-        //
-        protected int lastRespondId;
-        protected long lastRespondIdSendTime;
+    /**
+     * Send the stream chunk or the result items, or the message ending them, in order with the others of the streams
+     * and the results, see {@link #BULK_SEQUENTIAL_ID}.
+     */
+    protected void sendBulkControl(RPCControl control, Object... controlArgs) throws IOException {
+        sendControl(BULK_SEQUENTIAL_ID, control, controlArgs);
+    }
+
+    protected void sendControl(int requestTypeId, RPCControl control, Object[] controlArgs) throws IOException {
+        Object[] args = new Object[controlArgs.length + 1];
+        args[0] = control.getValue();
+        System.arraycopy(controlArgs, 0, args, 1, controlArgs.length);
+        try {
+            send(requestTypeId, args, true, false, false);
+        } catch (UnsupportedDataTypeException ex) {
+            throw new IOException(ex);
+        } catch (InvocationFailedException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    protected void respond(int requestId, int requestTypeId, Object[] respond)
+            throws IOException, UnsupportedDataTypeException {
+        try {
+            genericSend(null, true, requestTypeId, requestId, respond, false, false);
+        } catch (InvocationFailedException ex) {
+            LOG.log(Level.SEVERE, "Respond should not cause invocation failed exception", ex);
+        }
+    }
+
+    protected Object genericSend(Map<Integer, RPCRequest> requestList, boolean isRespond, int requestTypeId, int requestId, Object[] args, boolean respond, boolean blocking)
+            throws IOException, UnsupportedDataTypeException, InvocationFailedException {
+        RPCBatch _batch = batch.get();
+        if (_batch != null) {
+            return batchSend(_batch, requestList, new Packet(isRespond, requestTypeId, requestId, Arrays.asList(args)), respond, blocking);
+        }
+        List<Object> content = Arrays.asList(args);
+        byte[] packetData = packetizer.pack(isRespond, requestTypeId, requestId, content);
+        return genericSend(requestList, packetData, getPriority(isRespond, requestTypeId, content), requestTypeId, requestId, respond, blocking);
+    }
+
+    /**
+     * Get the class of the packet, see {@link RPCOutputScheduler}. The control messages and the error responds are
+     * {@link RPCPriority#CONTROL}, the stream chunks and the result items on {@link #BULK_SEQUENTIAL_ID} are
+     * {@link RPCPriority#BULK}, the others are specified by {@link rpc.annotation.Priority}.
+     */
+    protected RPCPriority getPriority(boolean isRespond, int requestTypeId, List<?> content) {
+        if (requestTypeId == 0) {
+            return RPCPriority.CONTROL;
+        }
+        if (requestTypeId == BULK_SEQUENTIAL_ID) {
+            return isRespond ? RPCPriority.CONTROL : RPCPriority.BULK;
+        }
+        if (isRespond && content.size() == 2 && content.get(0) == null && content.get(1) instanceof Short) {
+            return RPCPriority.CONTROL;
+        }
+        RPCRegistryMethod[] methodMap = isRespond ? localMethodMap : remoteMethodMap;
+        if (requestTypeId >= methodMap.length || methodMap[requestTypeId] == null) {
+            return RPCPriority.INTERACTIVE;
+        }
+        return methodMap[requestTypeId].priority;
+    }
+
+    /**
+     * Add the packet to the batch of the current thread, the batch is sent before waiting if it is blocking.
+     */
+    protected Object batchSend(RPCBatch _batch, Map<Integer, RPCRequest> requestList, Packet packet, boolean respond, boolean blocking)
+            throws IOException, UnsupportedDataTypeException, InvocationFailedException {
+        if (out == null) {
+            throw new IOException("RemoteOutput is not set");
+        }
+
+        _batch.packets.add(packet);
+        if (!respond) {
+            return null;
+        }
+
+        // the packet data is set when the batch is sent
+        RPCRequest request = requestPool.obtain(packet.getRequestTypeId(), packet.getRequestId(), blocking ? RPCRequest.OWNED_BY_LIST | RPCRequest.OWNED_BY_CALLER : RPCRequest.OWNED_BY_LIST, null);
+        if (blocking) {
+            request.waiter = Thread.currentThread();
+        }
+        requestList.put(packet.getRequestId(), request);
+        _batch.requests.add(request);
+
+        if (!blocking) {
+            return null;
+        }
+        try {
+            flushBatch(_batch);
+            return awaitRespond(request);
+        } finally {
+            requestPool.release(request, RPCRequest.OWNED_BY_CALLER);
+        }
+    }
+
+    /**
+     * Start batching the requests and responds sent by the current thread, they are packed into one packet and sent
+     * when {@link #endBatch()} is called or a blocking request is sent. The batches can be nested, only the outermost
+     * {@link #endBatch()} send the batch.
+     */
+    public void beginBatch() {
+        RPCBatch _batch = batch.get();
+        if (_batch == null) {
+            _batch = new RPCBatch();
+            batch.set(_batch);
+        }
+        _batch.depth++;
+    }
+
+    /**
+     * Send the requests and responds batched by the current thread since {@link #beginBatch()}.
+     */
+    public void endBatch() throws IOException {
+        RPCBatch _batch = batch.get();
+        if (_batch == null) {
+            return;
+        }
+        if (--_batch.depth > 0) {
+            return;
+        }
+        batch.remove();
+        flushBatch(_batch);
+    }
+
+    protected void flushBatch(RPCBatch _batch) throws IOException {
+        if (_batch.packets.isEmpty()) {
+            return;
+        }
+
+        // the batch is written in the highest class of the packets in it
+        RPCPriority priority = RPCPriority.BULK;
+        for (Packet packet : _batch.packets) {
+            RPCPriority packetPriority = getPriority(packet.isRespond(), packet.getRequestTypeId(), (List<?>) packet.getContent());
+            if (packetPriority.compareTo(priority) < 0) {
+                priority = packetPriority;
+            }
+        }
+
+        byte[] packetData;
+        try {
+            if (_batch.packets.size() == 1) {
+                Packet packet = _batch.packets.get(0);
+                packetData = packetizer.pack(packet.isRespond(), packet.getRequestTypeId(), packet.getRequestId(), packet.getContent());
+            } else {
+                packetData = packetizer.packBatch(_batch.packets);
+            }
+        } catch (UnsupportedDataTypeException ex) {
+            throw new IOException(ex);
+        } finally {
+            _batch.packets.clear();
+        }
+        // the whole batch is resent if any of the requests is not responded
+        int currentTime = (int) System.currentTimeMillis();
+        for (RPCRequest request : _batch.requests) {
+            request.set(RPCRequest.priorityFlags(priority));
+            request.data = packetData;
+            request.time = currentTime;
+        }
+        _batch.requests.clear();
+
+        if (out == null) {
+            throw new IOException("RemoteOutput is not set");
+        }
+        outputScheduler.write(packetData, priority);
+    }
+
+    protected Object genericSend(Map<Integer, RPCRequest> requestList, byte[] packetData, RPCPriority priority, int requestTypeId, int requestId, boolean respond, boolean blocking) throws IOException, InvocationFailedException {
+        // isolate this out for test purpose
+        if (out == null) {
+            throw new IOException("RemoteOutput is not set");
+        }
+
+        if (respond) {
+            RPCRequest request = requestPool.obtain(requestTypeId, requestId, (blocking ? RPCRequest.OWNED_BY_LIST | RPCRequest.OWNED_BY_CALLER : RPCRequest.OWNED_BY_LIST)
+                    | RPCRequest.priorityFlags(priority), packetData);
+            if (blocking) {
+                request.waiter = Thread.currentThread();
+            }
+            requestList.put(requestId, request);
+
+            if (!blocking) {
+                outputScheduler.write(packetData, priority);
+                return null;
+            } else {
+                try {
+                    outputScheduler.write(packetData, priority);
+                    return awaitRespond(request);
+                } finally {
+                    requestPool.release(request, RPCRequest.OWNED_BY_CALLER);
+                }
+            }
+        } else {
+            outputScheduler.write(packetData, priority);
+            return null;
+        }
+    }
+
+    /**
+     * Wait for the respond, the request is cancelled if the thread is interrupted or it is not responded within the
+     * call timeout.
+     */
+    protected Object awaitRespond(RPCRequest request) throws IOException {
+        int _callTimeout = callTimeout;
+        long deadline = System.nanoTime() + _callTimeout * 1000000L;
+        while (!request.is(RPCRequest.NOTIFIED)) {
+            if (_callTimeout <= 0) {
+                LockSupport.park(request);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (cancel(request, RPCRequest.CANCELLED)) {
+                        throw new IOException("Request timed out");
+                    }
+                    // responded just now
+                    continue;
+                }
+                LockSupport.parkNanos(request, remaining);
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                cancel(request, RPCRequest.CANCELLED);
+                throw new IOException("Thread interruptted when waiting for respond");
+            }
+        }
+        if (request.is(RPCRequest.EXPIRED)) {
+            throw new IOException("Request not responded after retries");
+        }
+        if (request.is(RPCRequest.CANCELLED)) {
+            throw new IOException("Request cancelled");
+        }
+        if (!request.is(RPCRequest.RESPONDED)) {
+            throw new IOException("Connection closed");
+        }
+        if (request.is(RPCRequest.FAILED)) {
+            throw new IOException("Request failed due to unsynchronized class registration on local and remote connection");
+        }
+        return request.data;
+    }
+
+    /**
+     * Remove the responded requests from the head of the request list and advance its largest responded id.
+     */
+    protected void removeResponded(RPCIdSet _idSet, Map<Integer, RPCRequest> _requestList) {
+        synchronized (_idSet) {
+            RPCRequest _request;
+            while ((_request = _requestList.get(_idSet.respondedId)) != null) {
+                if (!_request.is(RPCRequest.RESPONDED)) {
+                    break;
+                }
+                _requestList.remove(_idSet.respondedId);
+                requestPool.release(_request, RPCRequest.OWNED_BY_LIST);
+                _idSet.respondedId++;
+                if (_idSet.respondedId > 1073741823) {
+                    _idSet.respondedId = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give up the request if it is not responded yet: the thread waiting for it get an {@link IOException}, it is not
+     * sent again and the remote connection is told to drop it. It is called by the thread owning the request, see
+     * {@link #setCancelled(RPCRequest, int)} for the others.
+     * @param flag {@link RPCRequest#CANCELLED} or {@link RPCRequest#EXPIRED} (not responded after the retries)
+     * @return false if it is responded already
+     */
+    protected boolean cancel(RPCRequest request, int flag) {
+        int requestTypeId = request.getRequestTypeId();
+        int requestId = request.requestId;
+        if (!setCancelled(request, flag)) {
+            return false;
+        }
+        sendCancel(requestTypeId, requestId);
+        return true;
+    }
+
+    /**
+     * Mark the request cancelled if it is not responded yet and wake up the thread waiting for it. The caller has to
+     * own the request or hold the lock of the request list containing it, the record is recycled for another request
+     * after it is removed from the list. Call {@link #sendCancel(int, int)} after releasing the lock.
+     * @return false if it is responded already
+     */
+    protected boolean setCancelled(RPCRequest request, int flag) {
+        if (!request.setIfNotResponded(flag)) {
+            return false;
+        }
+        request.data = null;
+        request.notifyWaiter();
+        return true;
+    }
+
+    /**
+     * Tell the remote connection to drop the request cancelled and remove it from the request list if it is at the
+     * head.
+     */
+    protected void sendCancel(int requestTypeId, int requestId) {
+        // the remote connection also treat the requests acknowledged but not responded as cancelled
+        try {
+            sendControl(RPCControl.CANCEL, requestTypeId, requestId);
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, null, ex);
+        }
+
+        RPCIdSet _idSet = sequentialRequestIdSet[requestTypeId];
+        Map<Integer, RPCRequest> _requestList = sequentialRequestList[requestTypeId];
+        if (_requestList == null) {
+            _idSet = requestIdSet;
+            _requestList = requestList;
+        }
+        removeResponded(_idSet, _requestList);
+    }
+
+    /**
+     * Cancel all the requests not responded yet, except the control messages, see {@link #cancel(RPCRequest, int)}.
+     * @return the number of requests cancelled
+     */
+    public int cancelPendingRequests() {
+        List<int[]> cancelledRequests = new ArrayList<int[]>();
+        List<Map<Integer, RPCRequest>> requestListList = new ArrayList<Map<Integer, RPCRequest>>();
+        requestListList.add(requestList);
+        for (int i = 1, iEnd = _sequentialRequestList.length; i < iEnd; i++) {
+            if (_sequentialRequestList[i] != null) {
+                requestListList.add(_sequentialRequestList[i]);
+            }
+        }
+        for (Map<Integer, RPCRequest> _requestList : requestListList) {
+            synchronized (_requestList) {
+                for (RPCRequest request : _requestList.values()) {
+                    if (setCancelled(request, RPCRequest.CANCELLED)) {
+                        cancelledRequests.add(new int[]{request.getRequestTypeId(), request.requestId});
+                    }
+                }
+            }
+        }
+
+        for (int[] cancelledRequest : cancelledRequests) {
+            sendCancel(cancelledRequest[0], cancelledRequest[1]);
+        }
+        return cancelledRequests.size();
+    }
+
+    public int getCallTimeout() {
+        return callTimeout;
+    }
+
+    /**
+     * Set the time in milliseconds to wait for the respond of the blocking requests, 0 (the default) to wait until
+     * responded. The request is cancelled after the timeout, see {@link #cancel(RPCRequest, int)}.
+     */
+    public void setCallTimeout(int callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+
+    /**
+     * Get the round trip time measured and the retry timeout derived from it.
+     */
+    public RPCRoundTripTimer getRoundTripTimer() {
+        return roundTripTimer;
+    }
+
+    /**
+     * Resend the packet of a request not responded yet in the class it is first written in, the request is already in
+     * the request list.
+     */
+    protected void resend(byte[] packetData, RPCPriority priority) throws IOException {
+        if (out == null) {
+            throw new IOException("RemoteOutput is not set");
+        }
+        outputScheduler.write(packetData, priority);
+    }
+
+    /**
+     * Get the scheduler writing the packets by {@link RPCPriority}.
+     */
+    public RPCOutputScheduler getOutputScheduler() {
+        return outputScheduler;
+    }
+
+    /**
+     * Put the {@link RPCControl#FRAGMENT} received together, the packet is parsed after all the fragments received.
+     * @return false if the content is not a fragment
+     */
+    protected boolean fragmentReceived(Object content) {
+        if (!(content instanceof List) || ((List<?>) content).size() != 5) {
+            return false;
+        }
+        List<?> contentList = (List<?>) content;
+        if (!(contentList.get(0) instanceof Short) || (Short) contentList.get(0) != RPCControl.FRAGMENT.getValue()) {
+            return false;
+        }
+        if (!(contentList.get(1) instanceof Integer) || !(contentList.get(2) instanceof Integer)
+                || !(contentList.get(3) instanceof Integer) || !(contentList.get(4) instanceof byte[])) {
+            LOG.log(Level.SEVERE, "incorrect fragment format");
+            return true;
+        }
+        int fragmentId = (Integer) contentList.get(1);
+        int offset = (Integer) contentList.get(2);
+        int totalLength = (Integer) contentList.get(3);
+        byte[] piece = (byte[]) contentList.get(4);
+        if (offset < 0 || totalLength < 0 || totalLength > rpcRegistry.maxPacketSize || offset > totalLength || piece.length > totalLength - offset) {
+            LOG.log(Level.SEVERE, "incorrect fragment format");
+            return true;
+        }
+
+        // the fragments are written in order, a packet with a fragment lost is sent again with a new fragment id
+        long currentTime = System.currentTimeMillis();
+        RPCFragments packet;
+        synchronized (fragments) {
+            packet = fragments.get(fragmentId);
+            if (packet == null) {
+                if (offset != 0) {
+                    // the first fragment lost, or the packet is completed or dropped already
+                    return true;
+                }
+                expireFragments(currentTime);
+                packet = new RPCFragments(totalLength);
+                fragments.put(fragmentId, packet);
+            } else if (packet.packetData.length != totalLength) {
+                LOG.log(Level.SEVERE, "incorrect fragment format");
+                fragments.remove(fragmentId);
+                return true;
+            }
+            if (offset != packet.received) {
+                if (offset > packet.received) {
+                    fragments.remove(fragmentId);
+                }
+                // a duplicate otherwise
+                return true;
+            }
+            System.arraycopy(piece, 0, packet.packetData, offset, piece.length);
+            packet.received += piece.length;
+            packet.time = currentTime;
+            if (packet.received < totalLength) {
+                return true;
+            }
+            fragments.remove(fragmentId);
+        }
+        synchronized (fragmentDepacketizer) {
+            fragmentDepacketizer.unpack(packet.packetData, 0, packet.packetData.length);
+        }
+        return true;
+    }
+
+    /**
+     * Drop the packets not completed with no fragment received for the retry timeout, their senders have sent them
+     * again with new fragment ids.
+     */
+    protected void expireFragments(long currentTime) {
+        int timeout = roundTripTimer.getTimeout();
+        synchronized (fragments) {
+            for (Iterator<RPCFragments> iterator = fragments.values().iterator(); iterator.hasNext();) {
+                if (currentTime - iterator.next().time > timeout) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Invoke the sequential requests received in order, from the id expected next until the next one not received.
+     * The control messages, including those of {@link #BULK_SEQUENTIAL_ID}, are invoked by the current thread, the
+     * others by the {@link RPCSequentialExecutor} of the sequential id. Called with {@code _idSet} locked.
+     */
+    protected void invokeSequential(RPCIdSet _idSet, Map<Integer, RPCRequest> _respondList) {
+        if (_idSet.sequentialId != 0 && _idSet.sequentialId != BULK_SEQUENTIAL_ID) {
+            sequentialExecutors[_idSet.sequentialId].schedule();
+            return;
+        }
+        RPCRequest rpcRequest;
+        while ((rpcRequest = nextSequential(_idSet, _respondList, null)) != null) {
+            invokeSequential(rpcRequest);
+        }
+    }
+
+    /**
+     * Take the sequential request expected next, the cancelled ones are skipped. The {@code waiter} is interrupted if
+     * the request is cancelled while invoking. Called with {@code _idSet} locked.
+     * @return null if the request expected next is not received yet
+     */
+    protected RPCRequest nextSequential(RPCIdSet _idSet, Map<Integer, RPCRequest> _respondList, Thread waiter) {
+        RPCRequest rpcRequest;
+        while ((rpcRequest = _respondList.get(_idSet.id)) != null) {
+            _idSet.id++;
+            if (_idSet.id > 1073741823) {
+                _idSet.id = 1;
+            }
+            if (rpcRequest.is(RPCRequest.CANCELLED)) {
+                continue;
+            }
+            // the request is removed from the list if the remote connection acknowledged it while invoking
+            rpcRequest.set(RPCRequest.OWNED_BY_CALLER);
+            rpcRequest.waiter = waiter;
+            return rpcRequest;
+        }
+        return null;
+    }
+
+    /**
+     * Invoke the sequential request taken by {@link #nextSequential(RPCIdSet, Map, Thread)} and send the respond.
+     */
+    protected void invokeSequential(RPCRequest rpcRequest) {
+        int requestTypeId = rpcRequest.getRequestTypeId();
+        int requestId = rpcRequest.requestId;
+        RPCIdSet _idSet = requestTypeId == BULK_SEQUENTIAL_ID ? bulkRespondIdSet : sequentialRespondIdSet[requestTypeId];
+
+        Object[] respond = invoke(requestTypeId, ((List<Object>) rpcRequest.data).toArray());
+
+        boolean cancelled;
+        synchronized (_idSet) {
+            if (rpcRequest.waiter != null) {
+                rpcRequest.waiter = null;
+                // clear the interrupt not handled by the method
+                Thread.interrupted();
+            }
+            rpcRequest.data = respond;
+            rpcRequest.set(RPCRequest.RESPONDED);
+            cancelled = rpcRequest.is(RPCRequest.CANCELLED);
+        }
+        requestPool.release(rpcRequest, RPCRequest.OWNED_BY_CALLER);
+
+        if ((requestTypeId == BULK_SEQUENTIAL_ID || !localMethodMap[requestTypeId].noRespond) && !cancelled) {
+            try {
+                respond(requestId, requestTypeId, respond);
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * The remote connection cancelled the request: drop it if it is not invoked yet, interrupt the thread invoking it
+     * otherwise. The request not received yet is marked cancelled, it is responded with
+     * {@link RPCError#REQUEST_CANCELLED} when received.
+     */
+    protected void cancelled(int requestTypeId, int requestId) {
+        if (requestTypeId < 0 || requestTypeId >= sequentialRespondIdSet.length || localMethodMap[requestTypeId] == null) {
+            return;
+        }
+
+        RPCIdSet _idSet = sequentialRespondIdSet[requestTypeId];
+        Map<Integer, RPCRequest> _respondList = sequentialRespondList[requestTypeId];
+        if (_respondList == null) {
+            _idSet = respondIdSet;
+            _respondList = respondList;
+        }
+
+        Object[] respond = new Object[]{null, RPCError.REQUEST_CANCELLED.getValue()};
+        synchronized (_idSet) {
+            RPCRequest rpcRequest = _respondList.get(requestId);
+            if (rpcRequest == null) {
+                // not for the requests already invoked and removed
+                if (_idSet == respondIdSet ? requestId - _idSet.respondedId > 0 : requestId - _idSet.id >= 0) {
+                    _respondList.put(requestId, requestPool.obtain(requestTypeId, requestId, RPCRequest.OWNED_BY_LIST | RPCRequest.RESPONDED | RPCRequest.CANCELLED, respond));
+                }
+            } else if (!rpcRequest.is(RPCRequest.RESPONDED)) {
+                rpcRequest.set(RPCRequest.CANCELLED);
+                if (rpcRequest.waiter != null) {
+                    // invoking
+                    rpcRequest.waiter.interrupt();
+                } else if (_idSet != respondIdSet && !rpcRequest.is(RPCRequest.OWNED_BY_CALLER)) {
+                    // queued
+                    rpcRequest.data = respond;
+                    rpcRequest.set(RPCRequest.RESPONDED);
+                }
+            }
+            if (_idSet != respondIdSet && _idSet.id == requestId) {
+                invokeSequential(_idSet, _respondList);
+            }
+        }
+    }
+
+    protected void invokeLater(final RPCRegistryMethod method, final RPCRequest rpcRequest, final Object[] args) {
+        final int requestTypeId = rpcRequest.getRequestTypeId();
+        final int requestId = rpcRequest.requestId;
+        rpcRegistry.executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Object[] respond = invokeHeld(rpcRequest, args);
+                if (!method.noRespond && respond != null) {
+                    try {
+                        respond(requestId, requestTypeId, respond);
+                    } catch (Exception ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Invoke the request not sequential held in the {@link #respondList}, owned by the caller, and mark it responded.
+     * @return null if it is cancelled, the respond is not sent then
+     */
+    protected Object[] invokeHeld(RPCRequest rpcRequest, Object[] args) {
+        Object[] respond;
+        synchronized (respondIdSet) {
+            // the thread is interrupted if the request is cancelled while invoking
+            rpcRequest.waiter = Thread.currentThread();
+        }
+        if (rpcRequest.is(RPCRequest.CANCELLED)) {
+            respond = new Object[]{null, RPCError.REQUEST_CANCELLED.getValue()};
+        } else {
+            respond = invoke(rpcRequest.getRequestTypeId(), args);
+        }
+        boolean cancelled;
+        synchronized (respondIdSet) {
+            rpcRequest.waiter = null;
+            // clear the interrupt not handled by the method
+            Thread.interrupted();
+            rpcRequest.data = respond;
+            rpcRequest.set(RPCRequest.RESPONDED);
+            cancelled = rpcRequest.is(RPCRequest.CANCELLED);
+        }
+        requestPool.release(rpcRequest, RPCRequest.OWNED_BY_CALLER);
+        return cancelled ? null : respond;
+    }
+
+    protected Object[] invoke(int requestTypeId, Object[] args) {
+        if (requestTypeId == 0 || requestTypeId == BULK_SEQUENTIAL_ID) {
+            if (args.length >= 2 && args[0] instanceof Short && args[1] instanceof Integer) {
+                return invokeControl((Short) args[0], args);
+            } else if (args.length == 2 && args[0] instanceof Integer && args[1] instanceof Integer) {
+                // respondId notification
+                RPCError error = acknowledge((Integer) args[0], (Integer) args[1]);
+                if (error != null) {
+                    return new Object[]{null, error.getValue()};
+                }
+            } else if (args.length == 1 && args[0] instanceof Integer) {
+                // respondId notification, no sequential id
+                RPCError error = acknowledge(-1, (Integer) args[0]);
+                if (error != null) {
+                    return new Object[]{null, error.getValue()};
+                }
+            } else {
+                // heart beat: args.length == 1 && args[0] == null
+            }
+
+            return new Object[]{null};
+        }
+
+        Object[] returnObject = new Object[0];
+
+        if (requestTypeId > localMethodMap.length) {
+            LOG.log(Level.SEVERE, "requestTypeId {0} greater than array size {1}", new Object[]{requestTypeId, localMethodMap.length});
+            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_NOT_REGISTERED.getValue()};
+        }
+
+        RPCRegistryMethod method = localMethodMap[requestTypeId];
+        if (method == null) {
+            LOG.log(Level.SEVERE, "method with requestTypeId {0} not found", new Object[]{requestTypeId});
+            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_NOT_REGISTERED.getValue()};
+        }
+
+        if (method.instance == null) {
+            LOG.log(Level.SEVERE, "instance with requestTypeId {0} not found", new Object[]{requestTypeId});
+            return new Object[]{null, RPCError.REMOTE_CONNECTION_METHOD_INSTANCE_NOT_REGISTERED.getValue()};
+        }
+
+        if (method.userObject) {
+            Object[] newArgs = new Object[args.length + 1];
+            newArgs[0] = userObject;
+            System.arraycopy(args, 0, newArgs, 1, args.length);
+            args = newArgs;
+        }
+
+        List<RPCInputStream> streams = null;
+        if (method.streamParameters.length != 0) {
+            streams = new ArrayList<RPCInputStream>();
+            for (int parameterIndex : method.streamParameters) {
+                if (parameterIndex >= args.length || !(args[parameterIndex] instanceof Integer)) {
+                    continue;
+                }
+                RPCInputStream stream = getIncomingStream(-(Integer) args[parameterIndex]);
+                stream.claim();
+                releaseIncomingStream(stream);
+                streams.add(stream);
+                args[parameterIndex] = method.method.getParameterTypes()[parameterIndex].equals(ReadableByteChannel.class) ? Channels.newChannel(stream) : stream;
+            }
+        }
+
+        try {
+            Object result = method.method.invoke(method.instance, args);
+            returnObject = new Object[]{method.resultStream && result != null ? openResult((Iterator<?>) result) : result};
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return new Object[]{null, RPCError.REMOTE_METHOD_INVOKE_ERROR.getValue()};
+        } finally {
+            if (streams != null) {
+                for (RPCInputStream stream : streams) {
+                    try {
+                        stream.close();
+                    } catch (IOException ex) {
+                        LOG.log(Level.INFO, null, ex);
+                    }
+                }
+            }
+        }
+
+        return returnObject;
+    }
+
+    /**
+     * The remote connection received the responds up to {@code respondedId}, the responds kept for the requests sent
+     * again are removed.
+     * @param sequentialId the sequential id, -1 for the requests not sequential
+     * @return null if succeed
+     */
+    protected RPCError acknowledge(int sequentialId, int respondedId) {
+        RPCIdSet _idSet = respondIdSet;
+        Map<Integer, RPCRequest> _respondList = respondList;
+        if (sequentialId == BULK_SEQUENTIAL_ID) {
+            _idSet = bulkRespondIdSet;
+            _respondList = bulkRespondList;
+        } else if (sequentialId != -1) {
+            if (sequentialId < 0 || sequentialId >= _sequentialRespondIdSet.length || _sequentialRespondIdSet[sequentialId] == null) {
+                return RPCError.REMOTE_CONNECTION_SEQUENTIAL_ID_NOT_REGISTERED;
+            }
+            _idSet = _sequentialRespondIdSet[sequentialId];
+            _respondList = _sequentialRespondList[sequentialId];
+        }
+
+        synchronized (_idSet) {
+            int distance = respondedId - _idSet.respondedId;
+            if (distance < -536870911) {
+                distance += 1073741823;
+            } else if (distance > 536870911) {
+                distance -= 1073741823;
+            }
+            if (distance <= 0) {
+                // carried by a packet sent again or delivered out of order
+                return null;
+            }
+            // from the last one acknowledged, the first id is not removed before the first acknowledgement
+            for (int i = _idSet.respondedId, count = 0; count <= distance; count++) {
+                RPCRequest rpcRequest = _respondList.remove(i);
+                if (rpcRequest != null && !rpcRequest.is(RPCRequest.RESPONDED)) {
+                    // cancelled by the remote connection
+                    rpcRequest.set(RPCRequest.CANCELLED);
+                    if (rpcRequest.waiter != null) {
+                        rpcRequest.waiter.interrupt();
+                    }
+                }
+                requestPool.release(rpcRequest, RPCRequest.OWNED_BY_LIST);
+                i = i >= 1073741823 ? 1 : i + 1;
+            }
+            _idSet.respondedId = respondedId;
+
+            // the sequential requests cancelled are skipped
+            if (sequentialId != -1) {
+                distance = respondedId - _idSet.id;
+                if (distance < -536870911) {
+                    distance += 1073741823;
+                } else if (distance > 536870911) {
+                    distance -= 1073741823;
+                }
+                if (distance >= 0) {
+                    _idSet.id = respondedId + 1;
+                    if (_idSet.id > 1073741823) {
+                        _idSet.id = 1;
+                    }
+                    invokeSequential(_idSet, _respondList);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take the largest responded ids to attach to the packet being written: those advanced since sent last time, and
+     * those not known to be received sent longer than {@link RPCRegistry#respondedIdSendInterval} ago in case the packet
+     * carrying them was lost.
+     * @param packetData the packet they are attached to, see {@link #acknowledgementsReceived(Object)}
+     * @return {sequentialId, respondedId, ...} or null, see {@link AcknowledgementSource}
+     */
+    protected int[] pollAcknowledgements(byte[] packetData) {
+        long currentTime = System.currentTimeMillis();
+        int[] acknowledgements = null;
+        int acknowledgementsLength = 0;
+        synchronized (acknowledgedIdSets) {
+            for (RPCIdSet _idSet : acknowledgedIdSets) {
+                int lastRespondReceivedId = _idSet.respondedId - 1;
+                if (lastRespondReceivedId == _idSet.lastRespondId
+                        && (lastRespondReceivedId == _idSet.deliveredRespondId || currentTime - _idSet.lastRespondIdSendTime <= rpcRegistry.respondedIdSendInterval)) {
+                    continue;
+                }
+                if (acknowledgements == null) {
+                    acknowledgements = new int[acknowledgedIdSets.length * 4];
+                }
+                if (lastRespondReceivedId < _idSet.lastRespondId) {
+                    // the id wrapped around
+                    acknowledgements[acknowledgementsLength++] = _idSet.sequentialId;
+                    acknowledgements[acknowledgementsLength++] = 1073741823;
+                }
+                if (lastRespondReceivedId > 0) {
+                    acknowledgements[acknowledgementsLength++] = _idSet.sequentialId;
+                    acknowledgements[acknowledgementsLength++] = lastRespondReceivedId;
+                }
+                _idSet.lastRespondId = lastRespondReceivedId;
+                _idSet.lastRespondIdSendTime = currentTime;
+                _idSet.lastRespondIdPacket = packetData;
+            }
+        }
+        return acknowledgements == null ? null : Arrays.copyOf(acknowledgements, acknowledgementsLength);
+    }
+
+    /**
+     * The request packet sent once is responded, so the remote connection received the responded ids attached to it,
+     * they are not sent again.
+     */
+    protected void acknowledgementsReceived(Object packetData) {
+        synchronized (acknowledgedIdSets) {
+            for (RPCIdSet _idSet : acknowledgedIdSets) {
+                if (_idSet.lastRespondIdPacket == packetData) {
+                    _idSet.deliveredRespondId = _idSet.lastRespondId;
+                    _idSet.lastRespondIdPacket = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The responded ids not carried by other packets, because there are too many of them not sent or they are not known
+     * to be received for {@link RPCRegistry#respondedIdSendInterval}, a packet should be sent to carry them.
+     */
+    protected boolean isAcknowledgementDue(long currentTime) {
+        synchronized (acknowledgedIdSets) {
+            for (RPCIdSet _idSet : acknowledgedIdSets) {
+                int lastRespondReceivedId = _idSet.respondedId - 1;
+                if (lastRespondReceivedId < _idSet.lastRespondId || lastRespondReceivedId - _idSet.lastRespondId > 100) {
+                    return true;
+                }
+                // the control messages wait for the next packet, the heart beat sent to carry the others is one of them
+                if (_idSet.sequentialId != 0 && lastRespondReceivedId != _idSet.deliveredRespondId
+                        && currentTime - _idSet.lastRespondIdSendTime > rpcRegistry.respondedIdSendInterval) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tell the remote connection the requests received but not responded yet, so that it does not send them again
+     * while they are being processed. See {@link RPCControl#SELECTIVE_ACK}.
+     */
+    protected void sendSelectiveAcknowledgements() throws IOException {
+        sendSelectiveAcknowledgement(-1, respondIdSet, respondList);
+        sendSelectiveAcknowledgement(BULK_SEQUENTIAL_ID, bulkRespondIdSet, bulkRespondList);
+        for (int i = 0, iEnd = _sequentialRespondList.length; i < iEnd; i++) {
+            if (_sequentialRespondList[i] != null) {
+                sendSelectiveAcknowledgement(i, _sequentialRespondIdSet[i], _sequentialRespondList[i]);
+            }
+        }
+    }
+
+    /**
+     * Send the requests held if they changed since sent last time, or again after the retry timeout if they are still
+     * held, so the remote connection does not give up a request taking longer than its retries. It is not a request,
+     * it is not sent again if lost, the requests are sent again by the remote connection as usual then.
+     */
+    protected void sendSelectiveAcknowledgement(int sequentialId, RPCIdSet _idSet, Map<Integer, RPCRequest> _respondList) throws IOException {
+        List<Integer> distances = new ArrayList<Integer>();
+        List<Integer> requestIds = new ArrayList<Integer>();
+        synchronized (_idSet) {
+            // the ids wrap around, ordered by the distance from the last one acknowledged, or the next one to invoke
+            int referenceId = sequentialId == -1 ? _idSet.respondedId : _idSet.id;
+            synchronized (_respondList) {
+                for (RPCRequest request : _respondList.values()) {
+                    if (!request.is(RPCRequest.RESPONDED)) {
+                        int distance = request.requestId - referenceId;
+                        if (distance < -536870911) {
+                            distance += 1073741823;
+                        } else if (distance > 536870911) {
+                            distance -= 1073741823;
+                        }
+                        distances.add(distance);
+                    }
+                }
+            }
+            Collections.sort(distances);
+            for (int distance : distances) {
+                int requestId = referenceId + distance;
+                if (requestId > 1073741823) {
+                    requestId -= 1073741823;
+                } else if (requestId < 1) {
+                    requestId += 1073741823;
+                }
+                requestIds.add(requestId);
+            }
+            long currentTime = System.currentTimeMillis();
+            if (requestIds.equals(_idSet.selectivelyAcknowledgedIds)
+                    && (requestIds.isEmpty() || currentTime - _idSet.selectivelyAcknowledgedTime < roundTripTimer.getTimeout())) {
+                return;
+            }
+            _idSet.selectivelyAcknowledgedIds = requestIds;
+            _idSet.selectivelyAcknowledgedTime = currentTime;
+        }
+        if (distances.isEmpty()) {
+            return;
+        }
+
+        // the requests beyond the bitmap are sent again as usual
+        int baseId = requestIds.get(0);
+        int baseDistance = distances.get(0);
+        byte[] bitmap = new byte[Math.min(((distances.get(distances.size() - 1) - baseDistance) >> 3) + 1, 1024)];
+        for (int distance : distances) {
+            int offset = distance - baseDistance;
+            if (offset >= bitmap.length * 8) {
+                break;
+            }
+            bitmap[offset >> 3] |= 1 << (offset & 7);
+        }
+        try {
+            outputScheduler.write(packetizer.pack(false, 0, baseId, Arrays.asList(new Object[]{RPCControl.SELECTIVE_ACK.getValue(), sequentialId, baseId, bitmap})), RPCPriority.CONTROL);
+        } catch (UnsupportedDataTypeException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Handle the {@link RPCControl#SELECTIVE_ACK} received, it is not a request.
+     * @return false if the content is not a selective acknowledgement
+     */
+    protected boolean selectiveAcknowledgementReceived(Object content) {
+        if (!(content instanceof List) || ((List<?>) content).size() != 4) {
+            return false;
+        }
+        List<?> contentList = (List<?>) content;
+        if (!(contentList.get(0) instanceof Short) || (Short) contentList.get(0) != RPCControl.SELECTIVE_ACK.getValue()) {
+            return false;
+        }
+        if (!(contentList.get(1) instanceof Integer) || !(contentList.get(2) instanceof Integer) || !(contentList.get(3) instanceof byte[])) {
+            LOG.log(Level.SEVERE, "incorrect selective acknowledgement format");
+            return true;
+        }
+        selectivelyAcknowledged((Integer) contentList.get(1), (Integer) contentList.get(2), (byte[]) contentList.get(3));
+        return true;
+    }
+
+    /**
+     * The requests in the bitmap are received by the remote connection, restart their retry timeout and clear their
+     * retries, they are not given up while the remote connection keeps acknowledging them. The requests not in the
+     * bitmap, and those responded by the remote connection but the respond is lost, are still sent again after the
+     * timeout.
+     */
+    protected void selectivelyAcknowledged(int sequentialId, int baseId, byte[] bitmap) {
+        Map<Integer, RPCRequest> _requestList = requestList;
+        if (sequentialId == BULK_SEQUENTIAL_ID) {
+            _requestList = bulkRequestList;
+        } else if (sequentialId != -1) {
+            if (sequentialId < 0 || sequentialId >= _sequentialRequestList.length || _sequentialRequestList[sequentialId] == null) {
+                return;
+            }
+            _requestList = _sequentialRequestList[sequentialId];
+        }
+
+        int currentTime = (int) System.currentTimeMillis();
+        synchronized (_requestList) {
+            for (int i = 0, iEnd = bitmap.length * 8; i < iEnd; i++) {
+                if ((bitmap[i >> 3] & (1 << (i & 7))) == 0) {
+                    continue;
+                }
+                int requestId = baseId + i;
+                if (requestId > 1073741823) {
+                    requestId -= 1073741823;
+                }
+                RPCRequest request = _requestList.get(requestId);
+                if (request != null) {
+                    request.time = currentTime;
+                    request.clearRetries();
+                }
+            }
+        }
+    }
+
+    protected Object[] invokeControl(short code, Object[] args) {
+        RPCControl control = RPCControl.getRPCControl(code);
+        if (control == null) {
+            LOG.log(Level.SEVERE, null, new Exception(String.format("control code not found, code: %1$d", code)));
+            return new Object[]{null, RPCError.REMOTE_METHOD_INVOKE_ERROR.getValue()};
+        }
+
+        // the stream id in the control message is the one on the sender side
+        int streamId = -(Integer) args[1];
+        RPCInputStream stream;
+        RPCStreamSender sender;
+        RPCResultIterator<?> iterator;
+        RPCResultSender resultSender;
+        CodecProvider _codecProvider;
+        switch (control) {
+            case STREAM_DATA:
+                if ((stream = findIncomingStream(streamId)) != null && args.length == 3 && args[2] instanceof byte[]) {
+                    stream.offer((byte[]) args[2]);
+                }
+                break;
+            case STREAM_END:
+                if ((stream = findIncomingStream(streamId)) != null) {
+                    stream.end();
+                    releaseIncomingStream(stream);
+                }
+                break;
+            case STREAM_CREDIT:
+                if ((sender = outgoingStreams.get(streamId)) != null && args.length == 3 && args[2] instanceof Integer) {
+                    sender.addCredit((Integer) args[2]);
+                }
+                break;
+            case STREAM_CLOSE:
+                if ((sender = outgoingStreams.get(streamId)) != null) {
+                    sender.close();
+                } else if ((stream = findIncomingStream(streamId)) != null) {
+                    stream.abort("Stream aborted by remote connection");
+                    releaseIncomingStream(stream);
+                }
+                break;
+            case CODEC_OFFER:
+                if (args.length == 3 && args[2] instanceof Integer) {
+                    _codecProvider = CodecFactory.getCodecProvider((Integer) args[1]);
+                    int version = (Integer) args[2];
+                    // the parser of the default codec reads all its versions
+                    boolean accept = _codecProvider != null && (_codecProvider.getVersion() == version
+                            || (_codecProvider instanceof DefaultCodecProvider && ((DefaultCodecProvider) _codecProvider).isSupported(version)));
+                    try {
+                        sendControl(accept ? RPCControl.CODEC_ACCEPT : RPCControl.CODEC_REJECT, args[1], args[2]);
+                    } catch (IOException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+                break;
+            case CODEC_ACCEPT:
+                _codecProvider = codecProvider;
+                if (args.length == 3 && args[1].equals(_codecProvider.getId()) && args[2].equals(_codecProvider.getVersion())) {
+                    packetizer.setCodecProvider(_codecProvider);
+                }
+                break;
+            case CODEC_REJECT:
+                LOG.log(Level.SEVERE, "codec rejected by remote connection, id: {0}, version: {1}", new Object[]{args[1], args.length == 3 ? args[2] : null});
+                break;
+            case RESULT_ITEMS:
+                if ((iterator = findIncomingResult(streamId)) != null && args.length == 3 && args[2] instanceof List) {
+                    iterator.offer((List<?>) args[2]);
+                }
+                break;
+            case RESULT_END:
+                if ((iterator = findIncomingResult(streamId)) != null) {
+                    iterator.end();
+                    releaseIncomingResult(iterator);
+                }
+                break;
+            case RESULT_CREDIT:
+                if ((resultSender = outgoingResults.get(streamId)) != null && args.length == 3 && args[2] instanceof Integer) {
+                    resultSender.addCredit((Integer) args[2]);
+                }
+                break;
+            case RESULT_CLOSE:
+                if ((resultSender = outgoingResults.get(streamId)) != null) {
+                    resultSender.close();
+                } else if ((iterator = findIncomingResult(streamId)) != null) {
+                    iterator.abort("Result stream aborted by remote connection");
+                    releaseIncomingResult(iterator);
+                }
+                break;
+            case CANCEL:
+                if (args.length == 3 && args[1] instanceof Integer && args[2] instanceof Integer) {
+                    cancelled((Integer) args[1], (Integer) args[2]);
+                }
+                break;
+            case SELECTIVE_ACK:
+                if (args.length == 4 && args[2] instanceof Integer && args[3] instanceof byte[]) {
+                    selectivelyAcknowledged((Integer) args[1], (Integer) args[2], (byte[]) args[3]);
+                }
+                break;
+            case CACHE_INVALIDATE:
+                invalidateCache((Integer) args[1]);
+                break;
+        }
+
+        return new Object[]{null};
+    }
+
+    public <R> R getRemote(Class<R> objClass) {
+        return objClass.cast(remoteImplementations.get(objClass));
+    }
+
+    public <L> void bind(Class<L> objectClass, L instance) {
+        Integer methodRegistryIndex;
+        if ((methodRegistryIndex = registeredLocalClasses.get(objectClass)) == null) {
+            LOG.log(Level.SEVERE, "class {0} not registered", objectClass.getName());
+            return;
+        }
+
+        //for (int i = methodRegistryIndex + objectClass.getDeclaredMethods().length - 1; i >= methodRegistryIndex; i--) {
+        int end = methodRegistryIndex + objectClass.getDeclaredMethods().length;
+        for (int i = methodRegistryIndex; i < end; i++) {
+            RPCRegistryMethod method = localMethodRegistry.get(i);
+            method.instance = instance;
+        }
+    }
+
+    public void unbind(Class<?> objectClass) {
+        Integer methodRegistryIndex;
+        if ((methodRegistryIndex = registeredLocalClasses.get(objectClass)) == null) {
+            LOG.log(Level.SEVERE, "class {0} not registered", objectClass.getName());
+            return;
+        }
+
+        int end = methodRegistryIndex + objectClass.getDeclaredMethods().length;
+        for (int i = methodRegistryIndex; i < end; i++) {
+            RPCRegistryMethod method = localMethodRegistry.get(i);
+            method.instance = null;
+        }
+    }
+
+    @Override
+    public void feed(byte[] b, int offset, int length) {
+        depacketizer.unpack(b, offset, length);
+    }
+
+    protected static class RPCIdSet {
+
+        protected static final AtomicIntegerFieldUpdater<RPCIdSet> idUpdater = AtomicIntegerFieldUpdater.newUpdater(RPCIdSet.class, "id");
+        protected final int sequentialId;
+        /**
+         * The next request id to allocate, or the next request id expected to invoke on the respond side.
+         */
+        protected volatile int id;
+        /**
+         * Set after the request id wrapped around, the ids allocated after that may still be used by the requests not
+         * responded yet.
+         */
+        protected volatile boolean wrapped;
+        /**
+         * Read by the threads packing the packets for the acknowledgements, it only increase until wrapped around.
+         */
+        protected volatile int respondedId;
+        //
+        /**
+         * The largest responded id sent to the remote connection, the time and the packet it is sent with.
+         */
+        protected int lastRespondId;
+        protected long lastRespondIdSendTime;
+        protected Object lastRespondIdPacket;
+        /**
+         * The requests held by the respond side sent in the last {@link RPCControl#SELECTIVE_ACK}, in order, and the time
+         * it is sent.
+         */
+        protected List<Integer> selectivelyAcknowledgedIds;
+        protected long selectivelyAcknowledgedTime;
+        /**
+         * The largest responded id known to be received by the remote connection.
+         */
+        protected int deliveredRespondId;
 
         protected RPCIdSet(int sequentialId) {
             this.sequentialId = sequentialId;
             id = 1;
+            wrapped = false;
             respondedId = 1;
 
             lastRespondId = 0;
             lastRespondIdSendTime = System.currentTimeMillis();
+            lastRespondIdPacket = null;
+            deliveredRespondId = 0;
+            selectivelyAcknowledgedIds = null;
+            selectivelyAcknowledgedTime = 0;
+        }
+
+        /**
+         * Allocate a request id without locking. The {@code requestList} is only checked for the id still in use after
+         * the id wrapped around at 1073741823.
+         */
+        protected int nextId(Map<Integer, RPCRequest> requestList) {
+            while (true) {
+                int current = id;
+                int next = current >= 1073741823 ? 1 : current + 1;
+                if (!idUpdater.compareAndSet(this, current, next)) {
+                    continue;
+                }
+                if (next == 1) {
+                    wrapped = true;
+                }
+                if (current > 0 && (!wrapped || !requestList.containsKey(current))) {
+                    return current;
+                }
+            }
         }
     }
 
-    protected static class RPCRequest {
+    /**
+     * The request type id, the codec and the arguments generated by it of a call to a {@link rpc.annotation.Idempotent}
+     * or {@link rpc.annotation.Cached} method, the arguments are also the content of the request sent.
+     */
+    protected static class RPCCallKey {
 
         protected final int requestTypeId;
-        protected final int requestId;
+        protected final int codecId;
+        protected final byte[] arguments;
+        protected final int hashCode;
+
+        protected RPCCallKey(int requestTypeId, int codecId, byte[] arguments) {
+            this.requestTypeId = requestTypeId;
+            this.codecId = codecId;
+            this.arguments = arguments;
+            hashCode = 31 * (31 * requestTypeId + codecId) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RPCCallKey)) {
+                return false;
+            }
+            RPCCallKey key = (RPCCallKey) obj;
+            return requestTypeId == key.requestTypeId && codecId == key.codecId && Arrays.equals(arguments, key.arguments);
+        }
+    }
+
+    /**
+     * A call in flight to a {@link rpc.annotation.Idempotent} method, the calls with the same arguments wait for its
+     * result.
+     */
+    protected static class RPCCoalescedCall {
+
+        protected boolean completed;
+        protected Object returnObject;
+        protected Throwable failure;
+
+        protected RPCCoalescedCall() {
+            completed = false;
+            returnObject = null;
+            failure = null;
+        }
+
+        protected synchronized void complete(Object returnObject, Throwable failure) {
+            this.returnObject = returnObject;
+            this.failure = failure;
+            completed = true;
+            notifyAll();
+        }
+
+        protected synchronized Object await() throws IOException, InvocationFailedException {
+            while (!completed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // the call in flight is not cancelled, it is shared by the other threads
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Thread interruptted when waiting for respond");
+                }
+            }
+            if (failure instanceof IOException) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            if (failure instanceof InvocationFailedException) {
+                throw new InvocationFailedException(failure.getMessage(), failure);
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            return returnObject;
+        }
+    }
+
+    /**
+     * A packet put together from {@link RPCControl#FRAGMENT}.
+     */
+    protected static class RPCFragments {
+
+        protected final byte[] packetData;
+        /**
+         * The length received, the offset of the next fragment.
+         */
+        protected int received;
+        /**
+         * The time the last fragment received.
+         */
         protected long time;
-        protected byte[] packetData;
-        protected Object requestArgs;
-        protected Object respond;
-        protected boolean responded;
-        protected boolean requestFailed;
-        protected boolean notified;
 
-        protected RPCRequest(int requestId, long time, byte[] packetData) {
-            this(0, requestId, time, packetData, null, null);
+        protected RPCFragments(int length) {
+            packetData = new byte[length];
+            received = 0;
+            time = System.currentTimeMillis();
         }
+    }
 
-        protected RPCRequest(int requestTypeId, int requestId, long time, Object requestArgs, Object respond) {
-            this(requestTypeId, requestId, time, null, requestArgs, respond);
+    /**
+     * The requests and responds batched by a thread, see {@link RPC#beginBatch()}.
+     */
+    protected static class RPCBatch {
+
+        protected int depth;
+        protected final List<Packet> packets;
+        protected final List<RPCRequest> requests;
+
+        protected RPCBatch() {
+            depth = 0;
+            packets = new ArrayList<Packet>();
+            requests = new ArrayList<RPCRequest>();
         }
+    }
 
-        private RPCRequest(int requestTypeId, int requestId, long time, byte[] packetData, Object requestArgs, Object respond) {
-            this.requestTypeId = requestTypeId;
-            this.requestId = requestId;
-            this.time = time;
-            this.packetData = packetData;
-            this.requestArgs = requestArgs;
-            this.respond = respond;
-            responded = false;
-            requestFailed = false;
-            notified = false;
+    /**
+     * The record of a request sent and waiting for the respond, or a request received and the respond of it.
+     * <p>
+     * The flags and the request type id are packed into {@link #state}, the single {@link #data} slot holds the packet
+     * sent (request), the arguments not invoked yet (sequential respond) and then the respond. The thread waiting for
+     * the respond is parked instead of waiting on the monitor.
+     * </p>
+     * <p>
+     * The record is obtained from the {@link RPCRequestPool} with its owners: the request/respond list always, and the
+     * thread that blocks for the respond or invokes the method later. Every owner release it once when done with it
+     * (the list after removing it), the record is recycled after the last owner released it.
+     * </p>
+     */
+    protected static class RPCRequest {
+
+        protected static final AtomicIntegerFieldUpdater<RPCRequest> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(RPCRequest.class, "state");
+        protected static final int RESPONDED = 1;
+        protected static final int FAILED = 2;
+        protected static final int NOTIFIED = 4;
+        protected static final int OWNED_BY_LIST = 8;
+        protected static final int OWNED_BY_CALLER = 16;
+        protected static final int OWNER_MASK = OWNED_BY_LIST | OWNED_BY_CALLER;
+        /**
+         * The request is sent again or its retry timeout is restarted, its respond is not sampled for the round trip
+         * time.
+         */
+        protected static final int RESENT = 32;
+        /**
+         * The request is given up after the retries, it is marked {@link #RESPONDED} too to let the request list
+         * proceed.
+         */
+        protected static final int EXPIRED = 64;
+        /**
+         * The request is cancelled, it is marked {@link #RESPONDED} too. On the remote side, the method is not invoked
+         * or is interrupted.
+         */
+        protected static final int CANCELLED = 128;
+        protected static final int RETRY_SHIFT = 8;
+        protected static final int MAX_RETRIES = 15;
+        /**
+         * The class the packet of the request is first written in, the ordinal of the {@link RPCPriority} + 1, 0 if
+         * it is not written yet. It is written again in the same class.
+         */
+        protected static final int PRIORITY_SHIFT = 12;
+        protected static final int PRIORITY_MASK = 3;
+        protected static final RPCPriority[] priorities = RPCPriority.values();
+        protected static final int FLAG_BITS = 14;
+        //
+        protected int requestId;
+        /**
+         * The flags, the number of retries and the priority in the lowest {@link #FLAG_BITS} bits, the request type id
+         * above.
+         */
+        protected volatile int state;
+        /**
+         * The last send/receive time, {@link System#currentTimeMillis()} truncated to int, compare by subtraction.
+         */
+        protected int time;
+        protected Object data;
+        protected volatile Thread waiter;
+
+        protected RPCRequest() {
+        }
+
+        protected int getRequestTypeId() {
+            return state >>> FLAG_BITS;
+        }
+
+        protected boolean is(int flag) {
+            return (state & flag) != 0;
+        }
+
+        protected int getRetries() {
+            return (state >>> RETRY_SHIFT) & MAX_RETRIES;
+        }
+
+        protected static int priorityFlags(RPCPriority priority) {
+            return (priority.ordinal() + 1) << PRIORITY_SHIFT;
+        }
+
+        /**
+         * @return the class the packet is first written in, null if it is not written yet
+         */
+        protected RPCPriority getPriority() {
+            int priority = (state >>> PRIORITY_SHIFT) & PRIORITY_MASK;
+            return priority == 0 ? null : priorities[priority - 1];
+        }
+
+        /**
+         * Set the {@code flags} and {@link #RESPONDED} if it is not responded yet.
+         * @return false if it is responded already
+         */
+        protected boolean setIfNotResponded(int flags) {
+            while (true) {
+                int current = state;
+                if ((current & RESPONDED) != 0) {
+                    return false;
+                }
+                if (stateUpdater.compareAndSet(this, current, current | flags | RESPONDED)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Count a retry (up to {@link #MAX_RETRIES}) and mark it {@link #RESENT}.
+         */
+        protected void addRetry() {
+            while (true) {
+                int current = state;
+                int retries = Math.min(((current >>> RETRY_SHIFT) & MAX_RETRIES) + 1, MAX_RETRIES);
+                int next = (current & ~(MAX_RETRIES << RETRY_SHIFT)) | (retries << RETRY_SHIFT) | RESENT;
+                if (stateUpdater.compareAndSet(this, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Clear the retries counted and mark it {@link #RESENT}, the remote connection tells it is holding the request.
+         */
+        protected void clearRetries() {
+            while (true) {
+                int current = state;
+                int next = (current & ~(MAX_RETRIES << RETRY_SHIFT)) | RESENT;
+                if (stateUpdater.compareAndSet(this, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        protected void set(int flags) {
+            while (true) {
+                int current = state;
+                if (stateUpdater.compareAndSet(this, current, current | flags)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Wake up the thread waiting for the respond, if any.
+         */
+        protected void notifyWaiter() {
+            set(NOTIFIED);
+            Thread _waiter = waiter;
+            if (_waiter != null) {
+                LockSupport.unpark(_waiter);
+            }
+        }
+
+        /**
+         * @return true if it is the last owner
+         */
+        protected boolean release(int owner) {
+            while (true) {
+                int current = state;
+                int next = current & ~owner;
+                if (stateUpdater.compareAndSet(this, current, next)) {
+                    return (current & owner) != 0 && (next & OWNER_MASK) == 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * A bounded stack of recycled {@link RPCRequest}s, new records are created when it is empty and the released
+     * records are dropped when it is full.
+     */
+    protected static class RPCRequestPool {
+
+        protected final RPCRequest[] pool;
+        protected int size;
+
+        protected RPCRequestPool(int capacity) {
+            pool = new RPCRequest[capacity];
+            size = 0;
+        }
+
+        protected RPCRequest obtain(int requestTypeId, int requestId, int flags, Object data) {
+            RPCRequest request = null;
+            synchronized (this) {
+                if (size > 0) {
+                    request = pool[--size];
+                    pool[size] = null;
+                }
+            }
+            if (request == null) {
+                request = new RPCRequest();
+            }
+            request.requestId = requestId;
+            request.time = (int) System.currentTimeMillis();
+            request.data = data;
+            request.waiter = null;
+            request.state = (requestTypeId << RPCRequest.FLAG_BITS) | flags;
+            return request;
+        }
+
+        /**
+         * Release the {@code request} by the {@code owner}, recycle it if it is the last owner.
+         * @param request the request, null is ignored
+         */
+        protected void release(RPCRequest request, int owner) {
+            if (request == null || !request.release(owner)) {
+                return;
+            }
+            request.data = null;
+            request.waiter = null;
+            synchronized (this) {
+                if (size < pool.length) {
+                    pool[size++] = request;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,112 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+/**
+ * Control message carried by request type id 0, the arguments are {code, ...}.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public enum RPCControl {
+
+    /**
+     * {code, streamId, byte[] chunk}
+     */
+    STREAM_DATA((short) 0),
+    /**
+     * {code, streamId}, the stream finished normally, no more data for this stream id.
+     */
+    STREAM_END((short) 1),
+    /**
+     * {code, streamId, credits}, the receiver consumed some chunks and allow the sender to send more.
+     */
+    STREAM_CREDIT((short) 2),
+    /**
+     * {code, streamId}, the stream is aborted, sent by the receiver when it stop reading or by the sender when it failed.
+     */
+    STREAM_CLOSE((short) 3),
+    /**
+     * {code, codecId, codecVersion}, ask the receiver whether it can parse the packets generated by the codec.
+     */
+    CODEC_OFFER((short) 4),
+    /**
+     * {code, codecId, codecVersion}, the receiver can parse the codec, the sender switch to it after receiving this.
+     */
+    CODEC_ACCEPT((short) 5),
+    /**
+     * {code, codecId, codecVersion}, the receiver doesn't have the codec or the version doesn't match.
+     */
+    CODEC_REJECT((short) 6),
+    /**
+     * {code, sequentialId, baseId, byte[] bitmap}, the requests received but not responded yet, bit n of the bitmap
+     * (bit n % 8 of byte n / 8) is request id baseId + n, wrapped around after 1073741823. The sequential id is -1 for
+     * the requests not sequential. It is not a request, the request id is the base id, and it is not sent again if
+     * lost.
+     */
+    SELECTIVE_ACK((short) 7),
+    /**
+     * {code, requestTypeId, requestId}, the request is cancelled, the receiver drop it if it is not invoked yet and
+     * interrupt the thread invoking it otherwise.
+     */
+    CANCEL((short) 8),
+    /**
+     * {code, resultId, List items}, a batch of the items of a method returning {@link java.util.Iterator}.
+     */
+    RESULT_ITEMS((short) 9),
+    /**
+     * {code, resultId}, all the items are sent.
+     */
+    RESULT_END((short) 10),
+    /**
+     * {code, resultId, credits}, the receiver consumed some batches and allow the sender to send more.
+     */
+    RESULT_CREDIT((short) 11),
+    /**
+     * {code, resultId}, the result is aborted, sent by the receiver when it stop iterating or by the sender when it
+     * failed.
+     */
+    RESULT_CLOSE((short) 12),
+    /**
+     * {code, fragmentId, offset, totalLength, byte[] piece}, a piece of a packet larger than the fragment size, the
+     * packet is parsed after all pieces received, see {@link RPCOutputScheduler}. It is not a request, the request id
+     * is the fragment id.
+     */
+    FRAGMENT((short) 13),
+    /**
+     * {code, requestTypeId}, the results of the {@link rpc.annotation.Cached} method cached by the receiver are
+     * stale, 0 for all the methods.
+     */
+    CACHE_INVALIDATE((short) 14);
+    protected final short value;
+
+    RPCControl(short value) {
+        this.value = value;
+    }
+
+    public short getValue() {
+        return value;
+    }
+
+    public static RPCControl getRPCControl(short value) {
+        RPCControl[] controls = RPCControl.values();
+        for (RPCControl control : controls) {
+            if (control.getValue() == value) {
+                return control;
+            }
+        }
+        return null;
+    }
+}
@@ -25,7 +25,8 @@ public enum RPCError {
     REMOTE_CONNECTION_METHOD_INSTANCE_NOT_REGISTERED((short) 1),
     REMOTE_CONNECTION_SEQUENTIAL_ID_NOT_REGISTERED((short) 2),
     REMOTE_METHOD_INVOKE_ERROR((short) 3),
-    RESPOND_ID_UPDATE_FAILED((short) 4);
+    RESPOND_ID_UPDATE_FAILED((short) 4),
+    REQUEST_CANCELLED((short) 5);
     protected final short value;
 
     RPCError(short value) {
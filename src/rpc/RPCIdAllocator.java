@@ -0,0 +1,46 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import rpc.RPC.RPCIdSet;
+import rpc.RPC.RPCRequest;
+
+/**
+ * The request id allocation of {@link RPC} on its own, for measuring it outside the package.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCIdAllocator {
+
+    protected final RPCIdSet idSet;
+    protected final Map<Integer, RPCRequest> requestList;
+
+    public RPCIdAllocator() {
+        idSet = new RPCIdSet(-1);
+        requestList = Collections.synchronizedMap(new HashMap<Integer, RPCRequest>());
+    }
+
+    /**
+     * Allocate the next request id the way {@link RPC#send(int, Object[], boolean, boolean, boolean)} does.
+     * @return the request id
+     */
+    public int nextId() {
+        return idSet.nextId(requestList);
+    }
+}
@@ -0,0 +1,193 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * The receiving end of a stream argument, the chunks are sent by the remote {@link RPCStreamSender} through
+ * {@link RPCControl#STREAM_DATA} and credits are granted back after every {@code creditBatchSize} chunks consumed.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCInputStream extends InputStream {
+
+    protected final RPC<?> rpc;
+    protected final int streamId;
+    protected final int creditBatchSize;
+    //
+    protected final LinkedList<byte[]> chunks;
+    protected byte[] chunk;
+    protected int chunkOffset;
+    protected int consumedChunks;
+    protected final byte[] singleByte;
+    //
+    protected boolean claimed;
+    protected boolean ended;
+    protected boolean closed;
+    protected IOException error;
+
+    protected RPCInputStream(RPC<?> rpc, int streamId, int creditBatchSize) {
+        this.rpc = rpc;
+        this.streamId = streamId;
+        this.creditBatchSize = Math.max(1, creditBatchSize);
+
+        chunks = new LinkedList<byte[]>();
+        chunk = null;
+        chunkOffset = 0;
+        consumedChunks = 0;
+        singleByte = new byte[1];
+
+        claimed = false;
+        ended = false;
+        closed = false;
+        error = null;
+    }
+
+    protected synchronized void offer(byte[] data) {
+        if (closed || ended) {
+            return;
+        }
+        chunks.add(data);
+        notifyAll();
+    }
+
+    protected synchronized void end() {
+        ended = true;
+        // released before the reader can see the end, the invocation may return right after
+        rpc.releaseIncomingStream(this);
+        notifyAll();
+    }
+
+    protected synchronized void abort(String message) {
+        if (error == null) {
+            error = new IOException(message);
+        }
+        notifyAll();
+    }
+
+    protected synchronized void claim() {
+        claimed = true;
+    }
+
+    /**
+     * The stream can be removed from the stream list of {@link RPC} when it is taken by the invocation and no more
+     * control message will come for it.
+     */
+    protected synchronized boolean isReleasable() {
+        return claimed && (ended || error != null);
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (singleByte) {
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int read;
+        int credit = 0;
+        synchronized (this) {
+            while (chunk == null) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                byte[] next = chunks.poll();
+                if (next != null) {
+                    if (next.length == 0) {
+                        consumedChunks++;
+                        continue;
+                    }
+                    chunk = next;
+                    chunkOffset = 0;
+                    break;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                if (ended) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Thread interruptted when waiting for stream data");
+                }
+            }
+
+            read = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, read);
+            chunkOffset += read;
+            if (chunkOffset == chunk.length) {
+                chunk = null;
+                consumedChunks++;
+            }
+            if (consumedChunks >= creditBatchSize && !ended && error == null) {
+                credit = consumedChunks;
+                consumedChunks = 0;
+            }
+        }
+
+        if (credit > 0) {
+            rpc.sendStreamControl(RPCControl.STREAM_CREDIT, streamId, credit);
+        }
+
+        return read;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        int available = chunk == null ? 0 : chunk.length - chunkOffset;
+        for (byte[] _chunk : chunks) {
+            available += _chunk.length;
+        }
+        return available;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            chunk = null;
+            notifyAll();
+            if (ended || error != null) {
+                return;
+            }
+        }
+        // tell the sender to stop, the stream is released when the sender acknowledge with STREAM_CLOSE
+        rpc.sendStreamControl(RPCControl.STREAM_CLOSE, streamId, null);
+    }
+}
@@ -0,0 +1,224 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import rpc.codec.exception.UnsupportedDataTypeException;
+import rpc.transport.RemoteOutput;
+
+/**
+ * Queue the packets written by the {@link RPC} by {@link RPCPriority} and write them to the {@link RemoteOutput} one
+ * by one, the higher class first. The packets larger than the fragment size are split into
+ * {@link RPCControl#FRAGMENT}, so a heart beat or an acknowledgement waits for at most one fragment of a large
+ * transfer.
+ * <p>There is no writer thread, the thread that find the scheduler idle write the queue in order until its own packet
+ * is written, and then leave the rest to the threads waiting for their packets. So a caller writes only the packets
+ * of a higher or the same class queued before its own, and is the one to get the error of writing its packet.</p>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCOutputScheduler {
+
+    protected final RPC<?> rpc;
+    protected final int fragmentSize;
+    protected final List<LinkedList<RPCOutputFrame>> queues;
+    //
+    protected boolean writing;
+    protected int fragmentId;
+    protected long fragmentsWritten;
+
+    protected RPCOutputScheduler(RPC<?> rpc, int fragmentSize) {
+        this.rpc = rpc;
+        this.fragmentSize = Math.max(1, fragmentSize);
+
+        RPCPriority[] priorities = RPCPriority.values();
+        queues = new ArrayList<LinkedList<RPCOutputFrame>>(priorities.length);
+        for (int i = 0; i < priorities.length; i++) {
+            queues.add(new LinkedList<RPCOutputFrame>());
+        }
+        writing = false;
+        fragmentId = 0;
+        fragmentsWritten = 0;
+    }
+
+    /**
+     * Queue the packet and return after it is written, by this thread if the scheduler is idle, or by the thread
+     * writing otherwise.
+     * @throws IOException writing this packet failed
+     */
+    public void write(byte[] packetData, RPCPriority priority) throws IOException {
+        RPCOutputFrame frame = new RPCOutputFrame(packetData);
+        boolean interrupted = false;
+        boolean writer = false;
+        synchronized (this) {
+            queues.get(priority.ordinal()).add(frame);
+            while (writing && !frame.done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // the packet is in the queue already, it has to be written before return
+                    interrupted = true;
+                }
+            }
+            if (!frame.done) {
+                writing = true;
+                writer = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writer) {
+            try {
+                drain(frame);
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+        if (frame.exception != null) {
+            throw frame.exception;
+        }
+    }
+
+    /**
+     * Write the queue in order until {@code frame} is written, the packets queued after it are left to their owners.
+     */
+    protected void drain(RPCOutputFrame frame) {
+        while (!frame.done) {
+            RPCOutputFrame next = null;
+            int offset;
+            int length;
+            synchronized (this) {
+                for (LinkedList<RPCOutputFrame> queue : queues) {
+                    if (!queue.isEmpty()) {
+                        next = queue.getFirst();
+                        break;
+                    }
+                }
+                if (next == null) {
+                    // not reachable, the frame is in the queue until it is done
+                    break;
+                }
+                if (next.offset == 0 && next.packetData.length > fragmentSize) {
+                    // the fragment id is also the request id of the fragments, which is 1 to 1073741823
+                    fragmentId = fragmentId >= 1073741823 ? 1 : fragmentId + 1;
+                    next.fragmentId = fragmentId;
+                }
+                offset = next.offset;
+                length = Math.min(fragmentSize, next.packetData.length - offset);
+                next.offset += length;
+            }
+
+            IOException exception = null;
+            try {
+                RemoteOutput out = rpc.out;
+                if (out == null) {
+                    throw new IOException("RemoteOutput is not set");
+                }
+                // the acknowledgements are attached when written, not to the packet kept for sending again
+                out.write(rpc.packetizer.attachAcknowledgements(next.fragmentId == 0 ? next.packetData : fragment(next, offset, length)));
+            } catch (IOException ex) {
+                exception = ex;
+            }
+
+            synchronized (this) {
+                if (exception != null || next.offset >= next.packetData.length) {
+                    // the rest of a packet failed half way is dropped, the receiver drops the partial packet
+                    removeFirst(next);
+                    next.exception = exception;
+                    next.done = true;
+                    if (next != frame) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    protected void removeFirst(RPCOutputFrame frame) {
+        for (LinkedList<RPCOutputFrame> queue : queues) {
+            if (!queue.isEmpty() && queue.getFirst() == frame) {
+                queue.removeFirst();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pack a piece of the packet, the receiver put the pieces together and parse the packet after all pieces received.
+     * A lost fragment is not resent, the whole packet is resent with a new fragment id if it is a request not
+     * responded.
+     */
+    protected byte[] fragment(RPCOutputFrame frame, int offset, int length) throws IOException {
+        synchronized (this) {
+            fragmentsWritten++;
+        }
+        try {
+            return rpc.packetizer.pack(false, 0, frame.fragmentId, Arrays.asList(new Object[]{RPCControl.FRAGMENT.getValue(), frame.fragmentId, offset, frame.packetData.length, Arrays.copyOfRange(frame.packetData, offset, offset + length)}));
+        } catch (UnsupportedDataTypeException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public synchronized int getQueueSize(RPCPriority priority) {
+        return queues.get(priority.ordinal()).size();
+    }
+
+    /**
+     * Get the number of fragments written.
+     */
+    public synchronized long getFragmentsWritten() {
+        return fragmentsWritten;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    protected static class RPCOutputFrame {
+
+        protected final byte[] packetData;
+        /**
+         * The offset of the next fragment to write.
+         */
+        protected int offset;
+        /**
+         * 0 if the packet is written whole.
+         */
+        protected int fragmentId;
+        /**
+         * Written or failed, the owner throw the {@link #exception} if it is not null.
+         */
+        protected boolean done;
+        protected IOException exception;
+
+        protected RPCOutputFrame(byte[] packetData) {
+            this.packetData = packetData;
+            offset = 0;
+            fragmentId = 0;
+            done = false;
+            exception = null;
+        }
+    }
+}
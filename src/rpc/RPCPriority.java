@@ -0,0 +1,39 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+/**
+ * The class of the packets sent, see {@link RPCOutputScheduler}. The packets of a higher class are always written
+ * before the ones of a lower class waiting in the queue.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public enum RPCPriority {
+
+    /**
+     * Heart beats, acknowledgements, credits, cancellations and error responds.
+     */
+    CONTROL,
+    /**
+     * The requests and responds of the methods, the default.
+     */
+    INTERACTIVE,
+    /**
+     * Large transfers, including the chunks of the stream arguments and the items of the methods returning
+     * {@link java.util.Iterator}.
+     */
+    BULK
+}
@@ -17,26 +17,45 @@
 package rpc;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javassist.CannotCompileException;
 import javassist.NotFoundException;
-import rpc.RPC.RPCIdSet;
 import rpc.RPC.RPCRequest;
 import rpc.annotation.Blocking;
 import rpc.annotation.Broadcast;
+import rpc.annotation.Cached;
+import rpc.annotation.Idempotent;
 import rpc.annotation.NoRespond;
+import rpc.annotation.Priority;
 import rpc.annotation.RequestTypeId;
 import rpc.annotation.Sequential;
 import rpc.annotation.UserObject;
+import rpc.codec.CodecFactory;
+import rpc.codec.CodecProvider;
+import rpc.codec.DecoderPlan;
 import rpc.exception.ClassRegisteredException;
 import rpc.exception.ConditionConflictException;
+import rpc.packet.compress.Compressor;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -49,10 +68,18 @@ public class RPCRegistry {
     protected final Map<Class<?>, Integer> registeredLocalClasses;
     protected final Map<Class<?>, Integer> registeredRemoteClasses;
     //
-    protected Runnable retryTask;
-    protected Thread retryThread;
-    protected final List<RPC<?>> rpcList;
-    protected final Map<Object, RPC<?>> userObjectRPCMap;
+    /**
+     * The maintenance workers, each owns a shard of the connections, null if stopped.
+     */
+    protected volatile RPCRegistryWorker[] workers;
+    protected final AtomicInteger workerShardCounter;
+    /**
+     * The connections created and not closed, removed in O(1) and iterated without locking.
+     */
+    protected final Set<RPC<?>> rpcSet;
+    protected final ConcurrentMap<Object, RPC<?>> userObjectRPCMap;
+    protected final ConcurrentMap<String, RPCTopic> topics;
+    protected final ExecutorService executor;
     //
     protected int respondedIdSendInterval;
     //
@@ -60,6 +87,22 @@ public class RPCRegistry {
     protected int heartBeatExpiryInterval;
     //
     protected int workerInterval;
+    protected int workerCount;
+    //
+    protected int initialRetryTimeout;
+    protected int minRetryTimeout;
+    protected int maxRetryTimeout;
+    protected int maxRetries;
+    //
+    protected int streamChunkSize;
+    protected int streamWindowSize;
+    protected int resultBatchSize;
+    protected int fragmentSize;
+    //
+    protected CodecProvider codecProvider;
+    protected Compressor compressor;
+    protected int compressionThreshold;
+    protected int maxPacketSize;
 
     public RPCRegistry() {
         respondedIdSendInterval = 10000;
@@ -68,126 +111,42 @@ public class RPCRegistry {
         heartBeatExpiryInterval = 35000;
 
         workerInterval = 2500;
+        workerCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+        initialRetryTimeout = 5000;
+        minRetryTimeout = 200;
+        maxRetryTimeout = 60000;
+        maxRetries = 10;
+
+        streamChunkSize = 65536;
+        streamWindowSize = 16;
+        resultBatchSize = 64;
+        fragmentSize = 131072;
+
+        codecProvider = CodecFactory.getDefaultCodecProvider();
+        compressor = null;
+        compressionThreshold = 512;
+        maxPacketSize = 67108864;
 
         localMethodRegistry = new ArrayList<RPCRegistryMethod>();
         remoteMethodRegistry = new ArrayList<RPCRegistryMethod>();
         registeredLocalClasses = new HashMap<Class<?>, Integer>();
         registeredRemoteClasses = new HashMap<Class<?>, Integer>();
 
-        rpcList = Collections.synchronizedList(new ArrayList<RPC<?>>());
-        userObjectRPCMap = Collections.synchronizedMap(new HashMap<Object, RPC<?>>());
-        retryTask = new Runnable() {
+        rpcSet = Collections.newSetFromMap(new ConcurrentHashMap<RPC<?>, Boolean>());
+        userObjectRPCMap = new ConcurrentHashMap<Object, RPC<?>>();
+        topics = new ConcurrentHashMap<String, RPCTopic>();
+        workerShardCounter = new AtomicInteger(0);
+        // run the stream senders and the methods that take stream arguments, they block on the remote connection
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
 
             @Override
-            public void run() {
-                long sleepTime;
-                while (true) {
-                    if (Thread.interrupted()) {
-                        synchronized (RPCRegistry.this) {
-                            retryThread = null;
-                            RPCRegistry.this.notifyAll();
-                        }
-                        break;
-                    }
-
-                    synchronized (RPCRegistry.this) {
-                        long currentTime = System.currentTimeMillis();
-
-                        RPC<?>[] rpcArray = rpcList.toArray(new RPC[rpcList.size()]);
-                        for (RPC<?> rpc : rpcArray) {
-                            if (rpc.out == null) {
-                                continue;
-                            }
-
-                            //<editor-fold defaultstate="collapsed" desc="send largest sequential respondedId">
-                            try {
-                                List<RPCIdSet> idSetList = new ArrayList<RPCIdSet>();
-                                idSetList.add(rpc.requestIdSet);
-                                for (int i = 0, iEnd = rpc._sequentialRequestIdSet.length; i < iEnd; i++) {
-                                    RPCIdSet _idSet = rpc._sequentialRequestIdSet[i];
-                                    if (_idSet != null) {
-                                        idSetList.add(_idSet);
-                                    }
-                                }
-                                for (RPCIdSet _idSet : idSetList) {
-                                    int lastRespondReceivedId = _idSet.respondedId - 1;
-                                    if (lastRespondReceivedId < _idSet.lastRespondId) {
-                                        Object[] sendObject = _idSet.sequentialId == -1 ? new Object[]{1073741823} : new Object[]{_idSet.sequentialId, 1073741823};
-                                        rpc.send(0, sendObject, true, false, false);
-                                        _idSet.lastRespondId = 0;
-                                        _idSet.lastRespondIdSendTime = currentTime;
-                                    }
-                                    if (lastRespondReceivedId - _idSet.lastRespondId > 100 || currentTime - _idSet.lastRespondIdSendTime > respondedIdSendInterval) {
-                                        Object[] sendObject = _idSet.sequentialId == -1 ? new Object[]{lastRespondReceivedId} : new Object[]{_idSet.sequentialId, lastRespondReceivedId};
-                                        rpc.send(0, sendObject, true, false, false);
-                                        _idSet.lastRespondId = lastRespondReceivedId;
-                                        _idSet.lastRespondIdSendTime = currentTime;
-                                    }
-                                }
-                            } catch (Exception ex) {
-                                LOG.log(Level.INFO, null, ex);
-                            }
-                            //</editor-fold>
-
-                            //<editor-fold defaultstate="collapsed" desc="retry send request">
-                            List<Map<Integer, RPCRequest>> requestListList = new ArrayList<Map<Integer, RPCRequest>>();
-                            requestListList.add(rpc.requestList);
-                            for (int i = 0, iEnd = rpc._sequentialRequestList.length; i < iEnd; i++) {
-                                Map<Integer, RPCRequest> _requestList = rpc._sequentialRequestList[i];
-                                if (_requestList != null) {
-                                    requestListList.add(_requestList);
-                                }
-                            }
-                            for (Map<Integer, RPCRequest> _requestList : requestListList) {
-                                synchronized (_requestList) {
-                                    for (RPCRequest _request : _requestList.values()) {
-                                        if (!_request.responded && currentTime - _request.time > 5000) {
-                                            try {
-                                                rpc.genericSend(_requestList, _request.packetData, _request.requestId, true, false);
-                                            } catch (Exception ex) {
-                                                LOG.log(Level.INFO, null, ex);
-                                            }
-                                            _request.time = currentTime;
-                                        }
-                                    }
-                                }
-                            }
-                            //</editor-fold>
-
-                            //<editor-fold defaultstate="collapsed" desc="heart beat">
-                            long lastReceiveTimeDiff = currentTime - rpc.lastPacketReceiveTime;
-                            if (lastReceiveTimeDiff > heartBeatExpiryInterval) {
-                                try {
-                                    rpc.close();
-                                } catch (IOException ex) {
-                                    LOG.log(Level.SEVERE, null, ex);
-                                }
-                            } else if (lastReceiveTimeDiff > heartBeatSendInterval && currentTime - rpc.lastHeartBeatSendTime > heartBeatSendInterval) {
-                                try {
-                                    rpc.send(0, new Object[]{null}, true, false, false);
-                                    rpc.lastHeartBeatSendTime = currentTime;
-                                } catch (Exception ex) {
-                                    LOG.log(Level.INFO, null, ex);
-                                }
-                            }
-                            //</editor-fold>
-                        }
-
-                        sleepTime = Math.max(0, workerInterval - (System.currentTimeMillis() - currentTime));
-                    }
-
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException ex) {
-                        synchronized (RPCRegistry.this) {
-                            retryThread = null;
-                            RPCRegistry.this.notifyAll();
-                        }
-                        break;
-                    }
-                }
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RPCRegistry - executor");
+                thread.setDaemon(true);
+                return thread;
             }
-        };
+        });
         start();
     }
 
@@ -223,22 +182,304 @@ public class RPCRegistry {
         this.workerInterval = workerInterval;
     }
 
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Set the number of threads sending the acknowledgements, heart beats and retries, each of them owns a fixed
+     * share of the connections. It takes effect on the next {@link #start()}.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount should be at least 1");
+        }
+        this.workerCount = workerCount;
+    }
+
+    public int getInitialRetryTimeout() {
+        return initialRetryTimeout;
+    }
+
+    /**
+     * Set the retry timeout used by the {@link RPC} created after, before its round trip time is measured.
+     */
+    public void setInitialRetryTimeout(int initialRetryTimeout) {
+        this.initialRetryTimeout = initialRetryTimeout;
+    }
+
+    public int getMinRetryTimeout() {
+        return minRetryTimeout;
+    }
+
+    /**
+     * Set the lower bound of the retry timeout derived from the round trip time, for the {@link RPC} created after.
+     */
+    public void setMinRetryTimeout(int minRetryTimeout) {
+        this.minRetryTimeout = minRetryTimeout;
+    }
+
+    public int getMaxRetryTimeout() {
+        return maxRetryTimeout;
+    }
+
+    /**
+     * Set the upper bound of the retry timeout, including the backoff, for the {@link RPC} created after.
+     */
+    public void setMaxRetryTimeout(int maxRetryTimeout) {
+        this.maxRetryTimeout = maxRetryTimeout;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the number of times a request is sent again before it is given up, not greater than 15. The retry timeout
+     * is doubled on every retry.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.min(maxRetries, RPCRequest.MAX_RETRIES);
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * Set the size of each chunk of the stream arguments sent, should not greater than 16777215.
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    public int getStreamWindowSize() {
+        return streamWindowSize;
+    }
+
+    /**
+     * Set the number of chunks of a stream argument that can be in flight before the receiver consumed them.
+     */
+    public void setStreamWindowSize(int streamWindowSize) {
+        this.streamWindowSize = streamWindowSize;
+    }
+
+    public int getResultBatchSize() {
+        return resultBatchSize;
+    }
+
+    /**
+     * Set the number of items sent in each batch by the methods returning {@link Iterator}, the number of batches in
+     * flight is limited by the stream window size.
+     */
+    public void setResultBatchSize(int resultBatchSize) {
+        this.resultBatchSize = resultBatchSize;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * Set the size of the fragments the large packets are split into by the {@link RPC} created after, the packets of
+     * a higher {@link RPCPriority} are written between the fragments, see {@link RPCOutputScheduler}.
+     */
+    public void setFragmentSize(int fragmentSize) {
+        this.fragmentSize = fragmentSize;
+    }
+
+    public CodecProvider getCodecProvider() {
+        return codecProvider;
+    }
+
+    /**
+     * Set the codec selected by the {@link RPC} created after, see {@link RPC#setCodecProvider(CodecProvider)}.
+     */
+    public void setCodecProvider(CodecProvider codecProvider) {
+        this.codecProvider = codecProvider;
+    }
+
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Set the compressor used by the {@link RPC} created after, null (the default) to disable compression, see
+     * {@link RPC#setCompressor(Compressor)}.
+     */
+    public void setCompressor(Compressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Set the compression threshold used by the {@link RPC} created after, see
+     * {@link RPC#setCompressionThreshold(int)}.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * Set the maximum length of the packets received by the {@link RPC} created after, the longer ones are dropped
+     * without allocating their content, see {@link rpc.packet.Depacketizer#setMaxPacketSize(int)}.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Send the acknowledgements and heart beats due, resend the requests not responded after the retry timeout and
+     * close the connection if nothing received for {@link #heartBeatExpiryInterval}.
+     * @return the time in milliseconds to check the connection again
+     */
+    protected int maintain(RPC<?> rpc, long currentTime) {
+        //<editor-fold defaultstate="collapsed" desc="send largest respondedId">
+        // they are attached to the packets sent, send a heart beat to carry them if the link is idle
+        if (rpc.isAcknowledgementDue(currentTime)) {
+            try {
+                rpc.send(0, new Object[]{null}, true, false, false);
+                rpc.lastHeartBeatSendTime = currentTime;
+            } catch (Exception ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="send selective acknowledgements">
+        try {
+            rpc.sendSelectiveAcknowledgements();
+        } catch (Exception ex) {
+            LOG.log(Level.INFO, null, ex);
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="retry send request">
+        List<Map<Integer, RPCRequest>> requestListList = new ArrayList<Map<Integer, RPCRequest>>();
+        requestListList.add(rpc.requestList);
+        requestListList.add(rpc.bulkRequestList);
+        for (int i = 0, iEnd = rpc._sequentialRequestList.length; i < iEnd; i++) {
+            Map<Integer, RPCRequest> _requestList = rpc._sequentialRequestList[i];
+            if (_requestList != null) {
+                requestListList.add(_requestList);
+            }
+        }
+        RPCRoundTripTimer roundTripTimer = rpc.roundTripTimer;
+        // the requests sent in a batch share the same packet, send it once only
+        Set<Object> resentPackets = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        List<int[]> expiredRequests = new ArrayList<int[]>();
+        for (Map<Integer, RPCRequest> _requestList : requestListList) {
+            synchronized (_requestList) {
+                for (RPCRequest _request : _requestList.values()) {
+                    if (_request.is(RPCRequest.RESPONDED)) {
+                        continue;
+                    }
+                    int retries = _request.getRetries();
+                    if ((int) currentTime - _request.time <= roundTripTimer.getTimeout(retries)) {
+                        continue;
+                    }
+                    // the control messages are never given up, the remote side process them in order
+                    if (retries >= maxRetries && _request.getRequestTypeId() != 0 && _request.getRequestTypeId() != RPC.BULK_SEQUENTIAL_ID) {
+                        // the record is not recycled while it is in the list
+                        if (rpc.setCancelled(_request, RPCRequest.EXPIRED)) {
+                            expiredRequests.add(new int[]{_request.getRequestTypeId(), _request.requestId});
+                        }
+                        continue;
+                    }
+                    // the data is replaced by the respond when responded
+                    Object packetData = _request.data;
+                    if (packetData instanceof byte[] && resentPackets.add(packetData)) {
+                        try {
+                            rpc.resend((byte[]) packetData, _request.getPriority());
+                        } catch (Exception ex) {
+                            LOG.log(Level.INFO, null, ex);
+                        }
+                    }
+                    _request.time = (int) currentTime;
+                    _request.addRetry();
+                }
+            }
+        }
+        // remove them after iterating the lists
+        for (int[] expiredRequest : expiredRequests) {
+            rpc.sendCancel(expiredRequest[0], expiredRequest[1]);
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="drop incomplete fragments">
+        rpc.expireFragments(currentTime);
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="heart beat">
+        long lastReceiveTimeDiff = currentTime - rpc.lastPacketReceiveTime;
+        if (lastReceiveTimeDiff > heartBeatExpiryInterval) {
+            try {
+                rpc.close();
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        } else if (lastReceiveTimeDiff > heartBeatSendInterval && currentTime - rpc.lastHeartBeatSendTime > heartBeatSendInterval) {
+            try {
+                rpc.send(0, new Object[]{null}, true, false, false);
+                rpc.lastHeartBeatSendTime = currentTime;
+            } catch (Exception ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+        //</editor-fold>
+
+        // wake up early enough to retry on the shortest retry timeout
+        return Math.max(1, rpc.roundTripTimer.getTimeout() / 2);
+    }
+
     public void start() {
         synchronized (this) {
-            if (retryThread != null) {
+            if (workers != null) {
                 return;
             }
-            retryThread = new Thread(retryTask, "RPCRegistry");
-            retryThread.start();
+            RPCRegistryWorker[] _workers = new RPCRegistryWorker[workerCount];
+            for (int i = 0; i < _workers.length; i++) {
+                _workers[i] = new RPCRegistryWorker();
+            }
+            for (RPC<?> rpc : rpcSet) {
+                _workers[rpc.workerShard % _workers.length].connections.add(rpc);
+            }
+            workers = _workers;
+            for (int i = 0; i < _workers.length; i++) {
+                Thread thread = new Thread(_workers[i], "RPCRegistry - worker " + i);
+                _workers[i].thread = thread;
+                thread.start();
+            }
         }
     }
 
     public void stop() {
+        RPCRegistryWorker[] _workers;
         synchronized (this) {
-            retryThread.interrupt();
-            while (retryThread != null) {
+            _workers = workers;
+            if (_workers == null) {
+                return;
+            }
+            for (RPCRegistryWorker worker : _workers) {
+                worker.thread.interrupt();
+            }
+            workers = null;
+        }
+        // join outside the lock, the connections registered meanwhile go to the workers of the next start
+        for (RPCRegistryWorker worker : _workers) {
+            if (worker.thread == Thread.currentThread()) {
+                continue;
+            }
+            while (worker.thread.isAlive()) {
                 try {
-                    this.wait();
+                    worker.thread.join();
                 } catch (InterruptedException ex) {
                     LOG.log(Level.SEVERE, null, ex);
                 }
@@ -246,6 +487,14 @@ public class RPCRegistry {
         }
     }
 
+    /**
+     * Get the worker owning the {@code rpc}, null if the workers are stopped.
+     */
+    protected RPCRegistryWorker getWorker(RPC<?> rpc) {
+        RPCRegistryWorker[] _workers = workers;
+        return _workers == null ? null : _workers[rpc.workerShard % _workers.length];
+    }
+
     public void clear() {
         localMethodRegistry.clear();
         remoteMethodRegistry.clear();
@@ -258,15 +507,59 @@ public class RPCRegistry {
     }
 
     protected RPC<?> remove(Object userObject) {
-        return userObjectRPCMap.remove(userObject);
+        return userObject == null ? null : userObjectRPCMap.remove(userObject);
+    }
+
+    /**
+     * Remove the user object only if it is still mapped to the {@code rpc}.
+     */
+    protected boolean remove(Object userObject, RPC<?> rpc) {
+        return userObject != null && userObjectRPCMap.remove(userObject, rpc);
     }
 
     protected RPC<?> get(Object userObject) {
-        return userObjectRPCMap.get(userObject);
+        return userObject == null ? null : userObjectRPCMap.get(userObject);
+    }
+
+    /**
+     * Get the number of connections created and not closed.
+     */
+    public int getRPCCount() {
+        return rpcSet.size();
     }
 
     protected void remove(RPC<?> rpc) {
-        rpcList.remove(rpc);
+        rpcSet.remove(rpc);
+        // the worker drops it on its next sweep if it is started with the connection at the same time
+        RPCRegistryWorker worker = getWorker(rpc);
+        if (worker != null) {
+            worker.connections.remove(rpc);
+        }
+        for (RPCTopic topic : topics.values()) {
+            topic.unsubscribe(rpc);
+        }
+    }
+
+    /**
+     * Get the topic with the {@code name}, it is created if not exist.
+     */
+    public RPCTopic getTopic(String name) {
+        RPCTopic topic = topics.get(name);
+        if (topic == null) {
+            topic = new RPCTopic(this, name);
+            RPCTopic _topic = topics.putIfAbsent(name, topic);
+            if (_topic != null) {
+                topic = _topic;
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * @return the topic removed, null if not exist
+     */
+    public RPCTopic removeTopic(String name) {
+        return topics.remove(name);
     }
 
     public <T> RPC<T> getRPC(Class<T> clazz) throws NotFoundException, CannotCompileException, InstantiationException, IllegalAccessException, ConditionConflictException {
@@ -283,7 +576,15 @@ public class RPCRegistry {
                 throw new ConditionConflictException(String.format("The object class of userObject should be %1$s but found %2$s", clazz.getName(), argumentClass.getName()));
             }
         }
-        rpcList.add(rpc);
+        // the shard is kept for the life of the connection, so a slow connection always delays the same workers only
+        rpc.workerShard = workerShardCounter.getAndIncrement() & Integer.MAX_VALUE;
+        synchronized (this) {
+            rpcSet.add(rpc);
+            RPCRegistryWorker worker = getWorker(rpc);
+            if (worker != null) {
+                worker.connections.add(rpc);
+            }
+        }
         return rpc;
     }
 
@@ -308,8 +609,8 @@ public class RPCRegistry {
             if (requestTypeIdAnnotation == null) {
                 throw new ConditionConflictException(String.format("'RequestTypeId' not found, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
             }
-            if (requestTypeIdAnnotation.value() <= 0 || requestTypeIdAnnotation.value() > 16383) {
-                throw new ConditionConflictException(String.format("'RequestTypeId' should >= 1 and <= 16383, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+            if (requestTypeIdAnnotation.value() <= 0 || requestTypeIdAnnotation.value() >= RPC.BULK_SEQUENTIAL_ID) {
+                throw new ConditionConflictException(String.format("'RequestTypeId' should >= 1 and <= 16382, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
             }
 
             boolean blocking = false;
@@ -338,8 +639,8 @@ public class RPCRegistry {
 
             Sequential sequentialAnnotation = method.getAnnotation(Sequential.class);
             if (sequentialAnnotation != null) {
-                if (sequentialAnnotation.value() <= 0) {
-                    throw new ConditionConflictException(String.format("'Sequential' should >= 1, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                if (sequentialAnnotation.value() <= 0 || sequentialAnnotation.value() >= RPC.BULK_SEQUENTIAL_ID) {
+                    throw new ConditionConflictException(String.format("'Sequential' should >= 1 and <= 16382, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
                 }
             }
 
@@ -393,12 +694,80 @@ public class RPCRegistry {
                 throw new ConditionConflictException(String.format("condition 'UserObject' exist but the parameters length is less than 1 or the first argument is an array, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
             }
 
-            methodList.add(new RPCRegistryMethod(method, null, noRespond, userObject, broadcast));
+            RPCRegistryMethod registryMethod = new RPCRegistryMethod(method, null, noRespond, userObject, broadcast);
+            if (registryMethod.streamParameters.length != 0) {
+                if (broadcast) {
+                    throw new ConditionConflictException(String.format("condition 'Broadcast' cannot use with stream parameters, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+                if (sequentialAnnotation != null) {
+                    throw new ConditionConflictException(String.format("condition 'Sequential' cannot use with stream parameters, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+            }
+            if (registryMethod.idempotent) {
+                if (!blocking) {
+                    throw new ConditionConflictException(String.format("condition 'Idempotent' exist but condition 'Blocking' not exist, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+                if (registryMethod.streamParameters.length != 0 || registryMethod.resultStream) {
+                    throw new ConditionConflictException(String.format("condition 'Idempotent' cannot use with stream parameters or Iterator return type, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+            }
+            if (registryMethod.cached != null) {
+                if (!blocking || method.getReturnType().equals(void.class)) {
+                    throw new ConditionConflictException(String.format("condition 'Cached' exist but condition 'Blocking' not exist or the return type is void, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+                if (registryMethod.streamParameters.length != 0 || registryMethod.resultStream) {
+                    throw new ConditionConflictException(String.format("condition 'Cached' cannot use with stream parameters or Iterator return type, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+                if (registryMethod.cached.timeToLive() <= 0 || registryMethod.cached.maxSize() <= 0) {
+                    throw new ConditionConflictException(String.format("'Cached' time to live and max size should >= 1, class: %1$s, function: %2$s", objectClass.getName(), method.getName()));
+                }
+            }
+
+            methodList.add(registryMethod);
         }
 
         return methods.length;
     }
 
+    /**
+     * Sweep a shard of the connections, a connection blocked in sending or with many requests to retry does not delay
+     * the heart beats of the connections owned by the other workers.
+     */
+    protected class RPCRegistryWorker implements Runnable {
+
+        protected final Set<RPC<?>> connections;
+        protected Thread thread;
+
+        protected RPCRegistryWorker() {
+            connections = Collections.newSetFromMap(new ConcurrentHashMap<RPC<?>, Boolean>());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    long currentTime = System.currentTimeMillis();
+                    int checkInterval = workerInterval;
+
+                    // the connections added or closed during the iteration may or may not be visited
+                    for (RPC<?> rpc : connections) {
+                        if (!rpcSet.contains(rpc)) {
+                            connections.remove(rpc);
+                            continue;
+                        }
+                        if (rpc.out == null) {
+                            continue;
+                        }
+                        checkInterval = Math.min(checkInterval, maintain(rpc, currentTime));
+                    }
+
+                    Thread.sleep(Math.max(0, checkInterval - (System.currentTimeMillis() - currentTime)));
+                }
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
     protected static class RPCRegistryMethod {
 
         protected final Method method;
@@ -406,6 +775,35 @@ public class RPCRegistry {
         protected final boolean noRespond;
         protected final boolean userObject;
         protected final boolean broadcast;
+        /**
+         * Index of the {@link InputStream} and {@link ReadableByteChannel} parameters.
+         */
+        protected final int[] streamParameters;
+        /**
+         * The method returns {@link Iterator}, the items are sent in batches after the respond, which carries the
+         * result id.
+         */
+        protected final boolean resultStream;
+        /**
+         * The class of the requests and responds, see {@link Priority}.
+         */
+        protected final RPCPriority priority;
+        /**
+         * The concurrent calls with the same arguments are coalesced, see {@link Idempotent}.
+         */
+        protected final boolean idempotent;
+        /**
+         * The results are cached on the calling side, see {@link Cached}, null if not cached.
+         */
+        protected final Cached cached;
+        /**
+         * Decoder plan of the arguments received, the user object is not included.
+         */
+        protected final DecoderPlan parameterPlan;
+        /**
+         * Decoder plan of the respond received, which is {return value} or {null, error code}.
+         */
+        protected final DecoderPlan returnPlan;
 
         protected RPCRegistryMethod(Method method, Object instance, boolean noRespond, boolean userObject, boolean broadcast) {
             this.method = method;
@@ -413,6 +811,38 @@ public class RPCRegistry {
             this.noRespond = noRespond;
             this.userObject = userObject;
             this.broadcast = broadcast;
+
+            List<Integer> streamParameterList = new ArrayList<Integer>();
+            if (method != null) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    if (isStream(parameterTypes[i])) {
+                        streamParameterList.add(i);
+                    }
+                }
+            }
+            streamParameters = new int[streamParameterList.size()];
+            for (int i = 0, iEnd = streamParameters.length; i < iEnd; i++) {
+                streamParameters[i] = streamParameterList.get(i);
+            }
+            resultStream = method != null && method.getReturnType().equals(Iterator.class);
+            Priority priorityAnnotation = method != null ? method.getAnnotation(Priority.class) : null;
+            priority = priorityAnnotation != null ? priorityAnnotation.value() : RPCPriority.INTERACTIVE;
+            idempotent = method != null && method.getAnnotation(Idempotent.class) != null;
+            cached = method != null ? method.getAnnotation(Cached.class) : null;
+
+            if (method != null) {
+                Type[] parameterTypes = method.getGenericParameterTypes();
+                parameterPlan = DecoderPlan.forArguments(userObject ? Arrays.copyOfRange(parameterTypes, 1, parameterTypes.length) : parameterTypes);
+                returnPlan = DecoderPlan.forArguments(new Type[]{resultStream ? Integer.class : method.getGenericReturnType()});
+            } else {
+                parameterPlan = null;
+                returnPlan = null;
+            }
+        }
+
+        protected static boolean isStream(Class<?> parameterType) {
+            return parameterType.equals(InputStream.class) || parameterType.equals(ReadableByteChannel.class);
         }
     }
 }
@@ -0,0 +1,130 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of a {@link rpc.annotation.Cached} method received, by the encoded arguments, with LRU and
+ * time-to-live eviction.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCResponseCache {
+
+    protected final int timeToLive;
+    protected final int maxSize;
+    protected final Map<Object, RPCCacheEntry> entries;
+    //
+    protected long hits;
+    protected long misses;
+    /**
+     * Increased on invalidation, the results of the requests sent before it are not cached.
+     */
+    protected long generation;
+
+    protected RPCResponseCache(int timeToLive, final int maxSize) {
+        this.timeToLive = timeToLive;
+        this.maxSize = maxSize;
+        entries = new LinkedHashMap<Object, RPCCacheEntry>(16, 0.75F, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, RPCCacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        hits = 0;
+        misses = 0;
+        generation = 0;
+    }
+
+    /**
+     * Get the result cached, null if it is not cached or expired.
+     */
+    protected synchronized Object get(Object key) {
+        RPCCacheEntry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.time > timeToLive) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Get the generation before sending the request, for {@link #put(Object, Object, long)}.
+     */
+    protected synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache the result, it is dropped if the cache is invalidated after the request was sent.
+     */
+    protected synchronized void put(Object key, Object value, long generation) {
+        if (generation != this.generation || value == null) {
+            return;
+        }
+        entries.put(key, new RPCCacheEntry(value, System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove all the results cached.
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+        generation++;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    protected static class RPCCacheEntry {
+
+        protected final Object value;
+        protected final long time;
+
+        protected RPCCacheEntry(Object value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+}
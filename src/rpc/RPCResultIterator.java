@@ -0,0 +1,191 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The receiving end of a method returning {@link Iterator}, the items are sent by the remote {@link RPCResultSender}
+ * in batches through {@link RPCControl#RESULT_ITEMS} and credits are granted back after every
+ * {@code creditBatchSize} batches consumed. {@link #hasNext()} blocks until the next item arrived, it throws
+ * {@link IllegalStateException} if the remote side failed to produce the items or the thread is interrupted. Close it
+ * to stop the remote side if not all the items are needed.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCResultIterator<T> implements Iterator<T>, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(RPCResultIterator.class.getName());
+    //
+    protected final RPC<?> rpc;
+    protected final int resultId;
+    protected final int creditBatchSize;
+    //
+    protected final LinkedList<List<?>> batches;
+    protected List<?> batch;
+    protected int batchOffset;
+    protected int consumedBatches;
+    //
+    protected boolean claimed;
+    protected boolean ended;
+    protected boolean closed;
+    protected String error;
+
+    protected RPCResultIterator(RPC<?> rpc, int resultId, int creditBatchSize) {
+        this.rpc = rpc;
+        this.resultId = resultId;
+        this.creditBatchSize = Math.max(1, creditBatchSize);
+
+        batches = new LinkedList<List<?>>();
+        batch = null;
+        batchOffset = 0;
+        consumedBatches = 0;
+
+        claimed = false;
+        ended = false;
+        closed = false;
+        error = null;
+    }
+
+    protected synchronized void offer(List<?> items) {
+        if (closed || ended) {
+            return;
+        }
+        batches.add(items);
+        notifyAll();
+    }
+
+    protected synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    protected synchronized void abort(String message) {
+        if (error == null) {
+            error = message;
+        }
+        notifyAll();
+    }
+
+    protected synchronized void claim() {
+        claimed = true;
+    }
+
+    /**
+     * The iterator can be removed from the result list of {@link RPC} when it is returned to the caller and no more
+     * control message will come for it.
+     */
+    protected synchronized boolean isReleasable() {
+        return claimed && (ended || error != null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        boolean hasNext;
+        int credit = 0;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    hasNext = false;
+                    break;
+                }
+                if (batch != null) {
+                    if (batchOffset < batch.size()) {
+                        hasNext = true;
+                        break;
+                    }
+                    batch = null;
+                    consumedBatches++;
+                }
+                List<?> next = batches.poll();
+                if (next != null) {
+                    batch = next;
+                    batchOffset = 0;
+                    continue;
+                }
+                if (error != null) {
+                    throw new IllegalStateException(error);
+                }
+                if (ended) {
+                    hasNext = false;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Thread interruptted when waiting for result items");
+                }
+            }
+
+            if (consumedBatches >= creditBatchSize && !ended && error == null) {
+                credit = consumedBatches;
+                consumedBatches = 0;
+            }
+        }
+
+        if (credit > 0) {
+            try {
+                rpc.sendControl(RPCControl.RESULT_CREDIT, resultId, credit);
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+
+        return hasNext;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        synchronized (this) {
+            return (T) batch.get(batchOffset++);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            batches.clear();
+            batch = null;
+            notifyAll();
+            if (ended || error != null) {
+                return;
+            }
+        }
+        // tell the sender to stop, the iterator is released when the sender acknowledge with RESULT_CLOSE
+        rpc.sendControl(RPCControl.RESULT_CLOSE, resultId);
+    }
+}
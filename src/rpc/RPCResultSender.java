@@ -0,0 +1,112 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Take the items from the {@link Iterator} returned by the method invoked and send them in batches through
+ * {@link RPCControl#RESULT_ITEMS}, at most the credits granted by the remote {@link RPCResultIterator} are in flight,
+ * so the items are produced only as fast as they are consumed.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCResultSender implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(RPCResultSender.class.getName());
+    //
+    protected final RPC<?> rpc;
+    protected final int resultId;
+    protected final Iterator<?> iterator;
+    protected final int batchSize;
+    //
+    protected int credit;
+    protected boolean closed;
+
+    protected RPCResultSender(RPC<?> rpc, int resultId, Iterator<?> iterator, int batchSize, int windowSize) {
+        this.rpc = rpc;
+        this.resultId = resultId;
+        this.iterator = iterator;
+        this.batchSize = Math.max(1, batchSize);
+
+        credit = windowSize;
+        closed = false;
+    }
+
+    protected synchronized void addCredit(int credit) {
+        this.credit += credit;
+        notifyAll();
+    }
+
+    protected synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        RPCControl terminal = RPCControl.RESULT_CLOSE;
+        try {
+            List<Object> items = new ArrayList<Object>(batchSize);
+            while (true) {
+                synchronized (this) {
+                    while (credit <= 0 && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    credit--;
+                }
+
+                while (items.size() < batchSize && iterator.hasNext()) {
+                    items.add(iterator.next());
+                }
+                if (items.isEmpty()) {
+                    terminal = RPCControl.RESULT_END;
+                    break;
+                }
+                // the items are encoded into the packet immediately, so the list can be reused
+                rpc.sendBulkControl(RPCControl.RESULT_ITEMS, resultId, items);
+                items.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            rpc.removeOutgoingResult(resultId);
+            if (iterator instanceof Closeable) {
+                try {
+                    ((Closeable) iterator).close();
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, null, ex);
+                }
+            }
+            try {
+                rpc.sendBulkControl(terminal, resultId);
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+/**
+ * Estimate the round trip time of a connection from the requests and their responds, and derive the retry timeout
+ * from it the same way as TCP (RFC 6298): the smoothed round trip time and its variance are updated with gain 1/8 and
+ * 1/4, the timeout is the smoothed round trip time plus 4 times the variance, bounded by the minimum and maximum.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCRoundTripTimer {
+
+    protected final int minTimeout;
+    protected final int maxTimeout;
+    /**
+     * -1 before the first sample.
+     */
+    protected volatile int roundTripTime;
+    protected volatile int roundTripTimeVariance;
+    protected volatile int timeout;
+
+    /**
+     * @param initialTimeout the timeout used before the first sample
+     */
+    public RPCRoundTripTimer(int initialTimeout, int minTimeout, int maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        roundTripTime = -1;
+        roundTripTimeVariance = 0;
+        timeout = Math.min(Math.max(initialTimeout, minTimeout), maxTimeout);
+    }
+
+    /**
+     * Add a sample, only the requests sent once should be sampled, the respond of a request sent again cannot tell
+     * which send it responds to.
+     * @param sample the time between sending the request and receiving its respond in milliseconds
+     */
+    public synchronized void sample(int sample) {
+        if (sample < 0) {
+            return;
+        }
+        int _roundTripTime = roundTripTime;
+        int _roundTripTimeVariance;
+        if (_roundTripTime < 0) {
+            _roundTripTime = sample;
+            _roundTripTimeVariance = sample / 2;
+        } else {
+            _roundTripTimeVariance = (3 * roundTripTimeVariance + Math.abs(_roundTripTime - sample)) / 4;
+            _roundTripTime = (7 * _roundTripTime + sample) / 8;
+        }
+        roundTripTime = _roundTripTime;
+        roundTripTimeVariance = _roundTripTimeVariance;
+        timeout = (int) Math.min(Math.max((long) _roundTripTime + Math.max(1, 4 * _roundTripTimeVariance), minTimeout), maxTimeout);
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, -1 if no sample yet
+     */
+    public int getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    public int getRoundTripTimeVariance() {
+        return roundTripTimeVariance;
+    }
+
+    /**
+     * @return the retry timeout of the requests not sent again yet in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * The timeout is doubled on every retry, bounded by the maximum.
+     * @param retries the number of times the request is sent again
+     */
+    public int getTimeout(int retries) {
+        return (int) Math.min((long) timeout << Math.min(retries, 32), maxTimeout);
+    }
+
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+
+    public int getMaxTimeout() {
+        return maxTimeout;
+    }
+}
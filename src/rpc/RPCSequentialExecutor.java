@@ -0,0 +1,72 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.util.Map;
+import rpc.RPC.RPCIdSet;
+import rpc.RPC.RPCRequest;
+
+/**
+ * Invoke the requests of a sequential id in order on the executor of the {@link RPCRegistry}, one at a time, so the
+ * different sequential ids are invoked in parallel and the thread feeding the packets is not blocked by the methods.
+ * The requests received out of order wait in the respond list until the ones before them are received.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCSequentialExecutor implements Runnable {
+
+    protected final RPC<?> rpc;
+    protected final RPCIdSet idSet;
+    protected final Map<Integer, RPCRequest> respondList;
+    /**
+     * True if it is submitted to the executor and not finished yet, guarded by {@link #idSet}.
+     */
+    protected boolean scheduled;
+
+    protected RPCSequentialExecutor(RPC<?> rpc, RPCIdSet idSet, Map<Integer, RPCRequest> respondList) {
+        this.rpc = rpc;
+        this.idSet = idSet;
+        this.respondList = respondList;
+
+        scheduled = false;
+    }
+
+    /**
+     * Start invoking the requests from the id expected next if it is not running. Called with {@link #idSet} locked.
+     */
+    protected void schedule() {
+        if (scheduled || !respondList.containsKey(idSet.id)) {
+            return;
+        }
+        scheduled = true;
+        rpc.rpcRegistry.executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            RPCRequest rpcRequest;
+            synchronized (idSet) {
+                rpcRequest = rpc.nextSequential(idSet, respondList, Thread.currentThread());
+                if (rpcRequest == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            rpc.invokeSequential(rpcRequest);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read the stream argument chunk by chunk and send them through {@link RPCControl#STREAM_DATA}, at most the
+ * credits granted by the remote {@link RPCInputStream} are in flight, so neither side hold the whole stream.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCStreamSender implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(RPCStreamSender.class.getName());
+    //
+    protected final RPC<?> rpc;
+    protected final int streamId;
+    protected final InputStream in;
+    protected final int chunkSize;
+    //
+    protected int credit;
+    protected boolean closed;
+
+    protected RPCStreamSender(RPC<?> rpc, int streamId, InputStream in, int chunkSize, int windowSize) {
+        this.rpc = rpc;
+        this.streamId = streamId;
+        this.in = in;
+        this.chunkSize = chunkSize;
+
+        credit = windowSize;
+        closed = false;
+    }
+
+    protected synchronized void addCredit(int credit) {
+        this.credit += credit;
+        notifyAll();
+    }
+
+    protected synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        RPCControl terminal = RPCControl.STREAM_CLOSE;
+        try {
+            byte[] buffer = new byte[chunkSize];
+            while (true) {
+                synchronized (this) {
+                    while (credit <= 0 && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    credit--;
+                }
+
+                int length = fill(buffer);
+                if (length == -1) {
+                    terminal = RPCControl.STREAM_END;
+                    break;
+                }
+                // the chunk is encoded into the packet immediately, so the full buffer can be reused
+                rpc.sendBulkControl(RPCControl.STREAM_DATA, streamId, length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            rpc.removeOutgoingStream(streamId);
+            try {
+                in.close();
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+            try {
+                rpc.sendBulkControl(terminal, streamId);
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the end of the stream is reached.
+     * @return the number of bytes read, -1 if the end of the stream is reached and nothing is read
+     */
+    protected int fill(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read == -1) {
+                break;
+            }
+            offset += read;
+        }
+        return offset == 0 && buffer.length > 0 ? -1 : offset;
+    }
+}
@@ -0,0 +1,241 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rpc.RPCRegistry.RPCRegistryMethod;
+import rpc.annotation.Broadcast;
+import rpc.annotation.NoRespond;
+import rpc.annotation.RequestTypeId;
+import rpc.annotation.UserObject;
+
+/**
+ * A named topic of the {@link RPCRegistry}, the messages published are sent to all the connections subscribed.
+ * <p>
+ * Every subscriber holds at most one message not sent yet per request type id: the messages are sent by a task of the
+ * subscriber on the registry executor, if a new message of a method is published before the last one of the same
+ * method is sent to a subscriber (the connection is slow), the last one is replaced (conflated), so the latest value of
+ * every method always wins, the publisher never blocks and a slow connection never delays the other subscribers.
+ * </p>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCTopic {
+
+    private static final Logger LOG = Logger.getLogger(RPCTopic.class.getName());
+    //
+    protected final RPCRegistry rpcRegistry;
+    protected final String name;
+    protected final ConcurrentMap<RPC<?>, RPCTopicSubscriber> subscribers;
+    protected final ConcurrentMap<Class<?>, Object> publishers;
+    //
+    protected final AtomicLong publishedMessages;
+    protected final AtomicLong conflatedMessages;
+
+    protected RPCTopic(RPCRegistry rpcRegistry, String name) {
+        this.rpcRegistry = rpcRegistry;
+        this.name = name;
+        subscribers = new ConcurrentHashMap<RPC<?>, RPCTopicSubscriber>();
+        publishers = new ConcurrentHashMap<Class<?>, Object>();
+
+        publishedMessages = new AtomicLong();
+        conflatedMessages = new AtomicLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return false if it is subscribed already
+     */
+    public boolean subscribe(RPC<?> rpc) {
+        return subscribers.putIfAbsent(rpc, new RPCTopicSubscriber(this, rpc)) == null;
+    }
+
+    /**
+     * Subscribe the connection of the {@code userObject}, see {@link RPC#setUserObject(Object)}.
+     * @return false if the connection is not found or it is subscribed already
+     */
+    public boolean subscribe(Object userObject) {
+        RPC<?> rpc = rpcRegistry.get(userObject);
+        return rpc != null && subscribe(rpc);
+    }
+
+    public boolean unsubscribe(RPC<?> rpc) {
+        return subscribers.remove(rpc) != null;
+    }
+
+    public boolean unsubscribe(Object userObject) {
+        RPC<?> rpc = rpcRegistry.get(userObject);
+        return rpc != null && unsubscribe(rpc);
+    }
+
+    public boolean isSubscribed(RPC<?> rpc) {
+        return subscribers.containsKey(rpc);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public long getPublishedMessages() {
+        return publishedMessages.get();
+    }
+
+    /**
+     * @return the number of messages replaced by a newer one before sent to a subscriber
+     */
+    public long getConflatedMessages() {
+        return conflatedMessages.get();
+    }
+
+    /**
+     * Get the implementation of the remote interface that publish to this topic, only the methods without return
+     * value, stream parameters and {@link Broadcast} are supported. The requests are never blocking.
+     * @param objClass the interface registered by {@link RPCRegistry#registerRemote(Class)}
+     */
+    public <R> R getPublisher(Class<R> objClass) {
+        Object publisher = publishers.get(objClass);
+        if (publisher == null) {
+            publisher = Proxy.newProxyInstance(objClass.getClassLoader(), new Class<?>[]{objClass}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass().equals(Object.class)) {
+                        return method.getName().equals("equals") ? proxy == args[0] : method.invoke(this, args);
+                    }
+                    RequestTypeId requestTypeId = method.getAnnotation(RequestTypeId.class);
+                    if (requestTypeId == null || !method.getReturnType().equals(void.class) || method.getAnnotation(Broadcast.class) != null) {
+                        throw new UnsupportedOperationException(String.format("method cannot be published, method: %1$s", method.getName()));
+                    }
+                    for (Class<?> parameterType : method.getParameterTypes()) {
+                        if (RPCRegistryMethod.isStream(parameterType)) {
+                            throw new UnsupportedOperationException(String.format("method with stream parameters cannot be published, method: %1$s", method.getName()));
+                        }
+                    }
+
+                    Object[] objects = args == null ? new Object[0] : args;
+                    if (method.getAnnotation(UserObject.class) != null) {
+                        // the user object is filled by the receiving side
+                        objects = new Object[objects.length - 1];
+                        System.arraycopy(args, 1, objects, 0, objects.length);
+                    }
+                    publish(requestTypeId.value(), objects, method.getAnnotation(NoRespond.class) == null);
+                    return null;
+                }
+            });
+            Object _publisher = publishers.putIfAbsent(objClass, publisher);
+            if (_publisher != null) {
+                publisher = _publisher;
+            }
+        }
+        return objClass.cast(publisher);
+    }
+
+    /**
+     * Publish the request to all the subscribers, the arguments are shared by all the subscribers and should not be
+     * modified after.
+     */
+    public void publish(int requestTypeId, Object[] args, boolean respond) {
+        RPCTopicMessage message = new RPCTopicMessage(requestTypeId, args, respond);
+        publishedMessages.incrementAndGet();
+        for (RPCTopicSubscriber subscriber : subscribers.values()) {
+            if (subscriber.pending.put(requestTypeId, message) != null) {
+                conflatedMessages.incrementAndGet();
+            } else {
+                subscriber.ready.add(requestTypeId);
+            }
+            if (subscriber.draining.compareAndSet(false, true)) {
+                rpcRegistry.executor.execute(subscriber);
+            }
+        }
+    }
+
+    /**
+     * The subscriber is drained by its own task, a send blocked by a slow connection only delays the messages of that
+     * connection.
+     */
+    protected static class RPCTopicSubscriber implements Runnable {
+
+        protected final RPCTopic topic;
+        protected final RPC<?> rpc;
+        /**
+         * The message not sent yet of every request type id.
+         */
+        protected final ConcurrentMap<Integer, RPCTopicMessage> pending;
+        /**
+         * The request type ids with a message not sent yet, in the order they become pending, each of them is added
+         * once until the message is taken.
+         */
+        protected final Queue<Integer> ready;
+        protected final AtomicBoolean draining;
+
+        protected RPCTopicSubscriber(RPCTopic topic, RPC<?> rpc) {
+            this.topic = topic;
+            this.rpc = rpc;
+            pending = new ConcurrentHashMap<Integer, RPCTopicMessage>();
+            ready = new ConcurrentLinkedQueue<Integer>();
+            draining = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Integer requestTypeId;
+                while ((requestTypeId = ready.poll()) != null) {
+                    RPCTopicMessage message = pending.remove(requestTypeId);
+                    if (message == null || topic.subscribers.get(rpc) != this) {
+                        continue;
+                    }
+                    try {
+                        rpc.send(message.requestTypeId, message.args, message.respond, false, false);
+                    } catch (Exception ex) {
+                        LOG.log(Level.INFO, null, ex);
+                    }
+                }
+                draining.set(false);
+                // a request type id may be added after the queue is found empty and before the flag is cleared
+                if (ready.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    protected static class RPCTopicMessage {
+
+        protected final int requestTypeId;
+        protected final Object[] args;
+        protected final boolean respond;
+
+        protected RPCTopicMessage(int requestTypeId, Object[] args, boolean respond) {
+            this.requestTypeId = requestTypeId;
+            this.args = args;
+            this.respond = respond;
+        }
+    }
+}
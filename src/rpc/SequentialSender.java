@@ -16,23 +16,63 @@
 // along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
 package rpc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * Run the tasks in the order of the sequence ids acquired, no matter the order they are sent.
+ * <p>The tasks are published into a ring buffer slot indexed by the sequence id, the thread that finds no one draining
+ * runs the tasks from the current sequence id until the next slot not published, the other threads return after
+ * publishing. A sender ahead of the current sequence id by the capacity waits until the slot is free.</p>
+ * <p>Every sequence id acquired has to be sent or skipped, the tasks after an abandoned one never run.</p>
  * @author Chan Wai Shing <cws1989@gmail.com>
  */
 public class SequentialSender {
 
-    protected AtomicLong sequenceIdCounter;
-    protected long currentSequenceId;
-    protected final Map<Long, Runnable> taskList;
+    /**
+     * Published by {@link #skip(long)}.
+     */
+    protected static final Runnable skipTask = new Runnable() {
+
+        @Override
+        public void run() {
+        }
+    };
+    protected final AtomicLong sequenceIdCounter;
+    protected final AtomicReferenceArray<Runnable> slots;
+    protected final int mask;
+    protected final AtomicBoolean draining;
+    /**
+     * The sequence id of the next task to run, written by the thread draining only.
+     */
+    protected volatile long currentSequenceId;
+    /**
+     * The thread draining, the tasks it runs cannot wait for a slot.
+     */
+    protected volatile Thread drainer;
+    /**
+     * The number of senders waiting for a slot, guarded by this, the thread draining wakes them up only if it is not
+     * 0.
+     */
+    protected volatile int waiting;
 
     public SequentialSender() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity the number of tasks that can wait for the ones before them, rounded up to a power of 2
+     */
+    public SequentialSender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
         sequenceIdCounter = new AtomicLong(0L);
+        slots = new AtomicReferenceArray<Runnable>(size);
+        mask = size - 1;
+        draining = new AtomicBoolean(false);
         currentSequenceId = 0;
-        taskList = new HashMap<Long, Runnable>();
+        drainer = null;
+        waiting = 0;
     }
 
     public long acquireSequenceId() {
@@ -43,21 +83,101 @@ public class SequentialSender {
         return currentSequenceId;
     }
 
-    public synchronized void send(long sequenceId, Runnable task) {
-        if (sequenceId == currentSequenceId) {
-            task.run();
-            currentSequenceId++;
+    public int getCapacity() {
+        return slots.length();
+    }
 
-            Runnable _task = null;
-            while ((_task = taskList.remove(currentSequenceId)) != null) {
-                _task.run();
-                currentSequenceId++;
+    /**
+     * Send the task, wait without limit if the sequence id is ahead of the current one by the capacity.
+     * @throws IllegalStateException if it is sent by a task run by this sender and it has to wait, the slot would
+     * never be freed
+     */
+    public void send(long sequenceId, Runnable task) throws InterruptedException {
+        send(sequenceId, task, 0);
+    }
+
+    /**
+     * Send the task, wait at most {@code timeout} milliseconds if the sequence id is ahead of the current one by the
+     * capacity. The sequence id is still acquired if it is not sent, send it again or {@link #skip(long)} it.
+     * @param timeout in milliseconds, 0 to wait without limit
+     * @return false if the slot is not freed within the timeout
+     * @throws IllegalStateException if it is sent by a task run by this sender and it has to wait, the slot would
+     * never be freed
+     */
+    public boolean send(long sequenceId, Runnable task, long timeout) throws InterruptedException {
+        if (sequenceId < currentSequenceId || sequenceId >= sequenceIdCounter.get()) {
+            // already run or not acquired
+            return true;
+        }
+        if (sequenceId - currentSequenceId >= slots.length() && !awaitSlot(sequenceId, timeout)) {
+            return false;
+        }
+        slots.set((int) sequenceId & mask, task);
+
+        // recheck after releasing the drain, the task of the current sequence id may be published in between
+        while (slots.get((int) currentSequenceId & mask) != null && draining.compareAndSet(false, true)) {
+            drainer = Thread.currentThread();
+            try {
+                drain();
+            } finally {
+                drainer = null;
+                draining.set(false);
             }
-        } else if (sequenceId > currentSequenceId && sequenceId < sequenceIdCounter.get()) {
-            taskList.put(sequenceId, task);
-        } else {
-            // may log
-            return;
+        }
+        return true;
+    }
+
+    /**
+     * Give up the sequence id acquired, the tasks after it run without waiting for it. It waits for the slot like
+     * {@link #send(long, Runnable)}.
+     */
+    public void skip(long sequenceId) throws InterruptedException {
+        send(sequenceId, skipTask, 0);
+    }
+
+    /**
+     * Wait until the slot of the sequence id is freed by the task of the sequence id one capacity before.
+     * @return false if it is not freed within the timeout
+     */
+    protected boolean awaitSlot(long sequenceId, long timeout) throws InterruptedException {
+        if (drainer == Thread.currentThread()) {
+            throw new IllegalStateException("Task run by the sender cannot wait for the slot of sequence id " + sequenceId);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            // the thread draining reads the waiting after advancing the current sequence id
+            waiting++;
+            try {
+                while (sequenceId - currentSequenceId >= slots.length()) {
+                    if (timeout <= 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        wait(remaining);
+                    }
+                }
+                return true;
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    protected void drain() {
+        long _currentSequenceId = currentSequenceId;
+        Runnable task;
+        while ((task = slots.get((int) _currentSequenceId & mask)) != null) {
+            slots.set((int) _currentSequenceId & mask, null);
+            currentSequenceId = ++_currentSequenceId;
+            if (waiting != 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            task.run();
         }
     }
 }
@@ -0,0 +1,45 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cache the results on the calling side, by the encoded arguments. The cached result is returned without sending a
+ * request until it expired or the remote side invalidated it, see {@link rpc.RPC#invalidateRemoteCache(int)}. The
+ * same result instance is returned to the callers, so it should not be modified. The null results are not cached.
+ * Only blocking methods with return value and without stream parameters or {@link java.util.Iterator} return type can
+ * use this.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cached {
+
+    /**
+     * The time in milliseconds a result is kept after it is received.
+     */
+    int timeToLive();
+
+    /**
+     * The maximum number of results kept, the least recently used is removed when it is full.
+     */
+    int maxSize() default 256;
+}
@@ -30,7 +30,7 @@ import java.lang.annotation.Target;
 public @interface RequestTypeId {
 
     /**
-     * The request type id, should start from 1.
+     * The request type id, from 1 to 16382.
      */
     int value();
 }
@@ -29,7 +29,7 @@ import java.lang.annotation.Target;
 public @interface Sequential {
 
     /**
-     * The sequence id, should start from 1.
+     * The sequence id, from 1 to 16382.
      */
     int value();
 }
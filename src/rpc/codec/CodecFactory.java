@@ -21,14 +21,64 @@ package rpc.codec;
  */
 public class CodecFactory {
 
+    public static final int DEFAULT_CODEC_ID = 0;
+    protected static final CodecProvider[] codecProviders;
+
+    static {
+        codecProviders = new CodecProvider[16];
+        codecProviders[DEFAULT_CODEC_ID] = new DefaultCodecProvider();
+    }
+
     protected CodecFactory() {
     }
 
     public static Generator getGenerator() {
-        return new DefaultGenerator();
+        return getDefaultCodecProvider().getGenerator();
     }
 
     public static Parser getParser() {
-        return new DefaultParser();
+        return getDefaultCodecProvider().getParser();
+    }
+
+    public static CodecProvider getDefaultCodecProvider() {
+        return codecProviders[DEFAULT_CODEC_ID];
+    }
+
+    /**
+     * @return the provider registered with the id, null if not found
+     */
+    public static CodecProvider getCodecProvider(int id) {
+        if (id < 0 || id >= codecProviders.length) {
+            return null;
+        }
+        synchronized (codecProviders) {
+            return codecProviders[id];
+        }
+    }
+
+    /**
+     * Register the provider so that packets generated by this codec can be parsed and the remote side can select it.
+     * A provider registered with the same id is replaced, the default BON codec cannot be replaced.
+     */
+    public static void registerCodecProvider(CodecProvider codecProvider) {
+        int id = codecProvider.getId();
+        if (id <= DEFAULT_CODEC_ID || id >= codecProviders.length) {
+            throw new IllegalArgumentException(String.format("codec id should >= 1 and <= 15, id: %1$d", id));
+        }
+        synchronized (codecProviders) {
+            codecProviders[id] = codecProvider;
+        }
+    }
+
+    public static void unregisterCodecProvider(CodecProvider codecProvider) {
+        int id = codecProvider.getId();
+        if (id <= DEFAULT_CODEC_ID || id >= codecProviders.length) {
+            return;
+        }
+        synchronized (codecProviders) {
+            if (codecProviders[id] == codecProvider) {
+                codecProviders[id] = null;
+            }
+        }
     }
 }
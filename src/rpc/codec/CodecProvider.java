@@ -0,0 +1,43 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.codec;
+
+/**
+ * A codec that can be selected per {@link rpc.RPCRegistry} or per {@link rpc.RPC}, see
+ * {@link CodecFactory#registerCodecProvider(CodecProvider)}. Both sides must register the provider with the same id and
+ * version to use it.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface CodecProvider {
+
+    /**
+     * The id carried in the packets, from 0 to 15, 0 is the default BON codec.
+     */
+    int getId();
+
+    int getVersion();
+
+    /**
+     * Get a new generator, the generator is used by one thread at a time.
+     */
+    Generator getGenerator();
+
+    /**
+     * Get a new parser, the parser is used by one thread at a time.
+     */
+    Parser getParser();
+}
@@ -0,0 +1,373 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.codec;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describe the declared type a decoded item should become, built once from the (generic) method parameter types.
+ * Parsers that understand the plan decode directly into the declared types, other parsers decode generically and
+ * use {@link #convert(Object)}.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DecoderPlan {
+
+    protected static final int OBJECT = 0;
+    protected static final int BOOLEAN = 1;
+    protected static final int BYTE = 2;
+    protected static final int SHORT = 3;
+    protected static final int INT = 4;
+    protected static final int LONG = 5;
+    protected static final int FLOAT = 6;
+    protected static final int DOUBLE = 7;
+    protected static final int STRING = 8;
+    protected static final int BINARY = 9;
+    protected static final int DATE = 10;
+    protected static final int ARRAY = 11;
+    protected static final int LIST = 12;
+    protected static final int SET = 13;
+    protected static final int MAP = 14;
+    protected static final int ARGUMENTS = 15;
+    //
+    protected static final DecoderPlan GENERIC = new DecoderPlan(OBJECT, Object.class, null, null, null);
+    //
+    protected final int kind;
+    protected final Class<?> type;
+    /**
+     * The key plan of map.
+     */
+    protected final DecoderPlan key;
+    /**
+     * The component plan of array, the element plan of list and set, the value plan of map.
+     */
+    protected final DecoderPlan value;
+    /**
+     * The plan of each argument.
+     */
+    protected final DecoderPlan[] elements;
+    /**
+     * True if the generic decoding result is already in the declared type.
+     */
+    protected final boolean generic;
+
+    protected DecoderPlan(int kind, Class<?> type, DecoderPlan key, DecoderPlan value, DecoderPlan[] elements) {
+        this.kind = kind;
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.elements = elements;
+
+        boolean _generic;
+        switch (kind) {
+            case OBJECT:
+            case BOOLEAN:
+            case STRING:
+            case BINARY:
+            case DATE:
+                _generic = true;
+                break;
+            case LIST:
+                _generic = value.generic;
+                break;
+            case MAP:
+                _generic = key.generic && value.generic;
+                break;
+            case ARGUMENTS:
+                _generic = true;
+                for (DecoderPlan element : elements) {
+                    _generic &= element.generic;
+                }
+                break;
+            default:
+                _generic = false;
+        }
+        generic = _generic;
+    }
+
+    /**
+     * Get the plan for the argument list of a method.
+     * @param types the generic parameter types of the method, excluding those not sent, e.g. the user object
+     */
+    public static DecoderPlan forArguments(Type[] types) {
+        DecoderPlan[] elements = new DecoderPlan[types.length];
+        for (int i = 0; i < types.length; i++) {
+            elements[i] = forType(types[i]);
+        }
+        return new DecoderPlan(ARGUMENTS, List.class, null, null, elements);
+    }
+
+    public static DecoderPlan forType(Type type) {
+        if (type instanceof Class) {
+            Class<?> _class = (Class<?>) type;
+            if (_class.equals(boolean.class) || _class.equals(Boolean.class)) {
+                return new DecoderPlan(BOOLEAN, Boolean.class, null, null, null);
+            } else if (_class.equals(byte.class) || _class.equals(Byte.class)) {
+                return new DecoderPlan(BYTE, Byte.class, null, null, null);
+            } else if (_class.equals(short.class) || _class.equals(Short.class)) {
+                return new DecoderPlan(SHORT, Short.class, null, null, null);
+            } else if (_class.equals(int.class) || _class.equals(Integer.class)) {
+                return new DecoderPlan(INT, Integer.class, null, null, null);
+            } else if (_class.equals(long.class) || _class.equals(Long.class)) {
+                return new DecoderPlan(LONG, Long.class, null, null, null);
+            } else if (_class.equals(float.class) || _class.equals(Float.class)) {
+                return new DecoderPlan(FLOAT, Float.class, null, null, null);
+            } else if (_class.equals(double.class) || _class.equals(Double.class)) {
+                return new DecoderPlan(DOUBLE, Double.class, null, null, null);
+            } else if (_class.equals(String.class)) {
+                return new DecoderPlan(STRING, String.class, null, null, null);
+            } else if (_class.equals(byte[].class)) {
+                return new DecoderPlan(BINARY, byte[].class, null, null, null);
+            } else if (_class.equals(Date.class)) {
+                return new DecoderPlan(DATE, Date.class, null, null, null);
+            } else if (_class.isArray()) {
+                return new DecoderPlan(ARRAY, _class, null, forType(_class.getComponentType()), null);
+            } else if (Collection.class.isAssignableFrom(_class) && _class.isAssignableFrom(ArrayList.class)) {
+                return new DecoderPlan(LIST, _class, null, GENERIC, null);
+            } else if (Collection.class.isAssignableFrom(_class) && _class.isAssignableFrom(HashSet.class)) {
+                return new DecoderPlan(SET, _class, null, GENERIC, null);
+            } else if (Map.class.isAssignableFrom(_class) && _class.isAssignableFrom(HashMap.class)) {
+                return new DecoderPlan(MAP, _class, GENERIC, GENERIC, null);
+            }
+            return new DecoderPlan(OBJECT, _class, null, null, null);
+        } else if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            DecoderPlan rawPlan = forType(parameterizedType.getRawType());
+            Type[] typeArguments = parameterizedType.getActualTypeArguments();
+            switch (rawPlan.kind) {
+                case LIST:
+                case SET:
+                    return new DecoderPlan(rawPlan.kind, rawPlan.type, null, forType(typeArguments[0]), null);
+                case MAP:
+                    return new DecoderPlan(MAP, rawPlan.type, forType(typeArguments[0]), forType(typeArguments[1]), null);
+                default:
+                    return rawPlan;
+            }
+        } else if (type instanceof GenericArrayType) {
+            return new DecoderPlan(ARRAY, rawClass(type), null, forType(((GenericArrayType) type).getGenericComponentType()), null);
+        } else if (type instanceof WildcardType) {
+            return forType(((WildcardType) type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return forType(((TypeVariable<?>) type).getBounds()[0]);
+        }
+        return GENERIC;
+    }
+
+    protected static Class<?> rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return rawClass(((ParameterizedType) type).getRawType());
+        } else if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawClass(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        } else if (type instanceof WildcardType) {
+            return rawClass(((WildcardType) type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return rawClass(((TypeVariable<?>) type).getBounds()[0]);
+        }
+        return Object.class;
+    }
+
+    public boolean isGeneric() {
+        return generic;
+    }
+
+    /**
+     * Get the plan of the element in a list, the argument in an argument list or the component in an array.
+     */
+    public DecoderPlan element(int index) {
+        if (kind == ARGUMENTS) {
+            return index < elements.length ? elements[index] : GENERIC;
+        }
+        return value != null ? value : GENERIC;
+    }
+
+    /**
+     * Convert a generically decoded value into the declared type. The value is returned unchanged if it cannot be
+     * converted without loss, the invocation will then fail on the argument type.
+     */
+    public Object convert(Object item) {
+        if (item == null || generic) {
+            return item;
+        }
+        switch (kind) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return convertNumber(item);
+            case ARRAY:
+                if (type.isInstance(item) || !(item instanceof List)) {
+                    return item;
+                }
+                List<?> list = (List<?>) item;
+                Object array = newArray(list.size());
+                for (int i = 0, iEnd = list.size(); i < iEnd; i++) {
+                    if (!setElement(array, i, value.convert(list.get(i)))) {
+                        return item;
+                    }
+                }
+                return array;
+            case LIST:
+            case SET:
+            case ARGUMENTS:
+                if (!(item instanceof Collection)) {
+                    return item;
+                }
+                Collection<?> items = (Collection<?>) item;
+                Collection<Object> collection = newCollection(items.size());
+                int index = 0;
+                for (Object element : items) {
+                    collection.add(element(index++).convert(element));
+                }
+                return collection;
+            case MAP:
+                if (!(item instanceof Map)) {
+                    return item;
+                }
+                Map<?, ?> entries = (Map<?, ?>) item;
+                Map<Object, Object> map = newMap(entries.size());
+                for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                    map.put(key.convert(entry.getKey()), value.convert(entry.getValue()));
+                }
+                return map;
+        }
+        return item;
+    }
+
+    protected Object convertNumber(Object item) {
+        if (type.isInstance(item) || !(item instanceof Number)) {
+            return item;
+        }
+        Number number = (Number) item;
+        boolean integral = item instanceof Integer || item instanceof Long || item instanceof Short || item instanceof Byte;
+        long longValue = number.longValue();
+        switch (kind) {
+            case BYTE:
+                return integral && longValue >= Byte.MIN_VALUE && longValue <= Byte.MAX_VALUE ? (Object) (byte) longValue : item;
+            case SHORT:
+                return integral && longValue >= Short.MIN_VALUE && longValue <= Short.MAX_VALUE ? (Object) (short) longValue : item;
+            case INT:
+                return integral && longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE ? (Object) (int) longValue : item;
+            case LONG:
+                return integral ? (Object) longValue : item;
+            case FLOAT:
+                float floatValue = number.floatValue();
+                if (integral) {
+                    // the float of Long.MAX_VALUE is 2^63, which casts back to Long.MAX_VALUE
+                    return (long) floatValue == longValue && floatValue != 0x1p63f ? (Object) floatValue : item;
+                }
+                double doubleValue = number.doubleValue();
+                return item instanceof Double && (floatValue == doubleValue || Double.isNaN(doubleValue)) ? (Object) floatValue : item;
+            case DOUBLE:
+                if (integral) {
+                    double integralValue = number.doubleValue();
+                    return (long) integralValue == longValue && integralValue != 0x1p63 ? (Object) integralValue : item;
+                }
+                return item instanceof Float ? (Object) number.doubleValue() : item;
+        }
+        return item;
+    }
+
+    protected Object newArray(int length) {
+        return Array.newInstance(type.getComponentType(), length);
+    }
+
+    /**
+     * Set the element of the array created by {@link #newArray(int)}.
+     * @return false if the element is not in the component type
+     */
+    protected boolean setElement(Object array, int index, Object element) {
+        if (element == null) {
+            if (type.getComponentType().isPrimitive()) {
+                return false;
+            }
+            return true;
+        }
+        if (!type.getComponentType().isPrimitive()) {
+            if (!type.getComponentType().isInstance(element)) {
+                return false;
+            }
+            ((Object[]) array)[index] = element;
+            return true;
+        }
+        if (!value.type.isInstance(element)) {
+            return false;
+        }
+        switch (value.kind) {
+            case BOOLEAN:
+                ((boolean[]) array)[index] = (Boolean) element;
+                break;
+            case BYTE:
+                ((byte[]) array)[index] = (Byte) element;
+                break;
+            case SHORT:
+                ((short[]) array)[index] = (Short) element;
+                break;
+            case INT:
+                ((int[]) array)[index] = (Integer) element;
+                break;
+            case LONG:
+                ((long[]) array)[index] = (Long) element;
+                break;
+            case FLOAT:
+                ((float[]) array)[index] = (Float) element;
+                break;
+            case DOUBLE:
+                ((double[]) array)[index] = (Double) element;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the first {@code length} elements of the array created by {@link #newArray(int)} into a list.
+     */
+    protected List<Object> toList(Object array, int length) {
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < length; i++) {
+            list.add(Array.get(array, i));
+        }
+        return list;
+    }
+
+    protected Collection<Object> newCollection(int size) {
+        if (kind == SET) {
+            return new HashSet<Object>(Math.max(16, (int) (size / 0.75F) + 1));
+        }
+        return new ArrayList<Object>(size);
+    }
+
+    protected Map<Object, Object> newMap(int size) {
+        return new HashMap<Object, Object>(Math.max(16, (int) (size / 0.75F) + 1));
+    }
+}
@@ -0,0 +1,104 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.codec;
+
+/**
+ * The BON codec, {@link DefaultGenerator} and {@link DefaultParser}.
+ * <p>
+ * The length-prefixed containers and the back-references are written only after the remote side accepted version
+ * {@link #EXTENDED_VERSION} of this codec, see {@link rpc.RPC#setCodecProvider(CodecProvider)}. The parser reads
+ * every version, the lazy containers only change how the packets received are decoded.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DefaultCodecProvider implements CodecProvider {
+
+    /**
+     * The version without length-prefixed containers and back-references.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The version with length-prefixed containers (header 17 and 18) and back-references (header 19 and 20).
+     */
+    public static final int EXTENDED_VERSION = 2;
+    protected final boolean lengthPrefixedContainer;
+    protected final boolean backReference;
+    protected final boolean lazyContainer;
+
+    protected DefaultCodecProvider() {
+        this(false, false, false);
+    }
+
+    /**
+     * @param lengthPrefixedContainer see {@link DefaultGenerator#setLengthPrefixedContainer(boolean)}
+     * @param backReference see {@link DefaultGenerator#setBackReference(boolean)}
+     * @param lazyContainer see {@link DefaultParser#setLazyContainer(boolean)}
+     * @throws IllegalArgumentException both {@code backReference} and {@code lazyContainer} are true, the lazy views
+     * cannot resolve the back-references
+     */
+    public DefaultCodecProvider(boolean lengthPrefixedContainer, boolean backReference, boolean lazyContainer) {
+        if (backReference && lazyContainer) {
+            throw new IllegalArgumentException("backReference cannot be used with lazyContainer");
+        }
+        this.lengthPrefixedContainer = lengthPrefixedContainer;
+        this.backReference = backReference;
+        this.lazyContainer = lazyContainer;
+    }
+
+    public boolean isLengthPrefixedContainer() {
+        return lengthPrefixedContainer;
+    }
+
+    public boolean isBackReference() {
+        return backReference;
+    }
+
+    public boolean isLazyContainer() {
+        return lazyContainer;
+    }
+
+    /**
+     * Check if the messages generated by {@code version} of this codec can be parsed.
+     */
+    public boolean isSupported(int version) {
+        return version == VERSION || version == EXTENDED_VERSION;
+    }
+
+    @Override
+    public int getId() {
+        return CodecFactory.DEFAULT_CODEC_ID;
+    }
+
+    @Override
+    public int getVersion() {
+        return lengthPrefixedContainer || backReference ? EXTENDED_VERSION : VERSION;
+    }
+
+    @Override
+    public Generator getGenerator() {
+        DefaultGenerator generator = new DefaultGenerator();
+        generator.setLengthPrefixedContainer(lengthPrefixedContainer);
+        generator.setBackReference(backReference);
+        return generator;
+    }
+
+    @Override
+    public Parser getParser() {
+        DefaultParser parser = new DefaultParser();
+        parser.setLazyContainer(lazyContainer);
+        return parser;
+    }
+}
@@ -16,10 +16,16 @@
 // along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
 package rpc.codec;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -34,40 +40,171 @@ public class DefaultGenerator implements Generator {
     private static final Logger LOG = Logger.getLogger(DefaultGenerator.class.getName());
     protected static final long UNSIGNED_4BYTES_MAX = 4294967295L;
     protected static final long UNSIGNED_6BYTES_MAX = 281474976710655L;
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
     protected OutputStream out;
     private final byte[] buffer = new byte[9];
-    protected ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    // length-prefixed container
+    protected boolean lengthPrefixedContainer = false;
+    // back-reference, index of the strings, byte arrays and containers written in the current message
+    protected boolean backReference = false;
+    protected final Map<Object, Integer> references = new IdentityHashMap<Object, Integer>();
+    protected final Map<Object, Integer> measuredReferences = new IdentityHashMap<Object, Integer>();
+    // result of measure(), consumed by the following write of the same data
+    protected Object measuredData = null;
+    protected int measuredLength = -1;
+    protected boolean measured = false;
+    protected final List<byte[]> measuredStrings = new ArrayList<byte[]>();
+    protected int measuredStringIndex = 0;
+    protected int[] measuredContainerLengths = new int[16];
+    protected int measuredContainerCount = 0;
+    protected int measuredContainerIndex = 0;
 
     protected DefaultGenerator() {
     }
 
+    public boolean isLengthPrefixedContainer() {
+        return lengthPrefixedContainer;
+    }
+
+    /**
+     * Write maps and lists with the element count and the byte length of the container body in front instead of using a terminator.
+     * This allow the parser to pre-size the containers, skip unused sub-trees and decode the elements lazily.
+     * @param lengthPrefixedContainer true to write length-prefixed containers
+     */
+    public void setLengthPrefixedContainer(boolean lengthPrefixedContainer) {
+        this.lengthPrefixedContainer = lengthPrefixedContainer;
+    }
+
+    public boolean isBackReference() {
+        return backReference;
+    }
+
+    /**
+     * Write a back-reference instead of the content for the string, byte array, map, list or array instance that is
+     * already written in the same message, the parser resolve it to the same decoded instance. The instances are
+     * tracked by identity, equal but different instances are written in full.
+     * Format: the message start with 20; a back-reference is 19 followed by the index (int item) of the referenced
+     * instance, the instances are indexed in the order they are completely written, excluding the root container.
+     * @param backReference true to write back-references
+     */
+    public void setBackReference(boolean backReference) {
+        this.backReference = backReference;
+    }
+
     @Override
     public byte[] generate(Object data) throws UnsupportedDataTypeException {
+        byte[] returnValue = new byte[measure(data)];
+        generate(data, returnValue, 0);
+        return returnValue;
+    }
+
+    @Override
+    public int measure(Object data) throws UnsupportedDataTypeException {
+        clearMeasure();
+
+        int length = backReference ? 1 : 0;
+        if (data instanceof List) {
+            length += measureList((List<?>) data);
+        } else if (data instanceof Map) {
+            length += measureMap((Map<?, ?>) data);
+        } else {
+            throw new UnsupportedDataTypeException();
+        }
+
+        measuredData = data;
+        measuredLength = length;
+        return length;
+    }
+
+    @Override
+    public int generate(Object data, byte[] b, int offset) throws UnsupportedDataTypeException {
+        if (measuredData != data) {
+            measure(data);
+        }
+        int length = measuredLength;
+
+        ArrayOutputStream arrayStream = new ArrayOutputStream(b, offset, length);
         try {
-            write(byteStream, data);
-            return byteStream.toByteArray();
+            writeMeasured(arrayStream, data);
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
+            throw new UnsupportedDataTypeException("error occurred when generating the data, the data may be modified after measured", ex);
         } finally {
-            byteStream.reset();
+            clearMeasure();
+        }
+        if (arrayStream.size() != length) {
+            throw new UnsupportedDataTypeException("generated length not match the measured length, the data may be modified after measured");
         }
-        return null;
+
+        return length;
     }
 
     @Override
     public void write(OutputStream outputStream, Object data) throws IOException, UnsupportedDataTypeException {
+        if (lengthPrefixedContainer) {
+            // the container body length is needed before writing the body
+            measure(data);
+            try {
+                writeMeasured(outputStream, data);
+            } finally {
+                clearMeasure();
+            }
+            return;
+        }
+
         this.out = outputStream;
-        if (data instanceof List) {
-            writeList((List<Object>) data);
-        } else if (data instanceof Map) {
-            writeMap((Map<Object, Object>) data);
-        } else {
+        writeRoot(data);
+    }
+
+    protected void writeMeasured(OutputStream outputStream, Object data) throws IOException, UnsupportedDataTypeException {
+        this.out = outputStream;
+        measured = true;
+        measuredStringIndex = 0;
+        measuredContainerIndex = 0;
+        writeRoot(data);
+    }
+
+    protected void writeRoot(Object data) throws IOException, UnsupportedDataTypeException {
+        if (!(data instanceof List) && !(data instanceof Map)) {
             throw new UnsupportedDataTypeException();
         }
+        if (backReference) {
+            out.write(20);
+        }
+        references.clear();
+        try {
+            if (data instanceof List) {
+                writeList((List<?>) data);
+            } else {
+                writeMap((Map<?, ?>) data);
+            }
+        } finally {
+            references.clear();
+        }
+    }
+
+    protected static boolean isReferenceable(Object item) {
+        return item instanceof String || item instanceof byte[] || item instanceof Map || item instanceof Collection
+                || (item != null && item.getClass().isArray());
     }
 
-    protected void writeMap(Map<Object, Object> data) throws IOException, UnsupportedDataTypeException {
-        out.write(1);
+    protected void clearMeasure() {
+        measuredData = null;
+        measuredLength = -1;
+        measured = false;
+        measuredStrings.clear();
+        measuredStringIndex = 0;
+        measuredContainerCount = 0;
+        measuredContainerIndex = 0;
+        measuredReferences.clear();
+    }
+
+    protected void writeMap(Map<?, ?> data) throws IOException, UnsupportedDataTypeException {
+        if (lengthPrefixedContainer) {
+            writeLengthPrefixedContainerHeader(17, data.size());
+        } else {
+            out.write(1);
+        }
 
         for (Object itemKey : data.keySet()) {
             Object item = data.get(itemKey);
@@ -75,24 +212,165 @@ public class DefaultGenerator implements Generator {
             writeItem(item);
         }
 
-        out.write(0);
+        if (!lengthPrefixedContainer) {
+            out.write(0);
+        }
     }
 
-    protected void writeList(List<Object> data) throws IOException, UnsupportedDataTypeException {
-        out.write(2);
+    protected void writeList(Collection<?> data) throws IOException, UnsupportedDataTypeException {
+        if (lengthPrefixedContainer) {
+            writeLengthPrefixedContainerHeader(18, data.size());
+        } else {
+            out.write(2);
+        }
 
         for (Object item : data) {
             writeItem(item);
         }
 
-        out.write(0);
+        if (!lengthPrefixedContainer) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * Format: header (17 for map, 18 for list), element count (int item), body byte length (int item), body.
+     * The body length is taken from the measure result.
+     */
+    protected void writeLengthPrefixedContainerHeader(int header, int count) throws IOException, UnsupportedDataTypeException {
+        if (!measured || measuredContainerIndex >= measuredContainerCount) {
+            throw new UnsupportedDataTypeException("container not measured");
+        }
+        out.write(header);
+        out.write(buffer, 0, packInt(6, count));
+        out.write(buffer, 0, packInt(6, measuredContainerLengths[measuredContainerIndex++]));
+    }
+
+    protected int measureMap(Map<?, ?> data) throws UnsupportedDataTypeException {
+        int slot = lengthPrefixedContainer ? reserveContainerSlot() : -1;
+
+        int bodyLength = 0;
+        for (Object itemKey : data.keySet()) {
+            Object item = data.get(itemKey);
+            bodyLength += measureItem(itemKey);
+            bodyLength += measureItem(item);
+        }
+
+        return containerLength(slot, data.size(), bodyLength);
+    }
+
+    protected int measureList(Collection<?> data) throws UnsupportedDataTypeException {
+        int slot = lengthPrefixedContainer ? reserveContainerSlot() : -1;
+
+        int bodyLength = 0;
+        for (Object item : data) {
+            bodyLength += measureItem(item);
+        }
+
+        return containerLength(slot, data.size(), bodyLength);
+    }
+
+    protected int reserveContainerSlot() {
+        // containers are written in the same (pre-)order as they are measured
+        if (measuredContainerCount == measuredContainerLengths.length) {
+            int[] newLengths = new int[measuredContainerLengths.length * 2];
+            System.arraycopy(measuredContainerLengths, 0, newLengths, 0, measuredContainerCount);
+            measuredContainerLengths = newLengths;
+        }
+        return measuredContainerCount++;
+    }
+
+    protected int containerLength(int slot, int count, int bodyLength) throws UnsupportedDataTypeException {
+        if (bodyLength < 0) {
+            throw new UnsupportedDataTypeException("data too large");
+        }
+        if (slot == -1) {
+            // start and terminator
+            return bodyLength + 2;
+        }
+        measuredContainerLengths[slot] = bodyLength;
+        return 1 + packInt(6, count) + packInt(6, bodyLength) + bodyLength;
+    }
+
+    protected int measureItem(Object item) throws UnsupportedDataTypeException {
+        if (!backReference || !isReferenceable(item)) {
+            return measureValue(item);
+        }
+        Integer index = measuredReferences.get(item);
+        if (index != null) {
+            return 1 + packInt(6, index);
+        }
+        int length = measureValue(item);
+        measuredReferences.put(item, measuredReferences.size());
+        return length;
+    }
+
+    protected int measureValue(Object item) throws UnsupportedDataTypeException {
+        if (item instanceof Integer) {
+            return packInt(6, (Integer) item);
+        } else if (item instanceof String) {
+            byte[] stringBytes = ((String) item).getBytes(UTF8);
+            measuredStrings.add(stringBytes);
+            return measureBytes(stringBytes.length);
+        } else if (item instanceof Long) {
+            return packLong(7, (Long) item);
+        } else if (item instanceof Date) {
+            return packLong(11, ((Date) item).getTime());
+        } else if (item instanceof Float) {
+            return 5;
+        } else if (item instanceof Double) {
+            return 9;
+        } else if (item instanceof byte[]) {
+            return measureBytes(((byte[]) item).length);
+        } else if (item instanceof Map) {
+            return measureMap((Map<?, ?>) item);
+        } else if (item instanceof List) {
+            return measureList((List<?>) item);
+        } else if (item instanceof Boolean) {
+            return 1;
+        } else if (item instanceof Short) {
+            return packShort(5, (Short) item);
+        } else if (item == null) {
+            return 1;
+        } else if (item instanceof Collection) {
+            return measureList((Collection<?>) item);
+        } else if (item.getClass().isArray()) {
+            return measureList(asList(item));
+        } else {
+            throw new UnsupportedDataTypeException();
+        }
+    }
+
+    protected int measureBytes(int length) throws UnsupportedDataTypeException {
+        if (length <= 255) {
+            return 2 + length;
+        } else if (length <= 16777215) {
+            return 4 + length;
+        } else {
+            throw new UnsupportedDataTypeException();
+        }
     }
 
     protected void writeItem(Object item) throws IOException, UnsupportedDataTypeException {
+        if (!backReference || !isReferenceable(item)) {
+            writeValue(item);
+            return;
+        }
+        Integer index = references.get(item);
+        if (index != null) {
+            out.write(19);
+            out.write(buffer, 0, packInt(6, index));
+            return;
+        }
+        writeValue(item);
+        references.put(item, references.size());
+    }
+
+    protected void writeValue(Object item) throws IOException, UnsupportedDataTypeException {
         if (item instanceof Integer) {
             out.write(buffer, 0, packInt(6, (Integer) item));
         } else if (item instanceof String) {
-            byte[] stringBytes = ((String) item).getBytes("UTF-8");
+            byte[] stringBytes = measured ? measuredStrings.get(measuredStringIndex++) : ((String) item).getBytes(UTF8);
 
             int stringBytesLength = stringBytes.length;
             if (stringBytesLength <= 255) {
@@ -156,20 +434,34 @@ public class DefaultGenerator implements Generator {
 
             out.write(binaryBytes, 0, binaryBytesLength);
         } else if (item instanceof Map) {
-            writeMap((Map<Object, Object>) item);
+            writeMap((Map<?, ?>) item);
         } else if (item instanceof List) {
-            writeList((List<Object>) item);
+            writeList((List<?>) item);
         } else if (item instanceof Boolean) {
             out.write((Boolean) item ? 8 : 9);
         } else if (item instanceof Short) {
             out.write(buffer, 0, packShort(5, (Short) item));
         } else if (item == null) {
             out.write(10);
+        } else if (item instanceof Collection) {
+            writeList((Collection<?>) item);
+        } else if (item.getClass().isArray()) {
+            writeList(asList(item));
         } else {
             throw new UnsupportedDataTypeException();
         }
     }
 
+    /**
+     * Arrays (other than byte[]) are written as list.
+     */
+    protected static List<Object> asList(Object array) {
+        if (array instanceof Object[]) {
+            return Arrays.asList((Object[]) array);
+        }
+        return new PrimitiveArrayList(array);
+    }
+
     protected int packShort(int type, short d) {
         // record sign
         int sign = (d >> 8) & 0x80;
@@ -317,4 +609,67 @@ public class DefaultGenerator implements Generator {
             }
         }
     }
+
+    /**
+     * Read-only list view of a primitive array.
+     */
+    protected static class PrimitiveArrayList extends AbstractList<Object> {
+
+        protected final Object array;
+        protected final int size;
+
+        protected PrimitiveArrayList(Object array) {
+            this.array = array;
+            size = Array.getLength(array);
+        }
+
+        @Override
+        public Object get(int index) {
+            return Array.get(array, index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Write into a region of a byte array, it never grow.
+     */
+    protected static class ArrayOutputStream extends OutputStream {
+
+        protected final byte[] buf;
+        protected final int offset;
+        protected final int end;
+        protected int pos;
+
+        protected ArrayOutputStream(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.offset = offset;
+            this.end = offset + length;
+            this.pos = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos >= end) {
+                throw new IOException("exceed the length of the output region");
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > end - pos) {
+                throw new IOException("exceed the length of the output region");
+            }
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        public int size() {
+            return pos - offset;
+        }
+    }
 }
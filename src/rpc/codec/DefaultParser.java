@@ -19,11 +19,19 @@ package rpc.codec;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rpc.codec.exception.InvalidFormatException;
@@ -37,16 +45,65 @@ public class DefaultParser implements Parser {
     protected InputStream in;
     private int byteRead = 0;
     private final byte[] buffer = new byte[8];
+    protected boolean lazyContainer = false;
+    // back-reference, the decoded strings, byte arrays and containers of the current message, null if the message
+    // contains no back-reference
+    protected List<Object> references = null;
 
     protected DefaultParser() {
     }
 
+    public boolean isLazyContainer() {
+        return lazyContainer;
+    }
+
+    /**
+     * Return length-prefixed maps and lists as views that decode an element only when it is accessed.
+     * This only take effect when parsing from byte array, the views keep a reference to the byte array.
+     * The messages with back-references are always decoded eagerly, the views decode the elements out of order so they
+     * cannot resolve the back-references.
+     * @param lazyContainer true to decode length-prefixed containers lazily
+     */
+    public void setLazyContainer(boolean lazyContainer) {
+        this.lazyContainer = lazyContainer;
+    }
+
     @Override
     public Object parse(byte[] data) throws InvalidFormatException {
         try {
-            return read(new ByteArrayInputStream(data));
+            return read(new BufferInputStream(data, 0, data.length));
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    public Object parse(byte[] data, DecoderPlan plan) throws InvalidFormatException {
+        return parse(data, 0, data.length, plan);
+    }
+
+    @Override
+    public Object parse(byte[] data, int offset, int length, DecoderPlan plan) throws InvalidFormatException {
+        try {
+            if (plan == null || plan.isGeneric()) {
+                return read(new BufferInputStream(data, offset, length));
+            }
+            in = new BufferInputStream(data, offset, length);
+            int dataType = readRootHeader();
+            switch (dataType) {
+                case 1:
+                case 17:
+                    return readTypedMap(dataType == 17, plan);
+                case 2:
+                case 18:
+                    return readTypedList(dataType == 18, plan);
+                default:
+                    throw new InvalidFormatException(String.format("dataType '%1$d' not supported", dataType));
+            }
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            references = null;
         }
         return null;
     }
@@ -55,15 +112,57 @@ public class DefaultParser implements Parser {
     public Object read(InputStream inputStream) throws IOException, InvalidFormatException {
         this.in = inputStream;
 
-        int dataType = inputStream.read();
-        switch (dataType) {
-            case 1:
-                return readMap();
-            case 2:
-                return readList();
-            default:
-                throw new InvalidFormatException(String.format("dataType '%1$d' not supported", dataType));
+        try {
+            int dataType = readRootHeader();
+            switch (dataType) {
+                case 1:
+                    return readMap();
+                case 2:
+                    return readList();
+                case 17:
+                    return readLengthPrefixedMap();
+                case 18:
+                    return readLengthPrefixedList();
+                default:
+                    throw new InvalidFormatException(String.format("dataType '%1$d' not supported", dataType));
+            }
+        } finally {
+            references = null;
+        }
+    }
+
+    /**
+     * Read the header of the root container, the message start with 20 if it may contain back-references.
+     */
+    protected int readRootHeader() throws IOException {
+        references = null;
+        int dataType = in.read();
+        if (dataType == 20) {
+            references = new ArrayList<Object>();
+            dataType = in.read();
+        }
+        return dataType;
+    }
+
+    /**
+     * Read a back-reference (the header is read), the index of an instance decoded before in the message.
+     */
+    protected Object readReference() throws IOException, InvalidFormatException {
+        int index = readContainerInt();
+        if (index >= references.size()) {
+            throw new InvalidFormatException(String.format("Back-reference %1$d not found, %2$d instance(s) decoded", index, references.size()));
         }
+        return references.get(index);
+    }
+
+    /**
+     * Record the decoded instance for the back-references after it.
+     */
+    protected Object addReference(Object item) {
+        if (references != null) {
+            references.add(item);
+        }
+        return item;
     }
 
     protected List<Object> readList() throws IOException, InvalidFormatException {
@@ -106,12 +205,352 @@ public class DefaultParser implements Parser {
         return returnMap;
     }
 
+    protected List<Object> readLengthPrefixedList() throws IOException, InvalidFormatException {
+        int count = readContainerInt();
+        int length = readContainerInt();
+        if (count > length) {
+            throw new InvalidFormatException(String.format("List element count %1$d larger than body length %2$d", count, length));
+        }
+
+        if (lazyContainer && references == null && in instanceof BufferInputStream) {
+            BufferInputStream bufferIn = (BufferInputStream) in;
+            if (bufferIn.available() < length) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but %2$s byte(s) available", length, bufferIn.available()));
+            }
+            List<Object> returnList = new LazyList(bufferIn.array(), bufferIn.position(), length, count);
+            bufferIn.seek(bufferIn.position() + length);
+            return returnList;
+        }
+
+        List<Object> returnList = new ArrayList<Object>(count);
+
+        int dataType;
+        for (int i = 0; i < count; i++) {
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+            }
+            returnList.add(readItem(dataType));
+        }
+
+        return returnList;
+    }
+
+    protected Map<Object, Object> readLengthPrefixedMap() throws IOException, InvalidFormatException {
+        int count = readContainerInt();
+        int length = readContainerInt();
+        if (count * 2L > length) {
+            throw new InvalidFormatException(String.format("Map element count %1$d too large for body length %2$d", count, length));
+        }
+
+        if (lazyContainer && references == null && in instanceof BufferInputStream) {
+            BufferInputStream bufferIn = (BufferInputStream) in;
+            if (bufferIn.available() < length) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but %2$s byte(s) available", length, bufferIn.available()));
+            }
+            Map<Object, Object> returnMap = new LazyMap(bufferIn.array(), bufferIn.position(), length, count);
+            bufferIn.seek(bufferIn.position() + length);
+            return returnMap;
+        }
+
+        Map<Object, Object> returnMap = new HashMap<Object, Object>(Math.max(16, (int) (count / 0.75F) + 1));
+
+        int dataType;
+        for (int i = 0; i < count; i++) {
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+            }
+            Object elementName = readItem(dataType);
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Element data not found for key '%1$s'", elementName));
+            }
+            returnMap.put(elementName, readItem(dataType));
+        }
+
+        return returnMap;
+    }
+
+    /**
+     * Read an item into the declared type of the plan, the containers are decoded directly into the declared
+     * container or array without an intermediate generic container.
+     */
+    protected Object readItem(int header, DecoderPlan plan) throws IOException, InvalidFormatException {
+        if (plan.isGeneric()) {
+            return readItem(header);
+        }
+        switch (plan.kind) {
+            case DecoderPlan.ARRAY:
+            case DecoderPlan.LIST:
+            case DecoderPlan.SET:
+            case DecoderPlan.ARGUMENTS:
+                if (header == 2 || header == 18) {
+                    return addReference(readTypedList(header == 18, plan));
+                }
+                break;
+            case DecoderPlan.MAP:
+                if (header == 1 || header == 17) {
+                    return addReference(readTypedMap(header == 17, plan));
+                }
+                break;
+        }
+        return plan.convert(readItem(header));
+    }
+
+    /**
+     * Read a list (the header is read) into an array or a collection described by the plan.
+     */
+    protected Object readTypedList(boolean lengthPrefixed, DecoderPlan plan) throws IOException, InvalidFormatException {
+        if (plan.kind == DecoderPlan.MAP) {
+            return plan.convert(lengthPrefixed ? readLengthPrefixedList() : readList());
+        }
+
+        int count = -1;
+        if (lengthPrefixed) {
+            count = readContainerInt();
+            int length = readContainerInt();
+            if (count > length) {
+                throw new InvalidFormatException(String.format("List element count %1$d larger than body length %2$d", count, length));
+            }
+        }
+
+        int dataType;
+        if (plan.kind == DecoderPlan.ARRAY && count != -1) {
+            Object array = plan.newArray(count);
+            for (int i = 0; i < count; i++) {
+                if ((dataType = in.read()) == -1) {
+                    throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                }
+                Object element = readItem(dataType, plan.element(i));
+                if (!plan.setElement(array, i, element)) {
+                    // not in the declared type, keep it generic and let the invocation fail on the argument type
+                    List<Object> returnList = plan.toList(array, i);
+                    returnList.add(element);
+                    for (i++; i < count; i++) {
+                        if ((dataType = in.read()) == -1) {
+                            throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                        }
+                        returnList.add(readItem(dataType));
+                    }
+                    return returnList;
+                }
+            }
+            return array;
+        }
+
+        Collection<Object> returnCollection = plan.kind == DecoderPlan.ARRAY ? new ArrayList<Object>() : plan.newCollection(count == -1 ? 10 : count);
+        int index = 0;
+        if (count == -1) {
+            while ((dataType = in.read()) > 0) {
+                returnCollection.add(readItem(dataType, plan.element(index++)));
+            }
+        } else {
+            for (; index < count; index++) {
+                if ((dataType = in.read()) == -1) {
+                    throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                }
+                returnCollection.add(readItem(dataType, plan.element(index)));
+            }
+        }
+
+        return plan.kind == DecoderPlan.ARRAY ? plan.convert(returnCollection) : returnCollection;
+    }
+
+    /**
+     * Read a map (the header is read) into a map with the key and value types described by the plan.
+     */
+    protected Object readTypedMap(boolean lengthPrefixed, DecoderPlan plan) throws IOException, InvalidFormatException {
+        if (plan.kind != DecoderPlan.MAP) {
+            return plan.convert(lengthPrefixed ? readLengthPrefixedMap() : readMap());
+        }
+
+        if (!lengthPrefixed) {
+            Map<Object, Object> returnMap = plan.newMap(16);
+
+            int dataType;
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+            }
+            Object elementName = readItem(dataType, plan.key);
+
+            while ((dataType = in.read()) > 0) {
+                returnMap.put(elementName, readItem(dataType, plan.value));
+
+                dataType = in.read();
+                if (dataType == 0) {
+                    return returnMap;
+                } else if (dataType == -1) {
+                    throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                }
+                elementName = readItem(dataType, plan.key);
+            }
+
+            if (returnMap.isEmpty()) {
+                throw new InvalidFormatException(String.format("Element data not found for key '%1$s'", elementName));
+            }
+
+            return returnMap;
+        }
+
+        int count = readContainerInt();
+        int length = readContainerInt();
+        if (count * 2L > length) {
+            throw new InvalidFormatException(String.format("Map element count %1$d too large for body length %2$d", count, length));
+        }
+
+        Map<Object, Object> returnMap = plan.newMap(count);
+
+        int dataType;
+        for (int i = 0; i < count; i++) {
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+            }
+            Object elementName = readItem(dataType, plan.key);
+            if ((dataType = in.read()) == -1) {
+                throw new InvalidFormatException(String.format("Element data not found for key '%1$s'", elementName));
+            }
+            returnMap.put(elementName, readItem(dataType, plan.value));
+        }
+
+        return returnMap;
+    }
+
+    /**
+     * Read the element count or body length of a length-prefixed container, which is a non-negative int item.
+     */
+    protected int readContainerInt() throws IOException, InvalidFormatException {
+        int header = in.read();
+        if (header == -1) {
+            throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+        }
+        if ((header & 0x0F) != 6 || (header & 0x80) != 0) {
+            throw new InvalidFormatException(String.format("Unexpected container length header: %1$d", header));
+        }
+        return readInt(header);
+    }
+
+    /**
+     * Skip an item without constructing it. Length-prefixed containers are skipped in one step.
+     */
+    protected void skipItem(int header) throws IOException, InvalidFormatException {
+        int dataType;
+        switch (header) {
+            case 1:
+                while ((dataType = in.read()) > 0) {
+                    skipItem(dataType);
+                    if ((dataType = in.read()) <= 0) {
+                        throw new InvalidFormatException("Element data not found when skipping map");
+                    }
+                    skipItem(dataType);
+                }
+                return;
+            case 2:
+                while ((dataType = in.read()) > 0) {
+                    skipItem(dataType);
+                }
+                return;
+            case 3:
+                skipBytes(4);
+                return;
+            case 4:
+                skipBytes(8);
+                return;
+            case 8:
+            case 9:
+            case 10:
+                return;
+            case 12:
+            case 14:
+                skipBytes(readLength(1));
+                return;
+            case 13:
+            case 15:
+                skipBytes(readLength(3));
+                return;
+            case 17:
+            case 18:
+                readContainerInt();
+                skipBytes(readContainerInt());
+                return;
+            default:
+                int type = header & 0x0F;
+                int length = ((header >> 4) & 0x07);
+                switch (type) {
+                    case 5:
+                        if (length > 1) {
+                            throw new InvalidFormatException(String.format("Unexpected byte array length for 'short' value: %1$d", length));
+                        }
+                        break;
+                    case 6:
+                        if (length > 3) {
+                            throw new InvalidFormatException(String.format("Unexpected byte array length for 'int' value: %1$d", length));
+                        }
+                        break;
+                    case 7:
+                    case 11:
+                        if (length == 4 || length == 6) {
+                            throw new InvalidFormatException(String.format("Unexpected byte array length for 'long' value: %1$d", length));
+                        }
+                        break;
+                    default:
+                        throw new InvalidFormatException(String.format("Unknown item header: %1$d", header));
+                }
+                skipBytes(length + 1);
+        }
+    }
+
+    protected int readLength(int byteLength) throws IOException, InvalidFormatException {
+        byteRead = in.read(buffer, 0, byteLength);
+        if (byteRead != byteLength) {
+            throw new InvalidFormatException(String.format("Expected to read %1$d bytes but %2$s byte(s) read", byteLength, byteRead));
+        }
+        int returnValue = 0;
+        for (int i = 0; i < byteLength; i++) {
+            returnValue |= (buffer[i] & 0xff) << (i * 8);
+        }
+        return returnValue;
+    }
+
+    protected void skipBytes(int length) throws IOException, InvalidFormatException {
+        long skipped = in.skip(length);
+        if (skipped != length) {
+            throw new InvalidFormatException(String.format("Expected to skip %1$d bytes but %2$s byte(s) skipped", length, skipped));
+        }
+    }
+
     protected Object readItem(int header) throws IOException, InvalidFormatException {
+        if (references == null) {
+            if (header == 19) {
+                // the lazy views are created for the messages without back-references only
+                throw new InvalidFormatException("Back-reference found in a message without back-references or in a lazy container");
+            }
+            return readValue(header);
+        }
+        switch (header) {
+            case 19:
+                return readReference();
+            case 1:
+            case 2:
+            case 12:
+            case 13:
+            case 14:
+            case 15:
+            case 17:
+            case 18:
+                return addReference(readValue(header));
+            default:
+                return readValue(header);
+        }
+    }
+
+    protected Object readValue(int header) throws IOException, InvalidFormatException {
         switch (header) {
             case 1:
                 return readMap();
             case 2:
                 return readList();
+            case 17:
+                return readLengthPrefixedMap();
+            case 18:
+                return readLengthPrefixedList();
             case 3:
                 byteRead = in.read(buffer, 0, 4);
                 if (byteRead != 4) {
@@ -374,4 +813,261 @@ public class DefaultParser implements Parser {
 
         return returnValue;
     }
+
+    /**
+     * {@link ByteArrayInputStream} that expose the backing array and the read position, used for skip-ahead and lazy decoding.
+     */
+    protected static class BufferInputStream extends ByteArrayInputStream {
+
+        protected BufferInputStream(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        protected byte[] array() {
+            return buf;
+        }
+
+        protected int position() {
+            return pos;
+        }
+
+        protected void seek(int position) {
+            pos = position;
+        }
+    }
+
+    /**
+     * Decode the items from a region of the message with its own parser, used by the lazy views.
+     */
+    protected static class LazyDecoder {
+
+        protected final DefaultParser parser;
+        protected final BufferInputStream in;
+
+        protected LazyDecoder(byte[] data, int offset, int length) {
+            in = new BufferInputStream(data, offset, length);
+            // no reference table, see readItem(int)
+            parser = new DefaultParser();
+            parser.lazyContainer = true;
+            parser.in = in;
+        }
+
+        protected Object decodeAt(int offset) {
+            in.seek(offset);
+            try {
+                int dataType = in.read();
+                if (dataType == -1) {
+                    throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                }
+                return parser.readItem(dataType);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            } catch (InvalidFormatException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * @return the offset of the next item
+         */
+        protected int skipAt(int offset) {
+            in.seek(offset);
+            try {
+                int dataType = in.read();
+                if (dataType == -1) {
+                    throw new InvalidFormatException(String.format("Expected to read %1$d bytes but failed", 1));
+                }
+                parser.skipItem(dataType);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            } catch (InvalidFormatException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return in.position();
+        }
+    }
+
+    /**
+     * List view on a length-prefixed list, the element offsets are located and the elements are decoded on first access.
+     */
+    protected static class LazyList extends AbstractList<Object> implements RandomAccess {
+
+        protected final LazyDecoder decoder;
+        protected final int size;
+        protected final int[] offsets;
+        protected int offsetsFound;
+        protected final Object[] values;
+        protected final boolean[] decoded;
+
+        protected LazyList(byte[] data, int offset, int length, int size) {
+            decoder = new LazyDecoder(data, offset, length);
+            this.size = size;
+            offsets = new int[size + 1];
+            offsets[0] = offset;
+            offsetsFound = 1;
+            values = new Object[size];
+            decoded = new boolean[size];
+        }
+
+        @Override
+        public synchronized Object get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(String.format("Index: %1$d, Size: %2$d", index, size));
+            }
+            if (!decoded[index]) {
+                while (offsetsFound <= index) {
+                    offsets[offsetsFound] = decoder.skipAt(offsets[offsetsFound - 1]);
+                    offsetsFound++;
+                }
+                values[index] = decoder.decodeAt(offsets[index]);
+                decoded[index] = true;
+            }
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Map view on a length-prefixed map, the keys are decoded on first access, the values are decoded when they are accessed.
+     */
+    protected static class LazyMap extends AbstractMap<Object, Object> {
+
+        protected final LazyDecoder decoder;
+        protected final int offset;
+        protected final int size;
+        protected Object[] keys;
+        protected int[] valueOffsets;
+        protected Object[] values;
+        protected boolean[] decoded;
+        protected Map<Object, Integer> keyIndex;
+
+        protected LazyMap(byte[] data, int offset, int length, int size) {
+            decoder = new LazyDecoder(data, offset, length);
+            this.offset = offset;
+            this.size = size;
+        }
+
+        protected synchronized void index() {
+            if (keyIndex != null) {
+                return;
+            }
+            keys = new Object[size];
+            valueOffsets = new int[size];
+            values = new Object[size];
+            decoded = new boolean[size];
+            Map<Object, Integer> _keyIndex = new HashMap<Object, Integer>(Math.max(16, (int) (size / 0.75F) + 1));
+
+            int _offset = offset;
+            for (int i = 0; i < size; i++) {
+                keys[i] = decoder.decodeAt(_offset);
+                valueOffsets[i] = decoder.in.position();
+                _offset = decoder.skipAt(valueOffsets[i]);
+                _keyIndex.put(keys[i], i);
+            }
+
+            keyIndex = _keyIndex;
+        }
+
+        protected synchronized Object valueAt(int index) {
+            if (!decoded[index]) {
+                values[index] = decoder.decodeAt(valueOffsets[index]);
+                decoded[index] = true;
+            }
+            return values[index];
+        }
+
+        @Override
+        public Object get(Object key) {
+            index();
+            Integer index = keyIndex.get(key);
+            return index == null ? null : valueAt(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            index();
+            return keyIndex.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Entry<Object, Object>> entrySet() {
+            index();
+            return new AbstractSet<Entry<Object, Object>>() {
+
+                @Override
+                public Iterator<Entry<Object, Object>> iterator() {
+                    return new Iterator<Entry<Object, Object>>() {
+
+                        protected int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < size;
+                        }
+
+                        @Override
+                        public Entry<Object, Object> next() {
+                            if (index >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            final int entryIndex = index++;
+                            return new Entry<Object, Object>() {
+
+                                @Override
+                                public Object getKey() {
+                                    return keys[entryIndex];
+                                }
+
+                                @Override
+                                public Object getValue() {
+                                    return valueAt(entryIndex);
+                                }
+
+                                @Override
+                                public Object setValue(Object value) {
+                                    throw new UnsupportedOperationException();
+                                }
+
+                                @Override
+                                public boolean equals(Object o) {
+                                    if (!(o instanceof Entry)) {
+                                        return false;
+                                    }
+                                    Entry<?, ?> entry = (Entry<?, ?>) o;
+                                    Object value = getValue();
+                                    return (keys[entryIndex] == null ? entry.getKey() == null : keys[entryIndex].equals(entry.getKey()))
+                                            && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+                                }
+
+                                @Override
+                                public int hashCode() {
+                                    Object value = getValue();
+                                    return (keys[entryIndex] == null ? 0 : keys[entryIndex].hashCode()) ^ (value == null ? 0 : value.hashCode());
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
 }
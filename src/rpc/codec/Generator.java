@@ -27,5 +27,17 @@ public interface Generator {
 
     byte[] generate(Object data) throws UnsupportedDataTypeException;
 
+    /**
+     * Compute the encoded length of the data. The result is kept for the next {@link #generate(Object, byte[], int)} of the same data.
+     * @return the encoded length in bytes
+     */
+    int measure(Object data) throws UnsupportedDataTypeException;
+
+    /**
+     * Encode the data directly into {@code b} starting from {@code offset}, the region should have the measured length.
+     * @return the number of bytes written
+     */
+    int generate(Object data, byte[] b, int offset) throws UnsupportedDataTypeException;
+
     void write(OutputStream outputStream, Object data) throws IOException, UnsupportedDataTypeException;
 }
@@ -27,5 +27,12 @@ public interface Parser {
 
     Object parse(byte[] data) throws InvalidFormatException;
 
+    /**
+     * Parse {@code length} bytes of data from {@code offset} into the types described by the plan, parsers that
+     * decode generically should return the result converted by {@link DecoderPlan#convert(Object)}.
+     * @param plan the decoder plan, null to parse generically
+     */
+    Object parse(byte[] data, int offset, int length, DecoderPlan plan) throws InvalidFormatException;
+
     Object read(InputStream inputStream) throws IOException, InvalidFormatException;
 }
@@ -0,0 +1,34 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet;
+
+/**
+ * Provide the acknowledgements attached to the packets, see {@link Packetizer#setAcknowledgementSource(AcknowledgementSource)}.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface AcknowledgementSource {
+
+    /**
+     * Take the acknowledgements to attach to the packet being written, they are not returned again unless they need to
+     * be sent again.
+     * @param packetData the packet the acknowledgements are attached to, as packed without them, the source may learn
+     * that the acknowledgements are received when the packet is
+     * @return {sequentialId, respondedId, sequentialId, respondedId, ...}, the sequential id is -1 for the requests
+     * not sequential, or null if there is nothing to acknowledge
+     */
+    int[] pollAcknowledgements(byte[] packetData);
+}
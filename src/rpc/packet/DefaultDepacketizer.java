@@ -16,12 +16,17 @@
 // along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
 package rpc.packet;
 
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
 import rpc.codec.CodecFactory;
+import rpc.codec.CodecProvider;
 import rpc.codec.Parser;
 import rpc.codec.exception.InvalidFormatException;
+import rpc.packet.compress.CompressionStats;
+import rpc.packet.compress.Compressor;
+import rpc.packet.compress.CompressorFactory;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -29,7 +34,8 @@ import rpc.codec.exception.InvalidFormatException;
 public class DefaultDepacketizer extends Depacketizer {
 
     private static final Logger LOG = Logger.getLogger(DefaultDepacketizer.class.getName());
-    protected final Parser parser;
+    protected final Parser[] parsers;
+    protected final CodecProvider[] parserProviders;
     // header
     protected boolean packetStarted = false;
     protected int _headerRead = 0;
@@ -51,9 +57,163 @@ public class DefaultDepacketizer extends Depacketizer {
     protected int _crcBufferRead = 0;
     protected final CRC32 _crc32 = new CRC32();
     protected boolean _crcMatched = false;
+    // acknowledgements
+    protected int[] _acknowledgements = null;
 
     public DefaultDepacketizer() {
-        parser = CodecFactory.getParser();
+        parsers = new Parser[16];
+        parserProviders = new CodecProvider[16];
+    }
+
+    /**
+     * Get the parser of the codec, the packet content can be generated by any registered codec.
+     * @return the parser or null if the codec is not registered
+     */
+    protected Parser getParser(int codecId) {
+        CodecProvider _codecProvider = codecProvider;
+        if (_codecProvider == null || _codecProvider.getId() != codecId) {
+            _codecProvider = CodecFactory.getCodecProvider(codecId);
+            if (_codecProvider == null) {
+                return null;
+            }
+        }
+        if (parserProviders[codecId] != _codecProvider) {
+            parsers[codecId] = _codecProvider.getParser();
+            parserProviders[codecId] = _codecProvider;
+        }
+        return parsers[codecId];
+    }
+
+    /**
+     * Decompress the content of a compressed packet, see {@link DefaultPacketizer}.
+     * @param offset the offset of the compressor id, after the tag byte and the acknowledgements
+     * @return the decompressed content, null if the compressor is not registered, the uncompressed length exceed
+     * {@link #maxPacketSize} or the content is corrupted (including decompressed to a length other than declared)
+     */
+    protected byte[] decompress(byte[] content, int offset) {
+        int dataOffset = offset + DefaultPacketizer.compressedHeaderLength - 1;
+        if (content.length < dataOffset) {
+            LOG.log(Level.SEVERE, "compressed content too short");
+            return null;
+        }
+        Compressor compressor = CompressorFactory.getCompressor(content[offset] & 0xff);
+        if (compressor == null) {
+            LOG.log(Level.SEVERE, "compressor not registered, compressor id: {0}", new Object[]{content[offset] & 0xff});
+            return null;
+        }
+        int length = (content[offset + 1] & 0xff) | ((content[offset + 2] & 0xff) << 8) | ((content[offset + 3] & 0xff) << 16) | ((content[offset + 4] & 0xff) << 24);
+        if (length < 0 || length > maxPacketSize) {
+            LOG.log(Level.SEVERE, "invalid uncompressed length: {0}", new Object[]{length});
+            return null;
+        }
+
+        byte[] decompressed = new byte[length];
+        long startTime = System.nanoTime();
+        try {
+            compressor.decompress(content, dataOffset, content.length - dataOffset, decompressed, 0, length);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+        CompressionStats stats = compressionStats;
+        if (stats != null) {
+            stats.decompressed(length, System.nanoTime() - startTime);
+        }
+        return decompressed;
+    }
+
+    /**
+     * Parse the packets in a batch, see {@link DefaultPacketizer}. All packets are parsed before any of them is
+     * delivered.
+     * @param batchSize the number of packets in the batch, it is the request id in the packet header
+     * @param acknowledgements the acknowledgements attached to the first packet
+     */
+    protected Packet[] parseBatch(Parser parser, byte[] b, int offset, int batchSize, int[] acknowledgements) throws InvalidFormatException {
+        int end = b.length;
+        // every packet take at least 4 bytes
+        if (batchSize > (end - offset) / 4) {
+            throw new InvalidFormatException(String.format("batch size incorrect, size: %1$d", batchSize));
+        }
+
+        DecoderPlanResolver resolver = decoderPlanResolver;
+        Packet[] packets = new Packet[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            if (end - offset < 4) {
+                throw new InvalidFormatException("batch truncated");
+            }
+            boolean isRespond = (b[offset] & 128) != 0;
+            int requestTypeId;
+            if ((b[offset] & 64) == 0) {
+                requestTypeId = b[offset++] & 63;
+            } else {
+                requestTypeId = (b[offset++] & 63) << 8;
+                requestTypeId |= b[offset++] & 0xff;
+            }
+
+            int idLength = readIdLength(b[offset]);
+            if (end - offset < idLength) {
+                throw new InvalidFormatException("batch truncated");
+            }
+            int requestId = readId(b, offset, idLength);
+            offset += idLength;
+
+            idLength = offset < end ? readIdLength(b[offset]) : 2;
+            if (end - offset < idLength) {
+                throw new InvalidFormatException("batch truncated");
+            }
+            int contentLength = readId(b, offset, idLength);
+            offset += idLength;
+            if (requestId <= 0 || contentLength <= 0 || end - offset < contentLength) {
+                throw new InvalidFormatException("batch truncated");
+            }
+
+            Object content = parser.parse(b, offset, contentLength, resolver == null ? null : resolver.getDecoderPlan(isRespond, requestTypeId));
+            offset += contentLength;
+            packets[i] = new Packet(isRespond, requestTypeId, requestId, content, i, batchSize, i == 0 ? acknowledgements : null);
+        }
+        return packets;
+    }
+
+    /**
+     * Read the acknowledgements into {@link #_acknowledgements}, see {@link DefaultPacketizer}.
+     * @return the offset after the acknowledgements, -1 if they are truncated
+     */
+    protected int readAcknowledgements(byte[] b, int offset) {
+        int end = b.length;
+        if (offset >= end) {
+            LOG.log(Level.SEVERE, "acknowledgements truncated");
+            return -1;
+        }
+        int pairs = b[offset++] & 0xff;
+        int[] acknowledgements = new int[pairs * 2];
+        for (int i = 0; i < acknowledgements.length; i++) {
+            int idLength = offset < end ? readIdLength(b[offset]) : 2;
+            if (end - offset < idLength) {
+                LOG.log(Level.SEVERE, "acknowledgements truncated");
+                return -1;
+            }
+            acknowledgements[i] = readId(b, offset, idLength);
+            offset += idLength;
+        }
+        for (int i = 0; i < acknowledgements.length; i += 2) {
+            // the sequential id is written plus 1
+            acknowledgements[i]--;
+        }
+        _acknowledgements = acknowledgements;
+        return offset;
+    }
+
+    protected static int readIdLength(byte firstByte) {
+        return (firstByte & 128) == 0 ? 2 : ((firstByte & 64) == 0 ? 3 : 4);
+    }
+
+    protected static int readId(byte[] b, int offset, int idLength) {
+        // the first one or two bits of the first byte tell the length
+        int id = b[offset++] & (idLength == 2 ? 127 : 63);
+        for (int i = 1; i < idLength; i++) {
+            id = (id << 8) | (b[offset++] & 0xff);
+        }
+        return id;
     }
 
     protected void reset() {
@@ -74,6 +234,8 @@ public class DefaultDepacketizer extends Depacketizer {
         _crcBufferRead = 0;
         _crc32.reset();
         _crcMatched = false;
+
+        _acknowledgements = null;
     }
 
     @Override
@@ -199,7 +361,7 @@ public class DefaultDepacketizer extends Depacketizer {
         }
         // packet length should have been read
         // if packet data is corrupted, packet length might be wrong if packet length is short (<=255)
-        if (_packetLength <= 0) {
+        if (_packetLength <= 0 || _packetLength > maxPacketSize) {
             // packet data is corrupted
             refeed(b, start, end - start);
             return;
@@ -309,18 +471,58 @@ public class DefaultDepacketizer extends Depacketizer {
         //</editor-fold>
 
         if (_crcMatched) {
-            Object content = null;
+            byte[] contentBuffer = _content;
+            int contentOffset = 0;
+            boolean batch = false;
+            Parser parser = null;
+            if ((_content[0] & DefaultPacketizer.contentTag) == 0) {
+                parser = getParser(CodecFactory.DEFAULT_CODEC_ID);
+            } else {
+                contentOffset = 1;
+                batch = (_content[0] & DefaultPacketizer.batchTag) != 0;
+                parser = getParser(_content[0] & 15);
+                if (parser == null) {
+                    LOG.log(Level.SEVERE, "codec not registered, content tag: {0}", new Object[]{_content[0] & 0xff});
+                } else {
+                    if ((_content[0] & DefaultPacketizer.acknowledgementTag) != 0) {
+                        contentOffset = readAcknowledgements(_content, contentOffset);
+                    }
+                    if (contentOffset < 0) {
+                        contentBuffer = null;
+                    } else if ((_content[0] & DefaultPacketizer.compressedTag) != 0) {
+                        contentBuffer = decompress(_content, contentOffset);
+                        contentOffset = 0;
+                    }
+                }
+            }
+            if (parser == null || contentBuffer == null) {
+                // the packet is not corrupted, drop it
+                packetStarted = false;
+                if (start < end) {
+                    unpack(b, start, end - start);
+                }
+                return;
+            }
+
+            Packet[] packets;
             try {
-                content = parser.parse(_content);
+                if (batch) {
+                    packets = parseBatch(parser, contentBuffer, contentOffset, _requestId, _acknowledgements);
+                } else {
+                    DecoderPlanResolver resolver = decoderPlanResolver;
+                    Object content = parser.parse(contentBuffer, contentOffset, contentBuffer.length - contentOffset, resolver == null ? null : resolver.getDecoderPlan(_isRespond, _requestTypeId));
+                    packets = new Packet[]{new Packet(_isRespond, _requestTypeId, _requestId, content, 0, 0, _acknowledgements)};
+                }
             } catch (InvalidFormatException ex) {
                 LOG.log(Level.SEVERE, null, ex);
                 refeed(b, start, end - start);
                 return;
             }
-            Packet packet = new Packet(_isRespond, _requestTypeId, _requestId, content);
             synchronized (listeners) {
-                for (DepacketizerListener listener : listeners) {
-                    listener.packetReceived(packet);
+                for (Packet packet : packets) {
+                    for (DepacketizerListener listener : listeners) {
+                        listener.packetReceived(packet);
+                    }
                 }
             }
 
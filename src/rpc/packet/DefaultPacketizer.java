@@ -16,127 +16,412 @@
 // along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
 package rpc.packet;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.zip.CRC32;
 import rpc.codec.CodecFactory;
+import rpc.codec.CodecProvider;
+import rpc.codec.Generator;
 import rpc.codec.exception.UnsupportedDataTypeException;
+import rpc.packet.compress.CompressionStats;
+import rpc.packet.compress.Compressor;
 
 /**
+ * Content generated by codec other than the default one start with a tag byte, the first bit of the tag byte is 1
+ * (the content of the default codec never start with it) and the last 4 bits is the codec id.
+ * Compressed content always start with a tag byte with the second bit set, followed by the compressor id byte, the
+ * uncompressed length in 4 bytes (little-endian) and the compressed data.
+ * The content of a batch packet start with a tag byte with the third bit set, the request id in the packet header is
+ * the number of packets in the batch. Each packet in the batch is written as its packet type, request type id and
+ * request id (the same as in the packet header), the content length (the same format as the request id) and the
+ * content, the tag byte is shared by all of them. The batch may be compressed as a whole.
+ * The tag byte with the fourth bit set is followed by the acknowledgements, see
+ * {@link #writeAcknowledgements(int[], byte[], int)}, before the compressor id or the content. They are attached to
+ * the packet packed when it is written, see {@link #attachAcknowledgements(byte[])}.
  * @author Chan Wai Shing <cws1989@gmail.com>
  */
 public class DefaultPacketizer implements Packetizer {
 
     protected static final byte[] packetHeader;
+    protected static final int contentTag = 128;
+    protected static final int compressedTag = 64;
+    protected static final int compressedHeaderLength = 6;
+    protected static final int batchTag = 32;
+    protected static final int acknowledgementTag = 16;
 
     static {
         packetHeader = new byte[2];
         packetHeader[0] = (byte) 1;
         packetHeader[1] = (byte) 7;
     }
+    protected volatile CodecProvider codecProvider;
+    protected volatile Compressor compressor;
+    protected volatile int compressionThreshold;
+    protected volatile CompressionStats compressionStats;
+    protected volatile AcknowledgementSource acknowledgementSource;
+
+    public DefaultPacketizer() {
+        this(CodecFactory.getDefaultCodecProvider());
+    }
+
+    public DefaultPacketizer(CodecProvider codecProvider) {
+        this.codecProvider = codecProvider;
+        compressor = null;
+        compressionThreshold = 512;
+        compressionStats = new CompressionStats();
+        acknowledgementSource = null;
+    }
+
+    @Override
+    public CodecProvider getCodecProvider() {
+        return codecProvider;
+    }
+
+    @Override
+    public void setCodecProvider(CodecProvider codecProvider) {
+        this.codecProvider = codecProvider;
+    }
+
+    @Override
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public void setCompressor(Compressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public void setCompressionStats(CompressionStats compressionStats) {
+        this.compressionStats = compressionStats;
+    }
+
+    @Override
+    public AcknowledgementSource getAcknowledgementSource() {
+        return acknowledgementSource;
+    }
+
+    @Override
+    public void setAcknowledgementSource(AcknowledgementSource acknowledgementSource) {
+        this.acknowledgementSource = acknowledgementSource;
+    }
 
     @Override
     public byte[] pack(boolean isRespond, int requestTypeId, int requestId, Object content) throws UnsupportedDataTypeException {
-        //<editor-fold defaultstate="collapsed" desc="prepare requestId and requestTypeId">
-        int sendBufferIndex = 0;
-        byte[] sendBuffer = new byte[6];
+        byte[] info = new byte[6];
+        int infoLength = writeInfo(isRespond, requestTypeId, requestId, info, 0);
+
+        // measure first and then generate the content directly into the packet buffer
+        CodecProvider _codecProvider = codecProvider;
+        Generator generator = _codecProvider.getGenerator();
+        return frame(info, infoLength, _codecProvider.getId(), 0, generator, content, null, generator.measure(content));
+    }
+
+    @Override
+    public byte[] pack(boolean isRespond, int requestTypeId, int requestId, int codecId, byte[] content) throws UnsupportedDataTypeException {
+        byte[] info = new byte[6];
+        int infoLength = writeInfo(isRespond, requestTypeId, requestId, info, 0);
+        return frame(info, infoLength, codecId, 0, null, null, content, content.length);
+    }
+
+    @Override
+    public byte[] packBatch(List<Packet> packets) throws UnsupportedDataTypeException {
+        CodecProvider _codecProvider = codecProvider;
+        Generator generator = _codecProvider.getGenerator();
+
+        int packetsSize = packets.size();
+        int[] contentLengths = new int[packetsSize];
+        int bodyLength = 0;
+        for (int i = 0; i < packetsSize; i++) {
+            Packet packet = packets.get(i);
+            contentLengths[i] = generator.measure(packet.content);
+            bodyLength += infoLength(packet.requestTypeId, packet.requestId) + idLength(contentLengths[i]) + contentLengths[i];
+        }
+
+        byte[] body = new byte[bodyLength];
+        int bodyIndex = 0;
+        for (int i = 0; i < packetsSize; i++) {
+            Packet packet = packets.get(i);
+            bodyIndex = writeInfo(packet.respond, packet.requestTypeId, packet.requestId, body, bodyIndex);
+            bodyIndex = writeId(contentLengths[i], body, bodyIndex);
+            bodyIndex += generator.generate(packet.content, body, bodyIndex);
+        }
+
+        // the request id of the batch packet is the number of packets in it
+        byte[] info = new byte[6];
+        int infoLength = writeInfo(false, 0, packetsSize, info, 0);
+        return frame(info, infoLength, _codecProvider.getId(), batchTag, null, null, body, bodyLength);
+    }
+
+    @Override
+    public byte[] attachAcknowledgements(byte[] packetData) {
+        AcknowledgementSource _acknowledgementSource = acknowledgementSource;
+        // not a packet packed by this packetizer
+        if (_acknowledgementSource == null || packetData.length < 11 || packetData[0] != packetHeader[0] || packetData[1] != packetHeader[1]) {
+            return packetData;
+        }
 
+        //<editor-fold defaultstate="collapsed" desc="locate the content">
+        int packetLength;
+        int infoStart;
+        if ((packetData[2] & 128) == 0) {
+            packetLength = ((packetData[2] & 255) << 8) | (packetData[3] & 255);
+            infoStart = packetLength > 255 ? 6 : 4;
+        } else {
+            packetLength = ((packetData[2] & 127) << 24) | ((packetData[3] & 255) << 16) | ((packetData[4] & 255) << 8) | (packetData[5] & 255);
+            infoStart = packetLength <= 65535 ? 14 : 18;
+        }
+        int contentStart = infoStart + ((packetData[infoStart] & 64) == 0 ? 1 : 2);
+        contentStart += (packetData[contentStart] & 128) == 0 ? 2 : ((packetData[contentStart] & 64) == 0 ? 3 : 4);
+        int contentEnd = packetData.length - 4;
+        boolean tagged = contentStart < contentEnd && (packetData[contentStart] & contentTag) != 0;
+        if (tagged && (packetData[contentStart] & acknowledgementTag) != 0) {
+            return packetData;
+        }
+        //</editor-fold>
+
+        int[] acknowledgements = _acknowledgementSource.pollAcknowledgements(packetData);
+        if (acknowledgements == null || acknowledgements.length == 0) {
+            return packetData;
+        }
+        // at most 255 pairs
+        if (acknowledgements.length > 510) {
+            acknowledgements = Arrays.copyOf(acknowledgements, 510);
+        }
+
+        int newPacketLength = packetLength + (tagged ? 0 : 1) + acknowledgementsLength(acknowledgements);
+        int infoLength = contentStart - infoStart;
+        byte[] packetBuffer = new byte[2 + packetLengthByteLength(newPacketLength) + infoLength + newPacketLength + 4];
+        int packetBufferIndex = writePacketLength(newPacketLength, packetBuffer);
+
+        int crcStart = packetBufferIndex;
+        System.arraycopy(packetData, infoStart, packetBuffer, packetBufferIndex, infoLength);
+        packetBufferIndex += infoLength;
+        // the content of the default codec without tag, the tag with the codec id 0 is added
+        packetBuffer[packetBufferIndex++] = (byte) ((tagged ? packetData[contentStart++] : contentTag) | acknowledgementTag);
+        packetBufferIndex = writeAcknowledgements(acknowledgements, packetBuffer, packetBufferIndex);
+        System.arraycopy(packetData, contentStart, packetBuffer, packetBufferIndex, contentEnd - contentStart);
+        packetBufferIndex += contentEnd - contentStart;
+        writeCRC32(packetBuffer, crcStart, packetBufferIndex);
+
+        return packetBuffer;
+    }
+
+    protected static int infoLength(int requestTypeId, int requestId) {
+        return (requestTypeId <= 63 ? 1 : 2) + idLength(requestId);
+    }
+
+    protected static int idLength(int id) {
+        return id <= 32767 ? 2 : (id <= 4194303 ? 3 : 4);
+    }
+
+    /**
+     * Write the packet type, the request type id and the request id.
+     * @return the offset after the info written
+     */
+    protected static int writeInfo(boolean isRespond, int requestTypeId, int requestId, byte[] b, int offset) {
         // first bit is the packet type, 0 for send, 1 for respond
-        sendBuffer[sendBufferIndex] = isRespond ? (byte) 128 : (byte) 0;
+        b[offset] = isRespond ? (byte) 128 : (byte) 0;
 
         if (requestTypeId <= 63) {
-            sendBuffer[sendBufferIndex++] |= (byte) requestTypeId;
+            b[offset++] |= (byte) requestTypeId;
         } else {
             // max: 16383
-            sendBuffer[sendBufferIndex] |= (byte) (requestTypeId >> 8);
-            sendBuffer[sendBufferIndex++] |= 64;
-            sendBuffer[sendBufferIndex++] = (byte) requestTypeId;
+            b[offset] |= (byte) (requestTypeId >> 8);
+            b[offset++] |= 64;
+            b[offset++] = (byte) requestTypeId;
         }
 
-        if (requestId <= 32767) {
-            sendBuffer[sendBufferIndex++] = (byte) (requestId >> 8);
+        return writeId(requestId, b, offset);
+    }
+
+    /**
+     * Write the request id, or the content length of the packets in a batch.
+     * @return the offset after the id written
+     */
+    protected static int writeId(int id, byte[] b, int offset) {
+        if (id <= 32767) {
+            b[offset++] = (byte) (id >> 8);
             // first bit is 0
-            sendBuffer[sendBufferIndex++] = (byte) requestId;
-        } else if (requestId <= 4194303) {
-            sendBuffer[sendBufferIndex] = (byte) (requestId >> 16);
-            sendBuffer[sendBufferIndex++] |= 128;
+            b[offset++] = (byte) id;
+        } else if (id <= 4194303) {
+            b[offset] = (byte) (id >> 16);
+            b[offset++] |= 128;
             // first bit is 1, second bit is 0
-            sendBuffer[sendBufferIndex++] = (byte) (requestId >> 8);
-            sendBuffer[sendBufferIndex++] = (byte) requestId;
+            b[offset++] = (byte) (id >> 8);
+            b[offset++] = (byte) id;
         } else {
             // max: 1073741823
-            sendBuffer[sendBufferIndex] = (byte) (requestId >> 24);
-            sendBuffer[sendBufferIndex++] |= 192;
+            b[offset] = (byte) (id >> 24);
+            b[offset++] |= 192;
             // first bit is 1, second bit is 1
-            sendBuffer[sendBufferIndex++] = (byte) (requestId >> 16);
-            sendBuffer[sendBufferIndex++] = (byte) (requestId >> 8);
-            sendBuffer[sendBufferIndex++] = (byte) requestId;
+            b[offset++] = (byte) (id >> 16);
+            b[offset++] = (byte) (id >> 8);
+            b[offset++] = (byte) id;
         }
-        //</editor-fold>
+        return offset;
+    }
 
-        byte[] contentByte = CodecFactory.getGenerator().generate(content);
-        if (contentByte == null) {
-            throw new UnsupportedDataTypeException("error occurred when packing the data");
+    protected static int acknowledgementsLength(int[] acknowledgements) {
+        int length = 1;
+        for (int i = 0; i < acknowledgements.length; i += 2) {
+            length += idLength(acknowledgements[i] + 1) + idLength(acknowledgements[i + 1]);
         }
+        return length;
+    }
 
-        //<editor-fold defaultstate="collapsed" desc="prepare packet">
-        int packetLength = contentByte.length;
-        int packetLengthByteLength = 0;
+    /**
+     * Write the acknowledgements, the number of pairs followed by the sequential id plus 1 and the responded id of
+     * every pair (the same format as the request id).
+     * @return the offset after the acknowledgements written
+     */
+    protected static int writeAcknowledgements(int[] acknowledgements, byte[] b, int offset) {
+        b[offset++] = (byte) (acknowledgements.length / 2);
+        for (int i = 0; i < acknowledgements.length; i += 2) {
+            offset = writeId(acknowledgements[i] + 1, b, offset);
+            offset = writeId(acknowledgements[i + 1], b, offset);
+        }
+        return offset;
+    }
+
+    protected static int packetLengthByteLength(int packetLength) {
         if (packetLength <= 255) {
-            packetLengthByteLength = 2;
+            return 2;
         } else if (packetLength <= 32767) {
-            packetLengthByteLength = 4;
+            return 4;
         } else if (packetLength <= 65535) {
-            packetLengthByteLength = 12;
+            return 12;
         } else {
-            packetLengthByteLength = 16;
+            return 16;
         }
-        int byteLength = 2 + packetLengthByteLength + sendBufferIndex + contentByte.length + 4;
-
-        int packetBufferIndex = 0;
-        byte[] packetBuffer = new byte[byteLength];
+    }
 
-        System.arraycopy(packetHeader, 0, packetBuffer, packetBufferIndex, 2);
-        packetBufferIndex += 2;
+    /**
+     * Write the packet header and the packet length.
+     * @return the offset after the packet length written, where the packet info start
+     */
+    protected static int writePacketLength(int packetLength, byte[] b) {
+        System.arraycopy(packetHeader, 0, b, 0, 2);
+        int offset = 2;
 
         if (packetLength <= 32767) {
-            packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 8);
-            packetBuffer[packetBufferIndex++] = (byte) (packetLength);
+            b[offset++] = (byte) (packetLength >> 8);
+            b[offset++] = (byte) (packetLength);
 
             // redundance for error checking
             if (packetLength > 255) {
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength);
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 8);
+                b[offset++] = (byte) (packetLength);
+                b[offset++] = (byte) (packetLength >> 8);
             }
         } else {
-            packetBuffer[packetBufferIndex] = (byte) (packetLength >> 24);
-            packetBuffer[packetBufferIndex++] |= 128;
-            packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 16);
-            packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 8);
-            packetBuffer[packetBufferIndex++] = (byte) (packetLength);
+            b[offset] = (byte) (packetLength >> 24);
+            b[offset++] |= 128;
+            b[offset++] = (byte) (packetLength >> 16);
+            b[offset++] = (byte) (packetLength >> 8);
+            b[offset++] = (byte) (packetLength);
 
             // redundance for error checking
             int repeatTimes = packetLength <= 65535 ? 2 : 3;
             while (repeatTimes-- > 0) {
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength);
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 8);
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 16);
-                packetBuffer[packetBufferIndex++] = (byte) (packetLength >> 24);
+                b[offset++] = (byte) (packetLength);
+                b[offset++] = (byte) (packetLength >> 8);
+                b[offset++] = (byte) (packetLength >> 16);
+                b[offset++] = (byte) (packetLength >> 24);
             }
         }
+        return offset;
+    }
 
-        System.arraycopy(sendBuffer, 0, packetBuffer, packetBufferIndex, sendBufferIndex);
-        packetBufferIndex += sendBufferIndex;
-        System.arraycopy(contentByte, 0, packetBuffer, packetBufferIndex, contentByte.length);
-        packetBufferIndex += contentByte.length;
-
+    /**
+     * Write the CRC32 of {@code b} from {@code start} to {@code end} at {@code end}.
+     */
+    protected static void writeCRC32(byte[] b, int start, int end) {
         CRC32 crc32 = new CRC32();
-        crc32.update(sendBuffer, 0, sendBufferIndex);
-        crc32.update(contentByte);
+        crc32.update(b, start, end - start);
 
         long crc32Value = crc32.getValue();
-        packetBuffer[packetBufferIndex++] = (byte) (crc32Value);
-        packetBuffer[packetBufferIndex++] = (byte) (crc32Value >> 8);
-        packetBuffer[packetBufferIndex++] = (byte) (crc32Value >> 16);
-        packetBuffer[packetBufferIndex++] = (byte) (crc32Value >> 24);
+        b[end++] = (byte) (crc32Value);
+        b[end++] = (byte) (crc32Value >> 8);
+        b[end++] = (byte) (crc32Value >> 16);
+        b[end] = (byte) (crc32Value >> 24);
+    }
+
+    /**
+     * Build the packet with the content generated from {@code content} by the {@code generator}, or with the
+     * {@code body} already generated if it is not null.
+     * @param tagFlags the flags of the content tag other than the codec id and the compressed flag
+     */
+    protected byte[] frame(byte[] info, int infoLength, int codecId, int tagFlags, Generator generator, Object content, byte[] body, int contentLength)
+            throws UnsupportedDataTypeException {
+        int tagLength = codecId == CodecFactory.DEFAULT_CODEC_ID && tagFlags == 0 ? 0 : 1;
+        int packetLength = tagLength + contentLength;
+
+        // compression cannot be done in place, generate into a separate buffer and keep the compressed data only if
+        // it is smaller
+        Compressor _compressor = compressor;
+        byte[] uncompressed = body, compressed = null;
+        int compressedLength = -1;
+        if (_compressor != null && contentLength >= compressionThreshold && contentLength > compressedHeaderLength) {
+            if (uncompressed == null) {
+                uncompressed = new byte[contentLength];
+                generator.generate(content, uncompressed, 0);
+            }
+
+            compressed = new byte[contentLength - compressedHeaderLength];
+            long startTime = System.nanoTime();
+            compressedLength = _compressor.compress(uncompressed, 0, contentLength, compressed, 0, compressed.length);
+            compressionStats.compressed(contentLength, compressedLength, System.nanoTime() - startTime);
+            if (compressedLength >= 0) {
+                packetLength = compressedHeaderLength + compressedLength;
+            }
+        }
+
+        //<editor-fold defaultstate="collapsed" desc="prepare packet">
+        int byteLength = 2 + packetLengthByteLength(packetLength) + infoLength + packetLength + 4;
+
+        byte[] packetBuffer = new byte[byteLength];
+        int packetBufferIndex = writePacketLength(packetLength, packetBuffer);
+
+        int crcStart = packetBufferIndex;
+        System.arraycopy(info, 0, packetBuffer, packetBufferIndex, infoLength);
+        packetBufferIndex += infoLength;
+        if (compressedLength >= 0) {
+            packetBuffer[packetBufferIndex++] = (byte) (contentTag | compressedTag | tagFlags | codecId);
+            packetBuffer[packetBufferIndex++] = (byte) _compressor.getId();
+            packetBuffer[packetBufferIndex++] = (byte) (contentLength);
+            packetBuffer[packetBufferIndex++] = (byte) (contentLength >> 8);
+            packetBuffer[packetBufferIndex++] = (byte) (contentLength >> 16);
+            packetBuffer[packetBufferIndex++] = (byte) (contentLength >> 24);
+            System.arraycopy(compressed, 0, packetBuffer, packetBufferIndex, compressedLength);
+            packetBufferIndex += compressedLength;
+        } else {
+            if (tagLength != 0) {
+                packetBuffer[packetBufferIndex++] = (byte) (contentTag | tagFlags | codecId);
+            }
+            if (uncompressed != null) {
+                System.arraycopy(uncompressed, 0, packetBuffer, packetBufferIndex, contentLength);
+                packetBufferIndex += contentLength;
+            } else {
+                packetBufferIndex += generator.generate(content, packetBuffer, packetBufferIndex);
+            }
+        }
+
+        writeCRC32(packetBuffer, crcStart, packetBufferIndex);
         //</editor-fold>
 
         return packetBuffer;
@@ -19,6 +19,8 @@ package rpc.packet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import rpc.codec.CodecProvider;
+import rpc.packet.compress.CompressionStats;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -26,9 +28,57 @@ import java.util.List;
 public abstract class Depacketizer {
 
     protected final List<DepacketizerListener> listeners;
+    protected DecoderPlanResolver decoderPlanResolver;
+    protected volatile CompressionStats compressionStats;
+    protected volatile int maxPacketSize;
+    protected volatile CodecProvider codecProvider;
 
     public Depacketizer() {
         listeners = Collections.synchronizedList(new ArrayList<DepacketizerListener>());
+        decoderPlanResolver = null;
+        compressionStats = null;
+        maxPacketSize = 67108864;
+        codecProvider = null;
+    }
+
+    public DecoderPlanResolver getDecoderPlanResolver() {
+        return decoderPlanResolver;
+    }
+
+    public void setDecoderPlanResolver(DecoderPlanResolver decoderPlanResolver) {
+        this.decoderPlanResolver = decoderPlanResolver;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public void setCompressionStats(CompressionStats compressionStats) {
+        this.compressionStats = compressionStats;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * The packets longer than {@code maxPacketSize} bytes, or decompressed to longer than it, are dropped before
+     * their content is allocated.
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public CodecProvider getCodecProvider() {
+        return codecProvider;
+    }
+
+    /**
+     * Parse the packets of the codec with the same id as {@code codecProvider} by its parser instead of the registered
+     * one, e.g. to decode the containers lazily. Null to use the registered codecs only.
+     */
+    public void setCodecProvider(CodecProvider codecProvider) {
+        this.codecProvider = codecProvider;
     }
 
     public void addListener(DepacketizerListener listener) {
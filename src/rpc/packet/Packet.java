@@ -25,12 +25,22 @@ public class Packet {
     protected final int requestTypeId;
     protected final int requestId;
     protected final Object content;
+    protected final int batchIndex;
+    protected final int batchSize;
+    protected final int[] acknowledgements;
 
-    protected Packet(boolean isRespond, int requestTypeId, int requestId, Object content) {
+    public Packet(boolean isRespond, int requestTypeId, int requestId, Object content) {
+        this(isRespond, requestTypeId, requestId, content, 0, 0, null);
+    }
+
+    protected Packet(boolean isRespond, int requestTypeId, int requestId, Object content, int batchIndex, int batchSize, int[] acknowledgements) {
         this.respond = isRespond;
         this.requestTypeId = requestTypeId;
         this.requestId = requestId;
         this.content = content;
+        this.batchIndex = batchIndex;
+        this.batchSize = batchSize;
+        this.acknowledgements = acknowledgements;
     }
 
     public boolean isRespond() {
@@ -52,4 +62,27 @@ public class Packet {
     public Object getContent() {
         return content;
     }
+
+    /**
+     * @return the index of this packet in the batch it is received in
+     */
+    public int getBatchIndex() {
+        return batchIndex;
+    }
+
+    /**
+     * @return the number of packets in the batch this packet is received in, 0 if it is not received in a batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the acknowledgements attached to the packet, they are attached to the first packet only if the packet is
+     * received in a batch. Note do not change the array.
+     * @return {sequentialId, respondedId, ...}, see {@link AcknowledgementSource}, or null
+     */
+    public int[] getAcknowledgements() {
+        return acknowledgements;
+    }
 }
@@ -16,7 +16,11 @@
 // along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
 package rpc.packet;
 
+import java.util.List;
+import rpc.codec.CodecProvider;
 import rpc.codec.exception.UnsupportedDataTypeException;
+import rpc.packet.compress.CompressionStats;
+import rpc.packet.compress.Compressor;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -24,4 +28,54 @@ import rpc.codec.exception.UnsupportedDataTypeException;
 public interface Packetizer {
 
     byte[] pack(boolean isRespond, int requestTypeId, int requestId, Object content) throws UnsupportedDataTypeException;
+
+    /**
+     * Pack the content generated already by the codec with the id {@code codecId}, see {@link CodecProvider#getId()}.
+     */
+    byte[] pack(boolean isRespond, int requestTypeId, int requestId, int codecId, byte[] content) throws UnsupportedDataTypeException;
+
+    /**
+     * Pack the packets into one packet, they are delivered one by one by the depacketizer with
+     * {@link Packet#getBatchIndex()} and {@link Packet#getBatchSize()} set.
+     */
+    byte[] packBatch(List<Packet> packets) throws UnsupportedDataTypeException;
+
+    CodecProvider getCodecProvider();
+
+    /**
+     * Set the codec used to generate the content of the packets packed after.
+     */
+    void setCodecProvider(CodecProvider codecProvider);
+
+    Compressor getCompressor();
+
+    /**
+     * Set the compressor used to compress the content of the packets packed after, null to disable compression.
+     */
+    void setCompressor(Compressor compressor);
+
+    int getCompressionThreshold();
+
+    /**
+     * Only the content not shorter than {@code compressionThreshold} bytes is compressed.
+     */
+    void setCompressionThreshold(int compressionThreshold);
+
+    void setCompressionStats(CompressionStats compressionStats);
+
+    AcknowledgementSource getAcknowledgementSource();
+
+    /**
+     * Set the source of the acknowledgements attached by {@link #attachAcknowledgements(byte[])}, null to attach none.
+     */
+    void setAcknowledgementSource(AcknowledgementSource acknowledgementSource);
+
+    /**
+     * Attach the acknowledgements of the source to the packet packed by this packetizer, called just before the packet
+     * is written. The packet kept for sending again is not changed, so it carries the acknowledgements of the time it
+     * is sent again.
+     * @return a new packet with the acknowledgements attached, or {@code packetData} if there is nothing to attach or
+     * it carries acknowledgements already
+     */
+    byte[] attachAcknowledgements(byte[] packetData);
 }
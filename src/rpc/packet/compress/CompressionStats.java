@@ -0,0 +1,115 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet.compress;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compression statistics of a connection.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class CompressionStats {
+
+    protected final AtomicLong compressedPackets;
+    /**
+     * Packets above the threshold that are not compressed because the compressed content was not smaller.
+     */
+    protected final AtomicLong incompressiblePackets;
+    protected final AtomicLong uncompressedBytes;
+    protected final AtomicLong compressedBytes;
+    protected final AtomicLong compressTime;
+    protected final AtomicLong decompressedPackets;
+    protected final AtomicLong decompressedBytes;
+    protected final AtomicLong decompressTime;
+
+    public CompressionStats() {
+        compressedPackets = new AtomicLong();
+        incompressiblePackets = new AtomicLong();
+        uncompressedBytes = new AtomicLong();
+        compressedBytes = new AtomicLong();
+        compressTime = new AtomicLong();
+        decompressedPackets = new AtomicLong();
+        decompressedBytes = new AtomicLong();
+        decompressTime = new AtomicLong();
+    }
+
+    /**
+     * @param compressedLength -1 if the content is incompressible
+     */
+    public void compressed(int length, int compressedLength, long nanoTime) {
+        compressTime.addAndGet(nanoTime);
+        if (compressedLength < 0) {
+            incompressiblePackets.incrementAndGet();
+            return;
+        }
+        compressedPackets.incrementAndGet();
+        uncompressedBytes.addAndGet(length);
+        compressedBytes.addAndGet(compressedLength);
+    }
+
+    public void decompressed(int length, long nanoTime) {
+        decompressedPackets.incrementAndGet();
+        decompressedBytes.addAndGet(length);
+        decompressTime.addAndGet(nanoTime);
+    }
+
+    public long getCompressedPackets() {
+        return compressedPackets.get();
+    }
+
+    public long getIncompressiblePackets() {
+        return incompressiblePackets.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return the compressed size over the uncompressed size of the compressed packets, 1 if no packet compressed
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1.0D : (double) compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * @return the time spent on compressing in nanoseconds, including the incompressible packets
+     */
+    public long getCompressTime() {
+        return compressTime.get();
+    }
+
+    public long getDecompressedPackets() {
+        return decompressedPackets.get();
+    }
+
+    public long getDecompressedBytes() {
+        return decompressedBytes.get();
+    }
+
+    /**
+     * @return the time spent on decompressing in nanoseconds
+     */
+    public long getDecompressTime() {
+        return decompressTime.get();
+    }
+}
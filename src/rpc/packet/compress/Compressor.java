@@ -0,0 +1,46 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet.compress;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm of the packet content, see {@link CompressorFactory}.
+ * The methods may be called by multiple threads at the same time.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface Compressor {
+
+    /**
+     * The id carried in the compressed packets, from 1 to 255.
+     */
+    int getId();
+
+    /**
+     * Compress the data into {@code b}.
+     * @param maxLength the maximum number of bytes to write into {@code b}
+     * @return the compressed length, -1 if the compressed data is longer than {@code maxLength}
+     */
+    int compress(byte[] data, int offset, int length, byte[] b, int bOffset, int maxLength);
+
+    /**
+     * Decompress the data into {@code b}.
+     * @param bLength the decompressed length
+     * @throws IOException the data is corrupted or the decompressed length does not match
+     */
+    void decompress(byte[] data, int offset, int length, byte[] b, int bOffset, int bLength) throws IOException;
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet.compress;
+
+/**
+ * Registry of the {@link Compressor}s that the packets can be decompressed with.
+ * The built-in compressors are always registered, custom compressors have to be registered on both sides.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class CompressorFactory {
+
+    public static final int DEFLATE = 1;
+    public static final int LZF = 2;
+    protected static final Compressor[] compressors;
+
+    static {
+        compressors = new Compressor[256];
+        compressors[DEFLATE] = new DeflateCompressor();
+        compressors[LZF] = new LZFCompressor();
+    }
+
+    protected CompressorFactory() {
+    }
+
+    /**
+     * @return the compressor, null if no compressor registered with the {@code id}
+     */
+    public static Compressor getCompressor(int id) {
+        if (id <= 0 || id >= compressors.length) {
+            return null;
+        }
+        return compressors[id];
+    }
+
+    /**
+     * Register the {@code compressor}, replace the one registered with the same id.
+     * @throws IllegalArgumentException the id is not in the range 1 to 255
+     */
+    public static void registerCompressor(Compressor compressor) {
+        int id = compressor.getId();
+        if (id <= 0 || id >= compressors.length) {
+            throw new IllegalArgumentException(String.format("Compressor id %1$d is not in the range 1 to 255", id));
+        }
+        synchronized (compressors) {
+            compressors[id] = compressor;
+        }
+    }
+}
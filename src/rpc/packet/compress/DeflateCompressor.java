@@ -0,0 +1,100 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet.compress;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate, the {@link Deflater} and {@link Inflater} are pooled and reused.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DeflateCompressor implements Compressor {
+
+    protected final int level;
+    protected final Queue<Deflater> deflaters;
+    protected final Queue<Inflater> inflaters;
+
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level the compression level, see {@link Deflater#setLevel(int)}
+     */
+    public DeflateCompressor(int level) {
+        this.level = level;
+        deflaters = new ConcurrentLinkedQueue<Deflater>();
+        inflaters = new ConcurrentLinkedQueue<Inflater>();
+    }
+
+    @Override
+    public int getId() {
+        return CompressorFactory.DEFLATE;
+    }
+
+    @Override
+    public int compress(byte[] data, int offset, int length, byte[] b, int bOffset, int maxLength) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < maxLength) {
+                compressedLength += deflater.deflate(b, bOffset + compressedLength, maxLength - compressedLength);
+            }
+            return deflater.finished() ? compressedLength : -1;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, byte[] b, int bOffset, int bLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(data, offset, length);
+            int decompressedLength = 0;
+            while (!inflater.finished()) {
+                int read = inflater.inflate(b, bOffset + decompressedLength, bLength - decompressedLength);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary() || decompressedLength == bLength)) {
+                    break;
+                }
+                decompressedLength += read;
+            }
+            if (!inflater.finished() || decompressedLength != bLength) {
+                throw new IOException(String.format("Expected to decompress %1$d bytes but %2$d byte(s) decompressed", bLength, decompressedLength));
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+}
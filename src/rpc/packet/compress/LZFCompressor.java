@@ -0,0 +1,186 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// This file is part of BON RPC.
+//
+// BON RPC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// BON RPC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with BON RPC.  If not, see <http://www.gnu.org/licenses/>.
+package rpc.packet.compress;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * LZF, a fast LZ77 variant in pure Java, compatible with the liblzf format.
+ * Trades compression ratio for speed, suits the packets that are compressed and decompressed on the IO threads.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class LZFCompressor implements Compressor {
+
+    protected static final int HASH_BITS = 14;
+    protected static final int MAX_LITERAL = 32;
+    protected static final int MAX_OFFSET = 8192;
+    protected static final int MAX_REFERENCE = 264;
+    /**
+     * The hash tables are reused without clearing, the stale entries are filtered out by comparing the bytes.
+     */
+    protected final Queue<int[]> hashTables;
+
+    public LZFCompressor() {
+        hashTables = new ConcurrentLinkedQueue<int[]>();
+    }
+
+    @Override
+    public int getId() {
+        return CompressorFactory.LZF;
+    }
+
+    protected static int hash(byte[] data, int index) {
+        int value = ((data[index] & 0xff) << 16) | ((data[index + 1] & 0xff) << 8) | (data[index + 2] & 0xff);
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    @Override
+    public int compress(byte[] data, int offset, int length, byte[] b, int bOffset, int maxLength) {
+        int[] hashTable = hashTables.poll();
+        if (hashTable == null) {
+            hashTable = new int[1 << HASH_BITS];
+        }
+        try {
+            int inIndex = offset, inEnd = offset + length;
+            int outIndex = bOffset, outEnd = bOffset + maxLength;
+            int literal = 0;
+            // reserve the control byte of the literal run
+            outIndex++;
+
+            while (inIndex < inEnd - 2) {
+                int hash = hash(data, inIndex);
+                int reference = hashTable[hash];
+                hashTable[hash] = inIndex;
+
+                int distance = inIndex - reference - 1;
+                if (reference >= offset && reference < inIndex && distance < MAX_OFFSET
+                        && data[reference] == data[inIndex] && data[reference + 1] == data[inIndex + 1] && data[reference + 2] == data[inIndex + 2]) {
+                    int matchLength = 2;
+                    int maxMatchLength = Math.min(inEnd - inIndex, MAX_REFERENCE);
+                    do {
+                        matchLength++;
+                    } while (matchLength < maxMatchLength && data[reference + matchLength] == data[inIndex + matchLength]);
+
+                    // close the literal run
+                    if (literal == 0) {
+                        outIndex--;
+                    } else {
+                        b[outIndex - literal - 1] = (byte) (literal - 1);
+                        literal = 0;
+                    }
+                    if (outIndex + 4 > outEnd) {
+                        return -1;
+                    }
+
+                    int encodedLength = matchLength - 2;
+                    if (encodedLength < 7) {
+                        b[outIndex++] = (byte) ((distance >> 8) + (encodedLength << 5));
+                    } else {
+                        b[outIndex++] = (byte) ((distance >> 8) + (7 << 5));
+                        b[outIndex++] = (byte) (encodedLength - 7);
+                    }
+                    b[outIndex++] = (byte) distance;
+                    outIndex++;
+
+                    inIndex += matchLength;
+                    if (inIndex >= inEnd - 2) {
+                        break;
+                    }
+                    hashTable[hash(data, inIndex - 2)] = inIndex - 2;
+                    hashTable[hash(data, inIndex - 1)] = inIndex - 1;
+                    continue;
+                }
+
+                if (outIndex >= outEnd) {
+                    return -1;
+                }
+                b[outIndex++] = data[inIndex++];
+                if (++literal == MAX_LITERAL) {
+                    b[outIndex - literal - 1] = (byte) (literal - 1);
+                    literal = 0;
+                    outIndex++;
+                }
+            }
+
+            while (inIndex < inEnd) {
+                if (outIndex >= outEnd) {
+                    return -1;
+                }
+                b[outIndex++] = data[inIndex++];
+                if (++literal == MAX_LITERAL) {
+                    b[outIndex - literal - 1] = (byte) (literal - 1);
+                    literal = 0;
+                    outIndex++;
+                }
+            }
+            if (literal == 0) {
+                outIndex--;
+            } else {
+                b[outIndex - literal - 1] = (byte) (literal - 1);
+            }
+
+            return outIndex - bOffset;
+        } finally {
+            hashTables.offer(hashTable);
+        }
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, byte[] b, int bOffset, int bLength) throws IOException {
+        int inIndex = offset, inEnd = offset + length;
+        int outIndex = bOffset, outEnd = bOffset + bLength;
+
+        while (inIndex < inEnd) {
+            int control = data[inIndex++] & 0xff;
+            if (control < MAX_LITERAL) {
+                control++;
+                if (inIndex + control > inEnd || outIndex + control > outEnd) {
+                    throw new IOException("Literal run out of bound");
+                }
+                System.arraycopy(data, inIndex, b, outIndex, control);
+                inIndex += control;
+                outIndex += control;
+            } else {
+                int matchLength = control >> 5;
+                if (matchLength == 7) {
+                    if (inIndex >= inEnd) {
+                        throw new IOException("Back reference out of bound");
+                    }
+                    matchLength += data[inIndex++] & 0xff;
+                }
+                if (inIndex >= inEnd) {
+                    throw new IOException("Back reference out of bound");
+                }
+                int reference = outIndex - ((control & 0x1f) << 8) - 1 - (data[inIndex++] & 0xff);
+                matchLength += 2;
+                if (reference < bOffset || outIndex + matchLength > outEnd) {
+                    throw new IOException("Back reference out of bound");
+                }
+                // the reference may overlap with the output, copy byte by byte
+                for (int i = 0; i < matchLength; i++) {
+                    b[outIndex++] = b[reference++];
+                }
+            }
+        }
+
+        if (outIndex != outEnd) {
+            throw new IOException(String.format("Expected to decompress %1$d bytes but %2$d byte(s) decompressed", bLength, outIndex - bOffset));
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package rpc;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import rpc.codec.CodecFactory;
+import rpc.codec.DecoderPlan;
+import rpc.codec.DefaultCodecProvider;
+import rpc.codec.DefaultGenerator;
+import rpc.codec.DefaultParser;
 import static org.junit.Assert.*;
 
 /**
@@ -109,6 +115,210 @@ public class CodecTest {
         assertTrue(ArgumentsAssert.assertEquals(objectMap, resultMap));
     }
 
+    @Test
+    public void lengthPrefixedContainerTest() throws Throwable {
+        System.out.println("+++++ lengthPrefixedContainerTest +++++");
+
+        Map<Object, Object> emptyMap = new HashMap<Object, Object>();
+        List<Object> emptyList = new ArrayList<Object>();
+
+        Map<Object, Object> record = new HashMap<Object, Object>();
+        record.put("name", generateString(300));
+        record.put("data", generateByte(70000));
+        record.put(1, Arrays.asList(new Object[]{1L, 2.0D, null, true, emptyMap, emptyList}));
+        record.put(null, Short.MIN_VALUE);
+
+        List<Object> objectList = new ArrayList<Object>();
+        for (int i = 0; i < 300; i++) {
+            objectList.add(i % 3 == 0 ? record : Arrays.asList(new Object[]{i, generateString(i), record}));
+        }
+
+        DefaultGenerator generator = (DefaultGenerator) CodecFactory.getGenerator();
+        generator.setLengthPrefixedContainer(true);
+        byte[] data = generator.generate(objectList);
+        assertEquals(18, data[0]);
+
+        List<Object> resultList = (List<Object>) CodecFactory.getParser().parse(data);
+        assertTrue(ArgumentsAssert.assertEquals(objectList, resultList));
+
+        DefaultParser lazyParser = (DefaultParser) CodecFactory.getParser();
+        lazyParser.setLazyContainer(true);
+        // access only part of the elements first, then compare the whole list
+        List<Object> lazyList = (List<Object>) lazyParser.parse(data);
+        assertEquals(objectList.size(), lazyList.size());
+        assertTrue(ArgumentsAssert.assertEquals(objectList.get(299), lazyList.get(299)));
+        assertTrue(ArgumentsAssert.assertEquals(record.get("data"), ((Map<Object, Object>) lazyList.get(0)).get("data")));
+        assertTrue(ArgumentsAssert.assertEquals(objectList, lazyList));
+
+        Map<Object, Object> resultMap = (Map<Object, Object>) lazyParser.parse(generator.generate(record));
+        assertTrue(ArgumentsAssert.assertEquals(record, resultMap));
+        assertTrue(ArgumentsAssert.assertEquals(record, new HashMap<Object, Object>(resultMap)));
+    }
+
+    @Test
+    public void decoderPlanTest() throws Throwable {
+        System.out.println("+++++ decoderPlanTest +++++");
+
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        map.put(1, Arrays.asList(new Object[]{1, 2}));
+        map.put(2L, new ArrayList<Object>());
+        List<Object> objectList = Arrays.asList(new Object[]{
+                    1, new int[]{1, 2, 3}, Arrays.asList(new Object[]{"a", null}), map,
+                    Arrays.asList(new Object[]{1.0D, 2.0F}), Arrays.asList(new Object[]{new long[]{4L}, new ArrayList<Object>()}), "x", 5
+                });
+        DecoderPlan plan = DecoderPlan.forArguments(CodecTest.class.getMethod("decoderPlanMethod",
+                long.class, int[].class, String[].class, Map.class, Set.class, List.class, Object.class).getGenericParameterTypes());
+
+        DefaultGenerator generator = (DefaultGenerator) CodecFactory.getGenerator();
+        for (int i = 0; i < 2; i++) {
+            generator.setLengthPrefixedContainer(i == 1);
+            byte[] data = generator.generate(objectList);
+
+            List<Object> results = new ArrayList<Object>();
+            results.add(CodecFactory.getParser().parse(data, 0, data.length, plan));
+            results.add(plan.convert(CodecFactory.getParser().parse(data)));
+            for (Object result : results) {
+                List<Object> resultList = (List<Object>) result;
+                assertEquals(8, resultList.size());
+                assertEquals(1L, resultList.get(0));
+                assertArrayEquals(new int[]{1, 2, 3}, (int[]) resultList.get(1));
+                assertArrayEquals(new String[]{"a", null}, (String[]) resultList.get(2));
+
+                Map<Long, List<Short>> resultMap = (Map<Long, List<Short>>) resultList.get(3);
+                assertEquals(2, resultMap.size());
+                assertEquals(Arrays.asList(new Short[]{1, 2}), resultMap.get(1L));
+                assertTrue(resultMap.get(2L).isEmpty());
+
+                assertEquals(new HashSet<Double>(Arrays.asList(new Double[]{1.0D, 2.0D})), resultList.get(4));
+
+                List<int[]> arrayList = (List<int[]>) resultList.get(5);
+                assertArrayEquals(new int[]{4}, arrayList.get(0));
+                assertArrayEquals(new int[0], arrayList.get(1));
+
+                assertEquals("x", resultList.get(6));
+                // more than the parameters, decoded generically
+                assertEquals(5, resultList.get(7));
+            }
+
+            // not convertible, kept generic
+            data = generator.generate(Arrays.asList(new Object[]{"1", Arrays.asList(new Object[]{1, "a", 3})}));
+            List<Object> resultList = (List<Object>) CodecFactory.getParser().parse(data, 0, data.length, plan);
+            assertEquals("1", resultList.get(0));
+            assertEquals(Arrays.asList(new Object[]{1, "a", 3}), resultList.get(1));
+        }
+    }
+
+    @Test
+    public void decoderPlanNumberTest() throws Throwable {
+        System.out.println("+++++ decoderPlanNumberTest +++++");
+
+        DecoderPlan plan = DecoderPlan.forArguments(CodecTest.class.getMethod("decoderPlanNumberMethod",
+                float.class, double.class, float.class, double.class, float.class, double.class).getGenericParameterTypes());
+
+        // widened when exact
+        byte[] data = CodecFactory.getGenerator().generate(Arrays.asList(new Object[]{3, 2.5F, 1.5D, 1L << 53, 16777216, Long.MIN_VALUE}));
+        List<Object> resultList = (List<Object>) CodecFactory.getParser().parse(data, 0, data.length, plan);
+        assertEquals(3.0F, resultList.get(0));
+        assertEquals(2.5D, resultList.get(1));
+        assertEquals(1.5F, resultList.get(2));
+        assertEquals((double) (1L << 53), resultList.get(3));
+        assertEquals(16777216.0F, resultList.get(4));
+        assertEquals((double) Long.MIN_VALUE, resultList.get(5));
+
+        // would lose precision, kept as decoded
+        data = CodecFactory.getGenerator().generate(Arrays.asList(new Object[]{1.1D, (1L << 53) + 1, 16777217, Long.MAX_VALUE, Long.MAX_VALUE}));
+        resultList = (List<Object>) CodecFactory.getParser().parse(data, 0, data.length, plan);
+        assertEquals(1.1D, resultList.get(0));
+        assertEquals((1L << 53) + 1, resultList.get(1));
+        assertEquals(16777217, resultList.get(2));
+        assertEquals(Long.MAX_VALUE, resultList.get(3));
+        assertEquals(Long.MAX_VALUE, resultList.get(4));
+    }
+
+    @Test
+    public void backReferenceTest() throws Throwable {
+        System.out.println("+++++ backReferenceTest +++++");
+
+        String name = generateString(300);
+        byte[] data = generateByte(1000);
+        Map<Object, Object> user = new HashMap<Object, Object>();
+        user.put("name", name);
+        user.put("avatar", data);
+        List<Object> scores = Arrays.asList(new Object[]{1, 2, 3});
+
+        List<Object> rows = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(Arrays.asList(new Object[]{i, user, name, scores, new String(name)}));
+        }
+        List<Object> objectList = Arrays.asList(new Object[]{rows, user, data});
+
+        try {
+            new DefaultCodecProvider(true, true, true);
+            fail("backReference should not be used with lazyContainer");
+        } catch (IllegalArgumentException ex) {
+        }
+
+        DefaultGenerator generator = (DefaultGenerator) CodecFactory.getGenerator();
+        byte[] fullData = generator.generate(objectList);
+        for (int i = 0; i < 2; i++) {
+            generator.setLengthPrefixedContainer(i == 1);
+            generator.setBackReference(true);
+            byte[] referenceData = generator.generate(objectList);
+            assertEquals(20, referenceData[0]);
+            // the copy of the name is written in full in every row
+            assertTrue(referenceData.length < fullData.length / 2);
+
+            List<Object> resultList = (List<Object>) CodecFactory.getParser().parse(referenceData);
+            assertTrue(ArgumentsAssert.assertEquals(objectList, resultList));
+
+            Map<Object, Object> resultUser = (Map<Object, Object>) resultList.get(1);
+            assertSame(resultUser.get("avatar"), resultList.get(2));
+            for (Object row : (List<Object>) resultList.get(0)) {
+                List<Object> resultRow = (List<Object>) row;
+                assertSame(resultUser, resultRow.get(1));
+                assertSame(resultUser.get("name"), resultRow.get(2));
+                assertSame(((List<Object>) ((List<Object>) resultList.get(0)).get(0)).get(3), resultRow.get(3));
+                assertNotSame(resultRow.get(2), resultRow.get(4));
+            }
+
+            // the measured length should match the generated one
+            assertTrue(Arrays.equals(referenceData, generator.generate(objectList)));
+
+            // the lazy view cannot resolve the back-references, the containers are decoded eagerly
+            DefaultParser lazyParser = (DefaultParser) CodecFactory.getParser();
+            lazyParser.setLazyContainer(true);
+            assertTrue(ArgumentsAssert.assertEquals(objectList, lazyParser.parse(referenceData)));
+            if (i == 1) {
+                // without the header 20 there is no reference table, the back-references in the lazy views are rejected
+                byte[] strippedData = Arrays.copyOfRange(referenceData, 1, referenceData.length);
+                List<Object> strippedRows = (List<Object>) ((List<Object>) lazyParser.parse(strippedData)).get(0);
+                assertEquals(0, ((List<Object>) strippedRows.get(0)).get(0));
+                try {
+                    ((List<Object>) strippedRows.get(1)).get(1);
+                    fail("back-reference resolved without reference table");
+                } catch (IllegalStateException ex) {
+                }
+            }
+
+            // decode into the declared types
+            DecoderPlan plan = DecoderPlan.forArguments(CodecTest.class.getMethod("backReferenceMethod",
+                    List.class, Map.class, byte[].class).getGenericParameterTypes());
+            resultList = (List<Object>) CodecFactory.getParser().parse(referenceData, 0, referenceData.length, plan);
+            resultUser = (Map<Object, Object>) resultList.get(1);
+            assertSame(resultUser.get("avatar"), resultList.get(2));
+            assertSame(resultUser, ((List<Object>) ((List<Object>) resultList.get(0)).get(99)).get(1));
+        }
+    }
+
+    public static void backReferenceMethod(List<List<Object>> rows, Map<String, Object> user, byte[] data) {
+    }
+
+    public static void decoderPlanMethod(long a, int[] b, String[] c, Map<Long, List<Short>> d, Set<Double> e, List<int[]> f, Object g) {
+    }
+
+    public static void decoderPlanNumberMethod(float a, double b, float c, double d, float e, double f) {
+    }
+
     public static byte[] generateByte(int length) {
         byte[] returnValue = new byte[length];
         Random random = new Random();
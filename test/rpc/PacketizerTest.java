@@ -1,8 +1,12 @@
 package rpc;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import rpc.packet.AcknowledgementSource;
 import rpc.packet.DepacketizerListener;
 import rpc.packet.DefaultDepacketizer;
 import rpc.packet.DefaultPacketizer;
@@ -13,6 +17,9 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import static org.junit.Assert.*;
 import rpc.packet.Packet;
+import rpc.packet.compress.CompressionStats;
+import rpc.packet.compress.Compressor;
+import rpc.packet.compress.CompressorFactory;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -114,4 +121,318 @@ public class PacketizerTest {
             }
         }
     }
+
+    @Test
+    public void compressorTest() throws Throwable {
+        System.out.println("+++++ compressorTest +++++");
+
+        Random random = new Random(0);
+        int[] lengthList = new int[]{0, 1, 2, 3, 4, 31, 32, 33, 300, 9000, 100000};
+        for (int compressorId : new int[]{CompressorFactory.DEFLATE, CompressorFactory.LZF}) {
+            Compressor compressor = CompressorFactory.getCompressor(compressorId);
+            for (int length : lengthList) {
+                // random, repeated with short and long distance, and run of the same byte
+                byte[][] dataList = new byte[4][length];
+                random.nextBytes(dataList[0]);
+                for (int i = 0; i < length; i++) {
+                    dataList[1][i] = (byte) (i % 7);
+                    dataList[2][i] = i < 5000 ? (byte) random.nextInt() : dataList[2][i - 5000];
+                }
+                for (byte[] data : dataList) {
+                    byte[] compressed = new byte[length * 2 + 64];
+                    int compressedLength = compressor.compress(data, 0, length, compressed, 1, compressed.length - 1);
+                    assertTrue(compressedLength >= 0);
+
+                    byte[] decompressed = new byte[length + 2];
+                    compressor.decompress(compressed, 1, compressedLength, decompressed, 1, length);
+                    for (int i = 0; i < length; i++) {
+                        assertEquals(data[i], decompressed[i + 1]);
+                    }
+
+                    // not enough space
+                    if (length > 0) {
+                        assertEquals(-1, compressor.compress(data, 0, length, new byte[compressedLength - 1], 0, compressedLength - 1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressionTest() throws Throwable {
+        System.out.println("+++++ compressionTest +++++");
+
+        final List<Packet> packets = new ArrayList<Packet>();
+        DefaultDepacketizer depacketizer = new DefaultDepacketizer();
+        depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                packets.add(packet);
+            }
+        });
+        CompressionStats receiverStats = new CompressionStats();
+        depacketizer.setCompressionStats(receiverStats);
+
+        List<Object> compressible = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            compressible.add("record " + (i % 10));
+        }
+        List<Object> small = Arrays.asList(new Object[]{"small"});
+        List<Object> incompressible = Arrays.asList(new Object[]{CodecTest.generateByte(4096)});
+
+        for (int compressorId : new int[]{CompressorFactory.DEFLATE, CompressorFactory.LZF}) {
+            DefaultPacketizer packetizer = new DefaultPacketizer();
+            packetizer.setCompressor(CompressorFactory.getCompressor(compressorId));
+            packetizer.setCompressionThreshold(64);
+            CompressionStats senderStats = new CompressionStats();
+            packetizer.setCompressionStats(senderStats);
+
+            byte[] uncompressedPacket = new DefaultPacketizer().pack(false, 1, 1, compressible);
+            byte[] compressedPacket = packetizer.pack(false, 1, 1, compressible);
+            assertTrue(compressedPacket.length < uncompressedPacket.length / 4);
+
+            assertEquals(new DefaultPacketizer().pack(false, 1, 2, small).length, packetizer.pack(false, 1, 2, small).length);
+            assertEquals(new DefaultPacketizer().pack(false, 1, 3, incompressible).length, packetizer.pack(false, 1, 3, incompressible).length);
+
+            assertEquals(1, senderStats.getCompressedPackets());
+            assertEquals(1, senderStats.getIncompressiblePackets());
+            assertTrue(senderStats.getCompressionRatio() < 0.25D);
+
+            packets.clear();
+            depacketizer.unpack(compressedPacket, 0, compressedPacket.length);
+            assertEquals(1, packets.size());
+            assertTrue(ArgumentsAssert.assertEquals(compressible.toArray(), ((List<Object>) packets.get(0).getContent()).toArray()));
+        }
+        assertEquals(2, receiverStats.getDecompressedPackets());
+
+        // corrupt the compressor id and fix the crc, the packet is dropped and the next one is read
+        DefaultPacketizer packetizer = new DefaultPacketizer();
+        packetizer.setCompressor(CompressorFactory.getCompressor(CompressorFactory.LZF));
+        byte[] compressedPacket = packetizer.pack(false, 1, 1, compressible);
+        // info bytes of request type id 1 and request id 1, followed by the tag and the compressor id
+        int infoStart = 2;
+        while (!(compressedPacket[infoStart] == 1 && compressedPacket[infoStart + 1] == 0 && compressedPacket[infoStart + 2] == 1
+                && compressedPacket[infoStart + 3] == (byte) 0xc0 && compressedPacket[infoStart + 4] == CompressorFactory.LZF)) {
+            infoStart++;
+        }
+        compressedPacket[infoStart + 4] = (byte) 200;
+        CRC32 crc32 = new CRC32();
+        crc32.update(compressedPacket, infoStart, compressedPacket.length - 4 - infoStart);
+        long crc32Value = crc32.getValue();
+        for (int i = 0; i < 4; i++) {
+            compressedPacket[compressedPacket.length - 4 + i] = (byte) (crc32Value >> (i * 8));
+        }
+        byte[] smallPacket = packetizer.pack(false, 1, 2, small);
+
+        packets.clear();
+        depacketizer.unpack(compressedPacket, 0, compressedPacket.length);
+        depacketizer.unpack(smallPacket, 0, smallPacket.length);
+        assertEquals(1, packets.size());
+        assertEquals(2, packets.get(0).getRequestId());
+
+        // the uncompressed length declared is checked before allocation, and the decompressed length has to match it
+        compressedPacket[infoStart + 4] = CompressorFactory.LZF;
+        int declaredLength = (compressedPacket[infoStart + 5] & 0xff) | ((compressedPacket[infoStart + 6] & 0xff) << 8);
+        for (int declared : new int[]{Integer.MAX_VALUE, declaredLength + 1, declaredLength - 1}) {
+            for (int i = 0; i < 4; i++) {
+                compressedPacket[infoStart + 5 + i] = (byte) (declared >> (i * 8));
+            }
+            crc32.reset();
+            crc32.update(compressedPacket, infoStart, compressedPacket.length - 4 - infoStart);
+            crc32Value = crc32.getValue();
+            for (int i = 0; i < 4; i++) {
+                compressedPacket[compressedPacket.length - 4 + i] = (byte) (crc32Value >> (i * 8));
+            }
+
+            packets.clear();
+            depacketizer.unpack(compressedPacket, 0, compressedPacket.length);
+            depacketizer.unpack(smallPacket, 0, smallPacket.length);
+            assertEquals(1, packets.size());
+            assertEquals(2, packets.get(0).getRequestId());
+        }
+
+        // a packet decompressed to longer than the maximum packet size is dropped
+        byte[] validPacket = packetizer.pack(false, 1, 1, compressible);
+        depacketizer.setMaxPacketSize(validPacket.length + 16);
+        packets.clear();
+        depacketizer.unpack(validPacket, 0, validPacket.length);
+        depacketizer.unpack(smallPacket, 0, smallPacket.length);
+        assertEquals(1, packets.size());
+        assertEquals(2, packets.get(0).getRequestId());
+        depacketizer.setMaxPacketSize(67108864);
+        packets.clear();
+        depacketizer.unpack(validPacket, 0, validPacket.length);
+        assertEquals(1, packets.size());
+    }
+
+    @Test
+    public void batchTest() throws Throwable {
+        System.out.println("+++++ batchTest +++++");
+
+        final List<Packet> received = new ArrayList<Packet>();
+        DepacketizerListener depacketizerListener = new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                received.add(packet);
+            }
+        };
+
+        List<Packet> packets = new ArrayList<Packet>();
+        int[] requestTypeIdList = new int[]{0, 63, 64, 16383};
+        int[] requestIdList = new int[]{1, 32768, 4194304, 1073741823};
+        int[] contentLengthList = new int[]{1, 300, 40000};
+        for (int i = 0; i < requestTypeIdList.length; i++) {
+            for (int j = 0; j < contentLengthList.length; j++) {
+                packets.add(new Packet(j % 2 == 0, requestTypeIdList[i], requestIdList[(i + j) % requestIdList.length],
+                        Arrays.asList(new Object[]{CodecTest.generateByte(contentLengthList[j]), i})));
+            }
+        }
+
+        for (int compressorId : new int[]{0, CompressorFactory.DEFLATE}) {
+            DefaultPacketizer packetizer = new DefaultPacketizer();
+            packetizer.setCompressor(compressorId == 0 ? null : CompressorFactory.getCompressor(compressorId));
+            byte[] packetByte = packetizer.packBatch(packets);
+
+            for (int segmentLength : new int[]{packetByte.length, 1, 7}) {
+                received.clear();
+                DefaultDepacketizer depacketizer = new DefaultDepacketizer();
+                depacketizer.addListener(depacketizerListener);
+                for (int i = 0; i < packetByte.length; i += segmentLength) {
+                    depacketizer.unpack(packetByte, i, Math.min(segmentLength, packetByte.length - i));
+                }
+
+                assertEquals(packets.size(), received.size());
+                for (int i = 0; i < packets.size(); i++) {
+                    Packet packet = packets.get(i);
+                    Packet receivedPacket = received.get(i);
+                    assertEquals(packet.isRespond(), receivedPacket.isRespond());
+                    assertEquals(packet.getRequestTypeId(), receivedPacket.getRequestTypeId());
+                    assertEquals(packet.getRequestId(), receivedPacket.getRequestId());
+                    assertEquals(i, receivedPacket.getBatchIndex());
+                    assertEquals(packets.size(), receivedPacket.getBatchSize());
+                    assertTrue(ArgumentsAssert.assertEquals(((List<Object>) packet.getContent()).toArray(), ((List<Object>) receivedPacket.getContent()).toArray()));
+                }
+            }
+        }
+
+        // small calls share the framing and the crc
+        DefaultPacketizer packetizer = new DefaultPacketizer();
+        packets.clear();
+        int separateLength = 0;
+        for (int i = 1; i <= 20; i++) {
+            List<Object> content = Arrays.asList(new Object[]{i, "call"});
+            packets.add(new Packet(false, 3, i, content));
+            separateLength += packetizer.pack(false, 3, i, content).length;
+        }
+        byte[] batchPacket = packetizer.packBatch(packets);
+        System.out.println(String.format("20 small calls, separate: %1$d bytes, batched: %2$d bytes", separateLength, batchPacket.length));
+        assertTrue(batchPacket.length < separateLength * 4 / 5);
+
+        // a corrupted batch is dropped as a whole, the next packet is still read
+        batchPacket[batchPacket.length - 10] ^= 1;
+        byte[] nextPacket = packetizer.pack(false, 1, 1, Arrays.asList(new Object[]{1}));
+        received.clear();
+        DefaultDepacketizer depacketizer = new DefaultDepacketizer();
+        depacketizer.addListener(depacketizerListener);
+        depacketizer.unpack(batchPacket, 0, batchPacket.length);
+        depacketizer.unpack(nextPacket, 0, nextPacket.length);
+        assertEquals(1, received.size());
+        assertEquals(0, received.get(0).getBatchSize());
+    }
+
+    @Test
+    public void acknowledgementTest() throws Throwable {
+        System.out.println("+++++ acknowledgementTest +++++");
+
+        final List<Packet> received = new ArrayList<Packet>();
+        DefaultDepacketizer depacketizer = new DefaultDepacketizer();
+        depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                received.add(packet);
+            }
+        });
+
+        final int[][] acknowledgements = new int[1][];
+        final List<byte[]> attachedTo = new ArrayList<byte[]>();
+        DefaultPacketizer packetizer = new DefaultPacketizer();
+        packetizer.setAcknowledgementSource(new AcknowledgementSource() {
+
+            @Override
+            public int[] pollAcknowledgements(byte[] packetData) {
+                attachedTo.add(packetData);
+                int[] _acknowledgements = acknowledgements[0];
+                acknowledgements[0] = null;
+                return _acknowledgements;
+            }
+        });
+        int[] expected = new int[]{-1, 1, 0, 32768, 16383, 1073741823};
+        List<Object> compressible = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            compressible.add("record " + (i % 10));
+        }
+
+        for (int compressorId : new int[]{0, CompressorFactory.LZF}) {
+            packetizer.setCompressor(compressorId == 0 ? null : CompressorFactory.getCompressor(compressorId));
+            packetizer.setCompressionThreshold(64);
+
+            // attached when written, polled once only
+            acknowledgements[0] = expected;
+            byte[] packetByte = packetizer.pack(true, 3, 7, compressible);
+            assertNotNull(acknowledgements[0]);
+            attachedTo.clear();
+            byte[] attachedPacketByte = packetizer.attachAcknowledgements(packetByte);
+            assertEquals(1, attachedTo.size());
+            assertSame(packetByte, attachedTo.get(0));
+            assertNotSame(packetByte, attachedPacketByte);
+            assertSame(attachedPacketByte, packetizer.attachAcknowledgements(attachedPacketByte));
+            byte[] nextPacketByte = packetizer.pack(true, 3, 8, compressible);
+            assertSame(nextPacketByte, packetizer.attachAcknowledgements(nextPacketByte));
+            received.clear();
+            depacketizer.unpack(attachedPacketByte, 0, attachedPacketByte.length);
+            depacketizer.unpack(nextPacketByte, 0, nextPacketByte.length);
+            assertEquals(2, received.size());
+            assertArrayEquals(expected, received.get(0).getAcknowledgements());
+            assertTrue(ArgumentsAssert.assertEquals(compressible.toArray(), ((List<Object>) received.get(0).getContent()).toArray()));
+            assertNull(received.get(1).getAcknowledgements());
+
+            // the packet sent again carries the acknowledgements of the time it is sent again
+            acknowledgements[0] = new int[]{-1, 2};
+            attachedPacketByte = packetizer.attachAcknowledgements(packetByte);
+            received.clear();
+            depacketizer.unpack(attachedPacketByte, 0, attachedPacketByte.length);
+            assertEquals(1, received.size());
+            assertArrayEquals(new int[]{-1, 2}, received.get(0).getAcknowledgements());
+
+            // the content of the default codec without a tag byte, in all the packet length formats
+            for (Object content : new Object[]{1, new byte[1000], new byte[40000]}) {
+                packetizer.setCompressor(null);
+                acknowledgements[0] = expected;
+                packetByte = packetizer.pack(false, 1, 5, Arrays.asList(new Object[]{content}));
+                attachedPacketByte = packetizer.attachAcknowledgements(packetByte);
+                received.clear();
+                depacketizer.unpack(attachedPacketByte, 0, attachedPacketByte.length);
+                assertEquals(1, received.size());
+                assertArrayEquals(expected, received.get(0).getAcknowledgements());
+                assertEquals(5, received.get(0).getRequestId());
+                assertTrue(ArgumentsAssert.assertEquals(new Object[]{content}, ((List<Object>) received.get(0).getContent()).toArray()));
+            }
+            packetizer.setCompressor(compressorId == 0 ? null : CompressorFactory.getCompressor(compressorId));
+
+            // attached to the first packet of a batch
+            acknowledgements[0] = expected;
+            List<Packet> packets = new ArrayList<Packet>();
+            packets.add(new Packet(false, 1, 1, Arrays.asList(new Object[]{1})));
+            packets.add(new Packet(false, 1, 2, compressible));
+            packetByte = packetizer.attachAcknowledgements(packetizer.packBatch(packets));
+            received.clear();
+            depacketizer.unpack(packetByte, 0, packetByte.length);
+            assertEquals(2, received.size());
+            assertArrayEquals(expected, received.get(0).getAcknowledgements());
+            assertNull(received.get(1).getAcknowledgements());
+        }
+    }
 }
@@ -0,0 +1,277 @@
+package rpc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import rpc.RPCTestPackage.BenchmarkInterface;
+
+/**
+ * End-to-end throughput and latency of the method kinds, with the two {@link RPC} connected by {@link Simulator}s.
+ * The latency of the blocking methods is the round trip measured by the caller, the latency of the other methods is
+ * the time from the call to the invocation on the remote side.
+ * Run with: java -cp ... rpc.RPCBenchmark [duration=5] [warmUp=2] [concurrency=1,4,16] [errorRate=0,0.001]
+ * [methods=blocking,nonBlocking,noRespond,sequential,broadcast] [output=rpc-benchmark.csv] [label=dev]
+ * One CSV line is appended to the output file for every run, the label identify the build being measured.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class RPCBenchmark {
+
+    protected static final String[] allMethods = new String[]{"blocking", "nonBlocking", "noRespond", "sequential", "broadcast"};
+    protected static final String csvHeader = "label,method,concurrency,errorRate,durationMs,calls,completed,callsPerSecond,p50Us,p99Us,p999Us,maxUs";
+    //
+    protected RPCRegistry serverRPCRegistry;
+    protected RPCRegistry clientRPCRegistry;
+    protected Simulator serverToClientSimulator;
+    protected Simulator clientToServerSimulator;
+    protected RPC<Integer> serverRPC;
+    protected RPC<Integer> clientRPC;
+    protected BenchmarkInterface server;
+    protected final LatencyRecorder recorder;
+
+    public RPCBenchmark() {
+        recorder = new LatencyRecorder();
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("duration", "5");
+        options.put("warmUp", "2");
+        options.put("concurrency", "1,4,16");
+        options.put("errorRate", "0,0.001");
+        options.put("methods", join(allMethods));
+        options.put("output", "rpc-benchmark.csv");
+        options.put("label", "dev");
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index == -1 || !options.containsKey(arg.substring(0, index))) {
+                throw new IllegalArgumentException(String.format("unknown option: %1$s", arg));
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+
+        long duration = (long) (Double.parseDouble(options.get("duration")) * 1000);
+        long warmUp = (long) (Double.parseDouble(options.get("warmUp")) * 1000);
+        File output = new File(options.get("output"));
+        boolean newFile = output.length() == 0;
+        PrintWriter writer = new PrintWriter(new FileWriter(output, true));
+        try {
+            if (newFile) {
+                writer.println(csvHeader);
+            }
+            System.out.println(csvHeader);
+            for (String method : options.get("methods").split(",")) {
+                for (String concurrency : options.get("concurrency").split(",")) {
+                    for (String errorRate : options.get("errorRate").split(",")) {
+                        RPCBenchmark benchmark = new RPCBenchmark();
+                        benchmark.setUp(Double.parseDouble(errorRate));
+                        try {
+                            benchmark.run(method, Integer.parseInt(concurrency), warmUp);
+                            benchmark.recorder.reset();
+                            String result = options.get("label") + "," + benchmark.run(method, Integer.parseInt(concurrency), duration);
+                            writer.println(result);
+                            writer.flush();
+                            System.out.println(result);
+                        } finally {
+                            benchmark.tearDown();
+                        }
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        System.exit(0);
+    }
+
+    protected static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(sb.length() == 0 ? "" : ",").append(value);
+        }
+        return sb.toString();
+    }
+
+    protected void setUp(double errorRate) throws Throwable {
+        serverRPCRegistry = new RPCRegistry();
+        clientRPCRegistry = new RPCRegistry();
+
+        serverRPCRegistry.registerLocal(BenchmarkInterface.class);
+        serverRPC = serverRPCRegistry.getRPC(Integer.class);
+        serverRPC.bind(BenchmarkInterface.class, new BenchmarkInterfaceImplementation(recorder));
+
+        clientRPCRegistry.registerRemote(BenchmarkInterface.class);
+        clientRPC = clientRPCRegistry.getRPC(Integer.class);
+        // the broadcast list is resolved to the connections in the registry of the caller
+        clientRPC.setUserObject(1);
+
+        serverToClientSimulator = new Simulator(serverRPC);
+        clientToServerSimulator = new Simulator(clientRPC);
+        serverToClientSimulator.setRemoteRPC(clientToServerSimulator);
+        clientToServerSimulator.setRemoteRPC(serverToClientSimulator);
+        serverToClientSimulator.setErrorRate(errorRate, 8);
+        clientToServerSimulator.setErrorRate(errorRate, 8);
+        serverRPC.setRemoteOutput(serverToClientSimulator);
+        clientRPC.setRemoteOutput(clientToServerSimulator);
+
+        server = clientRPC.getRemote(BenchmarkInterface.class);
+        serverRPCRegistry.start();
+        clientRPCRegistry.start();
+    }
+
+    protected void tearDown() {
+        serverToClientSimulator.stop();
+        clientToServerSimulator.stop();
+        serverRPCRegistry.stop();
+        clientRPCRegistry.stop();
+    }
+
+    /**
+     * Call the method from {@code concurrency} threads for {@code duration} milliseconds, then wait up to 10 seconds
+     * for the calls in flight to arrive.
+     * @return the CSV line without the label
+     */
+    protected String run(final String method, int concurrency, long duration) throws Throwable {
+        if (!Arrays.asList(allMethods).contains(method)) {
+            throw new IllegalArgumentException(String.format("unknown method: %1$s", method));
+        }
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final AtomicLong calls = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(concurrency);
+        final Throwable[] failure = new Throwable[1];
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (!stopped.get()) {
+                            call(method);
+                            calls.incrementAndGet();
+                        }
+                    } catch (Throwable ex) {
+                        failure[0] = ex;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }, "RPCBenchmark - caller " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(duration);
+        stopped.set(true);
+        latch.await();
+        long elapsed = System.nanoTime() - startTime;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long waitEnd = System.currentTimeMillis() + 10000;
+        while (recorder.count() < calls.get() && System.currentTimeMillis() < waitEnd) {
+            Thread.sleep(10);
+        }
+
+        long[] latencies = recorder.sorted();
+        return String.format("%1$s,%2$d,%3$s,%4$d,%5$d,%6$d,%7$.1f,%8$.1f,%9$.1f,%10$.1f,%11$.1f",
+                method, concurrency, serverToClientSimulator.errorRate, duration, calls.get(), latencies.length,
+                calls.get() / (elapsed / 1000000000.0D),
+                percentile(latencies, 0.5D), percentile(latencies, 0.99D), percentile(latencies, 0.999D), percentile(latencies, 1.0D));
+    }
+
+    protected void call(String method) throws Throwable {
+        long sendTime = System.nanoTime();
+        if (method.equals("blocking")) {
+            server.blocking(sendTime);
+            recorder.record(System.nanoTime() - sendTime);
+        } else if (method.equals("sequential")) {
+            server.sequential(sendTime);
+            recorder.record(System.nanoTime() - sendTime);
+        } else if (method.equals("nonBlocking")) {
+            server.nonBlocking(sendTime);
+        } else if (method.equals("noRespond")) {
+            server.noRespond(sendTime);
+        } else {
+            server.broadcast(new Integer[]{1}, sendTime);
+        }
+    }
+
+    /**
+     * @return the latency in microseconds
+     */
+    protected static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000.0D;
+    }
+
+    protected static class LatencyRecorder {
+
+        protected long[] latencies = new long[65536];
+        protected int size = 0;
+
+        public synchronized void record(long latency) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = latency;
+        }
+
+        public synchronized int count() {
+            return size;
+        }
+
+        public synchronized long[] sorted() {
+            long[] returnValue = Arrays.copyOf(latencies, size);
+            Arrays.sort(returnValue);
+            return returnValue;
+        }
+
+        public synchronized void reset() {
+            size = 0;
+        }
+    }
+
+    protected static class BenchmarkInterfaceImplementation implements BenchmarkInterface {
+
+        protected final LatencyRecorder recorder;
+
+        protected BenchmarkInterfaceImplementation(LatencyRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public Long blocking(long sendTime) {
+            return sendTime;
+        }
+
+        @Override
+        public void nonBlocking(long sendTime) {
+            recorder.record(System.nanoTime() - sendTime);
+        }
+
+        @Override
+        public void noRespond(long sendTime) {
+            recorder.record(System.nanoTime() - sendTime);
+        }
+
+        @Override
+        public Long sequential(long sendTime) {
+            return sendTime;
+        }
+
+        @Override
+        public void broadcast(Integer[] broadcastList, long sendTime) {
+            recorder.record(System.nanoTime() - sendTime);
+        }
+    }
+}
@@ -1,14 +1,30 @@
 package rpc;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -21,8 +37,17 @@ import rpc.RPCTestPackage.ClientInterface;
 import rpc.RPCTestPackage.ClientInterface2;
 import rpc.RPCTestPackage.ClientInterface2Implementation;
 import rpc.RPCTestPackage.ClientInterfaceImplementation;
+import rpc.codec.CodecFactory;
+import rpc.codec.CodecProvider;
+import rpc.codec.DefaultCodecProvider;
+import rpc.codec.DefaultGenerator;
+import rpc.codec.Generator;
+import rpc.codec.Parser;
 import rpc.exception.ClassRegisteredException;
 import rpc.exception.ConditionConflictException;
+import rpc.packet.DepacketizerListener;
+import rpc.packet.Packet;
+import rpc.transport.RemoteOutput;
 
 public class RPCTest {
 
@@ -136,7 +161,7 @@ public class RPCTest {
         }
         assertTrue(exceptionCaught.get());
 
-        for (int i = 1; i <= 14; i++) {
+        for (int i = 1; i <= 16; i++) {
             Class<?> testInterface = Class.forName(String.format("rpc.RPCTestPackage.ConditionConflictTest_Interface%1$d", i));
             exceptionCaught.set(false);
             registry = null;
@@ -344,6 +369,1336 @@ public class RPCTest {
         assertTrue(ArgumentsAssert.finish());
     }
 
+    @Test
+    public void requestIdAllocationTest() throws Throwable {
+        System.out.println("+++++ requestIdAllocationTest +++++");
+
+        final RPC.RPCIdSet idSet = new RPC.RPCIdSet(-1);
+        final Map<Integer, RPC.RPCRequest> requestList = Collections.synchronizedMap(new HashMap<Integer, RPC.RPCRequest>());
+        final Set<Integer> ids = Collections.synchronizedSet(new HashSet<Integer>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        ids.add(idSet.nextId(requestList));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, ids.size());
+        assertEquals(80001, idSet.id);
+        assertFalse(idSet.wrapped);
+
+        // the ids still in use are skipped after wrapped around
+        idSet.id = 1073741823;
+        requestList.put(1, new RPC.RPCRequest());
+        requestList.put(2, new RPC.RPCRequest());
+        assertEquals(1073741823, idSet.nextId(requestList));
+        assertTrue(idSet.wrapped);
+        assertEquals(3, idSet.nextId(requestList));
+        assertEquals(4, idSet.id);
+    }
+
+    @Test
+    public void requestPoolTest() throws Throwable {
+        System.out.println("+++++ requestPoolTest +++++");
+
+        RPC.RPCRequestPool pool = new RPC.RPCRequestPool(1024);
+
+        // ownership lifecycle
+        RPC.RPCRequest request = pool.obtain(16383, 1073741823, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.OWNED_BY_CALLER, null);
+        assertEquals(16383, request.getRequestTypeId());
+        assertEquals(1073741823, request.requestId);
+        request.set(RPC.RPCRequest.RESPONDED);
+        assertTrue(request.is(RPC.RPCRequest.RESPONDED));
+        assertFalse(request.is(RPC.RPCRequest.FAILED));
+        assertEquals(16383, request.getRequestTypeId());
+        assertNull(request.getPriority());
+        request.set(RPC.RPCRequest.priorityFlags(RPCPriority.BULK));
+        assertEquals(RPCPriority.BULK, request.getPriority());
+        request.addRetry();
+        assertEquals(RPCPriority.BULK, request.getPriority());
+        assertEquals(1, request.getRetries());
+        assertEquals(16383, request.getRequestTypeId());
+        pool.release(request, RPC.RPCRequest.OWNED_BY_LIST);
+        assertEquals(0, pool.size);
+        pool.release(request, RPC.RPCRequest.OWNED_BY_LIST);
+        assertEquals(0, pool.size);
+        pool.release(request, RPC.RPCRequest.OWNED_BY_CALLER);
+        assertEquals(1, pool.size);
+        assertSame(request, pool.obtain(1, 2, RPC.RPCRequest.OWNED_BY_LIST, null));
+        assertFalse(request.is(RPC.RPCRequest.RESPONDED));
+        assertNull(request.getPriority());
+        assertEquals(0, pool.size);
+
+        // footprint of 100k requests in flight, compared with the layout before pooling
+        Assume.assumeTrue(allocatedBytes() > 0);
+        int count = 100000;
+        byte[] packetData = new byte[0];
+        LegacyRPCRequest[] legacyRequests = new LegacyRPCRequest[count];
+        RPC.RPCRequest[] requests = new RPC.RPCRequest[count];
+
+        long allocatedStart = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            legacyRequests[i] = new LegacyRPCRequest(i, System.currentTimeMillis(), packetData);
+        }
+        long legacyAllocated = allocatedBytes() - allocatedStart;
+
+        allocatedStart = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            requests[i] = pool.obtain(0, i, RPC.RPCRequest.OWNED_BY_LIST, packetData);
+        }
+        long allocated = allocatedBytes() - allocatedStart;
+        System.out.println(String.format("bytes per request in flight, legacy: %1$d, current: %2$d", legacyAllocated / count, allocated / count));
+        assertTrue(allocated * 4 <= legacyAllocated * 3);
+
+        // churn after the requests are responded is served from the pool
+        for (int i = 0; i < count; i++) {
+            pool.release(requests[i], RPC.RPCRequest.OWNED_BY_LIST);
+            requests[i] = null;
+        }
+        allocatedStart = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            RPC.RPCRequest _request = pool.obtain(0, i, RPC.RPCRequest.OWNED_BY_LIST, packetData);
+            pool.release(_request, RPC.RPCRequest.OWNED_BY_LIST);
+        }
+        allocated = allocatedBytes() - allocatedStart;
+        System.out.println(String.format("bytes allocated by %1$d pooled requests: %2$d", count, allocated));
+        assertTrue(allocated < count);
+    }
+
+    @Test
+    public void requestTimeoutRaceTest() throws Throwable {
+        System.out.println("+++++ requestTimeoutRaceTest +++++");
+
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public Double eval(double x) {
+                // respond around the call timeout of the caller, the calls of the other thread are invoked in between
+                try {
+                    Thread.sleep(3 + (long) x % 5);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return x;
+            }
+        });
+        clientRPC.setCallTimeout(8);
+
+        final AtomicInteger responded = new AtomicInteger(0);
+        final AtomicInteger timedOut = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            final int threadIndex = i;
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 150; j++) {
+                        double x = threadIndex * 1000 + j;
+                        try {
+                            // a late respond written into a recycled record is returned to another call
+                            Double result = serverInterface.eval(x);
+                            if (result == null || result != x) {
+                                failed.set(true);
+                            }
+                            responded.incrementAndGet();
+                        } catch (Exception ex) {
+                            if (ex instanceof IOException && "Request timed out".equals(ex.getMessage())) {
+                                timedOut.incrementAndGet();
+                                // let the remote side catch up, the methods are still invoked after cancelled
+                                try {
+                                    Thread.sleep(10);
+                                } catch (InterruptedException ex1) {
+                                    return;
+                                }
+                            } else {
+                                Logger.getLogger(RPCTest.class.getName()).log(Level.SEVERE, null, ex);
+                                failed.set(true);
+                            }
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        clientRPC.setCallTimeout(0);
+        System.out.println(String.format("responded: %1$d, timed out: %2$d", responded.get(), timedOut.get()));
+
+        assertFalse(failed.get());
+        assertEquals(300, responded.get() + timedOut.get());
+        assertEquals(7.0D, serverInterface.eval(7.0D), 0.0D);
+        for (int i = 0; i < 50 && !clientRPC.requestList.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(clientRPC.requestList.isEmpty());
+    }
+
+    protected static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * The layout of {@link RPC.RPCRequest} before it was pooled.
+     */
+    protected static class LegacyRPCRequest {
+
+        protected final int requestTypeId;
+        protected final int requestId;
+        protected long time;
+        protected byte[] packetData;
+        protected Object requestArgs;
+        protected Object respond;
+        protected boolean responded;
+        protected boolean requestFailed;
+        protected boolean notified;
+
+        protected LegacyRPCRequest(int requestId, long time, byte[] packetData) {
+            this.requestTypeId = 0;
+            this.requestId = requestId;
+            this.time = time;
+            this.packetData = packetData;
+        }
+    }
+
+    @Test
+    public void batchTest() throws Throwable {
+        System.out.println("+++++ batchTest +++++");
+
+        final List<Packet> serverReceived = Collections.synchronizedList(new ArrayList<Packet>());
+        final List<Packet> clientReceived = Collections.synchronizedList(new ArrayList<Packet>());
+        serverRPC.depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                if (packet.getRequestTypeId() != 0) {
+                    serverReceived.add(packet);
+                }
+            }
+        });
+        clientRPC.depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                if (packet.getRequestTypeId() != 0) {
+                    clientReceived.add(packet);
+                }
+            }
+        });
+
+        // the blocking call send the batch and wait
+        clientRPC.beginBatch();
+        clientRPC.beginBatch();
+        for (int i = 0; i < 10; i++) {
+            serverInterface2.abc();
+        }
+        clientRPC.endBatch();
+        assertTrue(serverReceived.isEmpty());
+        assertEquals(3.0D, serverInterface.eval(3.0D), 0.0D);
+        clientRPC.endBatch();
+
+        assertEquals(11, serverReceived.size());
+        for (int i = 0; i < 11; i++) {
+            assertEquals(i, serverReceived.get(i).getBatchIndex());
+            assertEquals(11, serverReceived.get(i).getBatchSize());
+        }
+        // the responds come back in one batch
+        for (int i = 0; i < 50 && clientReceived.size() < 11; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(11, clientReceived.size());
+        for (Packet packet : clientReceived) {
+            assertTrue(packet.isRespond());
+            assertEquals(11, packet.getBatchSize());
+        }
+        for (int i = 0; i < 50 && !clientRPC.requestList.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(clientRPC.requestList.isEmpty());
+
+        // not batched after the batch ended
+        serverReceived.clear();
+        serverInterface2.abc();
+        for (int i = 0; i < 50 && serverReceived.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, serverReceived.get(0).getBatchSize());
+    }
+
+    @Test
+    public void piggybackAcknowledgementTest() throws Throwable {
+        System.out.println("+++++ piggybackAcknowledgementTest +++++");
+
+        final List<Packet> controlReceived = Collections.synchronizedList(new ArrayList<Packet>());
+        serverRPC.depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                if (!packet.isRespond() && packet.getRequestTypeId() == 0) {
+                    controlReceived.add(packet);
+                }
+            }
+        });
+
+        // every request carry the responded id of the previous one, no standalone responded id update
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, serverInterface.eval(i), 0.0D);
+        }
+        assertEquals(49, serverRPC.respondIdSet.respondedId);
+        assertEquals(1, serverRPC.respondList.size());
+        assertTrue(controlReceived.isEmpty());
+
+        // the link is idle, a heart beat carry the last one after the respondedIdSendInterval
+        clientRPCRegistry.setRespondedIdSendInterval(1000);
+        for (int i = 0; i < 50 && !serverRPC.respondList.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(serverRPC.respondList.isEmpty());
+        assertEquals(50, serverRPC.respondIdSet.respondedId);
+        assertEquals(1, controlReceived.size());
+        assertNull(((List<Object>) controlReceived.get(0).getContent()).get(0));
+
+        // the heart beat is responded, so the last one is received and not sent again
+        Thread.sleep(2500);
+        assertEquals(50, clientRPC.requestIdSet.deliveredRespondId);
+        assertEquals(1, controlReceived.size());
+
+        // the old ones are ignored without moving back
+        assertNull(serverRPC.acknowledge(-1, 49));
+        assertNull(serverRPC.acknowledge(-1, 50));
+        assertEquals(50, serverRPC.respondIdSet.respondedId);
+
+        // wrapped around
+        serverRPC.respondIdSet.respondedId = 1073741821;
+        serverRPC.respondList.put(1073741823, serverRPC.requestPool.obtain(1, 1073741823, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.RESPONDED, null));
+        serverRPC.respondList.put(2, serverRPC.requestPool.obtain(1, 2, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.RESPONDED, null));
+        serverRPC.respondList.put(3, serverRPC.requestPool.obtain(1, 3, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.RESPONDED, null));
+        assertNull(serverRPC.acknowledge(-1, 1073741800));
+        assertEquals(1073741821, serverRPC.respondIdSet.respondedId);
+        assertNull(serverRPC.acknowledge(-1, 2));
+        assertEquals(2, serverRPC.respondIdSet.respondedId);
+        assertEquals(1, serverRPC.respondList.size());
+        assertTrue(serverRPC.respondList.containsKey(3));
+    }
+
+    @Test
+    public void bulkSequentialIdTest() throws Throwable {
+        System.out.println("+++++ bulkSequentialIdTest +++++");
+
+        // a stream chunk held by the remote connection until the one before it arrives, the stream id is not in use
+        int missingRequestId = clientRPC.bulkRequestIdSet.nextId(clientRPC.bulkRequestList);
+        clientRPC.sendBulkControl(RPCControl.STREAM_DATA, -1000, new byte[65536]);
+        int heldRequestId = missingRequestId >= 1073741823 ? 1 : missingRequestId + 1;
+        for (int i = 0; i < 50 && serverRPC.bulkRespondList.get(heldRequestId) == null; i++) {
+            Thread.sleep(100);
+        }
+        assertNotNull(serverRPC.bulkRespondList.get(heldRequestId));
+
+        // the control messages do not wait behind it
+        int controlId = serverRPC._sequentialRespondIdSet[0].id;
+        clientRPC.sendControl(RPCControl.STREAM_CREDIT, -1000, 1);
+        for (int i = 0; i < 50 && serverRPC._sequentialRespondIdSet[0].id == controlId; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(serverRPC._sequentialRespondIdSet[0].id != controlId);
+        assertFalse(serverRPC.bulkRespondList.get(heldRequestId).is(RPC.RPCRequest.RESPONDED));
+
+        // both are invoked in order after the missing one arrives
+        clientRPC.genericSend(clientRPC.bulkRequestList, false, RPC.BULK_SEQUENTIAL_ID, missingRequestId,
+                new Object[]{RPCControl.STREAM_DATA.getValue(), -1000, new byte[1]}, true, false);
+        for (int i = 0; i < 50 && !clientRPC.bulkRequestList.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(clientRPC.bulkRequestList.isEmpty());
+        assertEquals(heldRequestId >= 1073741823 ? 1 : heldRequestId + 1, serverRPC.bulkRespondIdSet.id);
+    }
+
+    @Test
+    public void selectiveAcknowledgementTest() throws Throwable {
+        System.out.println("+++++ selectiveAcknowledgementTest +++++");
+
+        // requests 5 to 7 sent on sequential lane 1 long ago, the remote connection received 5 and 7 only
+        // stop the workers of the registry from sending them again
+        clientRPCRegistry.stop();
+        try {
+            selectiveAcknowledgement();
+        } finally {
+            clientRPCRegistry.start();
+        }
+    }
+
+    protected void selectiveAcknowledgement() throws Throwable {
+        int oldTime = (int) System.currentTimeMillis() - 10000;
+        Map<Integer, RPC.RPCRequest> _requestList = clientRPC._sequentialRequestList[1];
+        for (int requestId = 5; requestId <= 7; requestId++) {
+            RPC.RPCRequest request = clientRPC.requestPool.obtain(2, requestId, RPC.RPCRequest.OWNED_BY_LIST, new byte[0]);
+            request.time = oldTime;
+            _requestList.put(requestId, request);
+        }
+        Map<Integer, RPC.RPCRequest> _respondList = serverRPC._sequentialRespondList[1];
+        _respondList.put(5, serverRPC.requestPool.obtain(2, 5, RPC.RPCRequest.OWNED_BY_LIST, null));
+        _respondList.put(7, serverRPC.requestPool.obtain(2, 7, RPC.RPCRequest.OWNED_BY_LIST, null));
+        // responded, the respond may be lost
+        _respondList.put(4, serverRPC.requestPool.obtain(2, 4, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.RESPONDED, new Object[]{null}));
+
+        serverRPC.sendSelectiveAcknowledgements();
+        for (int i = 0; i < 50 && _requestList.get(5).time == oldTime; i++) {
+            Thread.sleep(100);
+        }
+        // only the gap is still due to be sent again
+        assertTrue((int) System.currentTimeMillis() - _requestList.get(5).time < 5000);
+        assertEquals(oldTime, _requestList.get(6).time);
+        assertTrue((int) System.currentTimeMillis() - _requestList.get(7).time < 5000);
+        // not a request of the control lane
+        assertTrue(serverRPC._sequentialRequestList[0].isEmpty());
+
+        // sent again only if the requests held changed
+        final List<Object> selectiveAcknowledgements = Collections.synchronizedList(new ArrayList<Object>());
+        clientRPC.depacketizer.addListener(new DepacketizerListener() {
+
+            @Override
+            public void packetReceived(Packet packet) {
+                Object content = packet.getContent();
+                if (packet.getRequestTypeId() == 0 && content instanceof List && ((List<?>) content).get(0) instanceof Short
+                        && (Short) ((List<?>) content).get(0) == RPCControl.SELECTIVE_ACK.getValue()) {
+                    selectiveAcknowledgements.add(content);
+                }
+            }
+        });
+        serverRPC.sendSelectiveAcknowledgements();
+        Thread.sleep(200);
+        assertTrue(selectiveAcknowledgements.isEmpty());
+
+        // ordered from the next request to invoke across the wrap around
+        for (int requestId : new int[]{1073741822, 1073741823, 1, 2}) {
+            RPC.RPCRequest request = clientRPC.requestPool.obtain(2, requestId, RPC.RPCRequest.OWNED_BY_LIST, new byte[0]);
+            request.time = oldTime;
+            _requestList.put(requestId, request);
+        }
+        serverRPC._sequentialRespondIdSet[1].id = 1073741820;
+        _respondList.remove(5);
+        _respondList.remove(7);
+        for (int requestId : new int[]{2, 1073741823, 1073741822}) {
+            _respondList.put(requestId, serverRPC.requestPool.obtain(2, requestId, RPC.RPCRequest.OWNED_BY_LIST, null));
+        }
+        serverRPC.sendSelectiveAcknowledgements();
+        for (int i = 0; i < 50 && selectiveAcknowledgements.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, selectiveAcknowledgements.size());
+        assertEquals(1073741822, ((List<?>) selectiveAcknowledgements.get(0)).get(2));
+        assertArrayEquals(new byte[]{11}, (byte[]) ((List<?>) selectiveAcknowledgements.get(0)).get(3));
+        assertTrue((int) System.currentTimeMillis() - _requestList.get(1073741822).time < 5000);
+        assertTrue((int) System.currentTimeMillis() - _requestList.get(1073741823).time < 5000);
+        assertEquals(oldTime, _requestList.get(1).time);
+        assertTrue((int) System.currentTimeMillis() - _requestList.get(2).time < 5000);
+    }
+
+    @Test
+    public void heldRequestTest() throws Throwable {
+        System.out.println("+++++ heldRequestTest +++++");
+
+        // the retries of the client are given up in about 1 second
+        for (RPCRegistry registry : new RPCRegistry[]{serverRPCRegistry, clientRPCRegistry}) {
+            registry.setInitialRetryTimeout(100);
+            registry.setMinRetryTimeout(100);
+            registry.setMaxRetryTimeout(400);
+            registry.setMaxRetries(3);
+        }
+        serverToClientSimulator.stop();
+        clientToServerSimulator.stop();
+        serverRPC = serverRPCRegistry.getRPC(Integer.class);
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public void test() {
+                sleep();
+            }
+
+            @Override
+            public void testSequential() throws IOException {
+                sleep();
+            }
+
+            protected void sleep() {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        clientRPC = clientRPCRegistry.getRPC(Integer.class);
+        serverToClientSimulator = new Simulator(serverRPC);
+        clientToServerSimulator = new Simulator(clientRPC);
+        serverToClientSimulator.setRemoteRPC(clientToServerSimulator);
+        clientToServerSimulator.setRemoteRPC(serverToClientSimulator);
+        serverRPC.setRemoteOutput(serverToClientSimulator);
+        clientRPC.setRemoteOutput(clientToServerSimulator);
+        serverInterface = clientRPC.getRemote(ServerInterface.class);
+
+        // the requests held by the remote side are acknowledged again while invoking, they are not given up
+        long start = System.currentTimeMillis();
+        serverInterface.testSequential();
+        assertTrue(System.currentTimeMillis() - start >= 2000);
+        start = System.currentTimeMillis();
+        serverInterface.test();
+        assertTrue(System.currentTimeMillis() - start >= 2000);
+    }
+
+    @Test
+    public void retryTimeoutTest() throws Throwable {
+        System.out.println("+++++ retryTimeoutTest +++++");
+
+        RPCRoundTripTimer timer = new RPCRoundTripTimer(5000, 200, 60000);
+        assertEquals(-1, timer.getRoundTripTime());
+        assertEquals(5000, timer.getTimeout());
+        timer.sample(1000);
+        assertEquals(1000, timer.getRoundTripTime());
+        assertEquals(500, timer.getRoundTripTimeVariance());
+        assertEquals(3000, timer.getTimeout());
+        timer.sample(200);
+        assertEquals(900, timer.getRoundTripTime());
+        assertEquals(575, timer.getRoundTripTimeVariance());
+        assertEquals(3200, timer.getTimeout());
+        // backoff
+        assertEquals(12800, timer.getTimeout(2));
+        assertEquals(60000, timer.getTimeout(15));
+        for (int i = 0; i < 100; i++) {
+            timer.sample(1);
+        }
+        assertEquals(200, timer.getTimeout());
+
+        // measured from the requests
+        for (int i = 0; i < 20; i++) {
+            serverInterface.test();
+        }
+        assertTrue(clientRPC.getRoundTripTimer().getRoundTripTime() >= 0);
+        assertTrue(clientRPC.getRoundTripTimer().getTimeout() < 5000);
+
+        // a request sent again for the maximum times is given up
+        RPC.RPCRequest request = clientRPC.requestPool.obtain(1, 1000, RPC.RPCRequest.OWNED_BY_LIST | RPC.RPCRequest.OWNED_BY_CALLER, new byte[0]);
+        for (int i = 0; i < clientRPCRegistry.getMaxRetries(); i++) {
+            request.addRetry();
+        }
+        assertEquals(clientRPCRegistry.getMaxRetries(), request.getRetries());
+        assertTrue(request.is(RPC.RPCRequest.RESENT));
+        request.time = (int) System.currentTimeMillis() - 70000;
+        request.waiter = Thread.currentThread();
+        clientRPC.requestList.put(1000, request);
+        try {
+            clientRPC.awaitRespond(request);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("Request not responded after retries", ex.getMessage());
+        }
+        assertTrue(request.is(RPC.RPCRequest.EXPIRED));
+    }
+
+    @Test
+    public void cancelTest() throws Throwable {
+        System.out.println("+++++ cancelTest +++++");
+
+        // the upload never ends, the method on the remote side blocks on reading the stream
+        final Object lock = new Object();
+        InputStream endless = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                synchronized (lock) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                return -1;
+            }
+        };
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public Long upload(InputStream in) throws IOException {
+                try {
+                    return super.upload(in);
+                } catch (InterruptedIOException ex) {
+                    interrupted.set(true);
+                    throw ex;
+                }
+            }
+        });
+        clientRPC.setCallTimeout(500);
+        long start = System.currentTimeMillis();
+        try {
+            serverInterface.upload(endless);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("Request timed out", ex.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        clientRPC.setCallTimeout(0);
+        assertTrue(clientRPC.requestList.isEmpty());
+
+        // the method on the remote side is interrupted
+        for (int i = 0; i < 50 && !interrupted.get(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(interrupted.get());
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        // the request queued on the sequential lane is dropped
+        RPC.RPCIdSet _idSet = serverRPC._sequentialRespondIdSet[1];
+        Map<Integer, RPC.RPCRequest> _respondList = serverRPC._sequentialRespondList[1];
+        int nextId;
+        synchronized (_idSet) {
+            nextId = _idSet.id;
+            _respondList.put(nextId + 1, serverRPC.requestPool.obtain(2, nextId + 1, RPC.RPCRequest.OWNED_BY_LIST, new ArrayList<Object>()));
+            _respondList.put(nextId + 2, serverRPC.requestPool.obtain(2, nextId + 2, RPC.RPCRequest.OWNED_BY_LIST, new ArrayList<Object>()));
+        }
+        serverRPC.cancelled(2, nextId + 1);
+        assertTrue(_respondList.get(nextId + 1).is(RPC.RPCRequest.CANCELLED));
+        assertEquals(nextId, _idSet.id);
+        // the request not received yet is cancelled, the lane proceed on its executor
+        serverRPC.cancelled(2, nextId);
+        for (int i = 0; i < 50 && !_respondList.get(nextId + 2).is(RPC.RPCRequest.RESPONDED); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(nextId + 3, _idSet.id);
+        assertTrue(_respondList.get(nextId).is(RPC.RPCRequest.CANCELLED));
+        assertFalse(_respondList.get(nextId + 2).is(RPC.RPCRequest.CANCELLED));
+        assertTrue(_respondList.get(nextId + 2).is(RPC.RPCRequest.RESPONDED));
+
+        // no pending request
+        assertEquals(0, clientRPC.cancelPendingRequests());
+    }
+
+    @Test
+    public void sequentialLaneTest() throws Throwable {
+        System.out.println("+++++ sequentialLaneTest +++++");
+
+        final CountDownLatch lane2Invoked = new CountDownLatch(1);
+        final AtomicBoolean lane1Blocked = new AtomicBoolean(false);
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public void testSequential() throws IOException {
+                try {
+                    // blocked until the method of the other sequential id is invoked
+                    lane1Blocked.set(lane2Invoked.await(5000, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            @Override
+            public void testSequential2(int value) throws IOException {
+                lane2Invoked.countDown();
+            }
+        });
+
+        Thread lane1Thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    serverInterface.testSequential();
+                } catch (IOException ex) {
+                    Logger.getLogger(RPCTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+        lane1Thread.start();
+        Thread.sleep(100);
+        serverInterface.testSequential2(0);
+        lane1Thread.join();
+        assertTrue(lane1Blocked.get());
+
+        // the requests of a sequential id are still invoked in order, including those received out of order
+        final List<Integer> invoked = Collections.synchronizedList(new ArrayList<Integer>());
+        RPC.RPCIdSet _idSet = serverRPC._sequentialRespondIdSet[2];
+        Map<Integer, RPC.RPCRequest> _respondList = serverRPC._sequentialRespondList[2];
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public void testSequential2(int value) throws IOException {
+                invoked.add(value);
+            }
+        });
+        synchronized (_idSet) {
+            int nextId = _idSet.id;
+            for (int i = 5; i >= 1; i--) {
+                _respondList.put(nextId + i, serverRPC.requestPool.obtain(14, nextId + i, RPC.RPCRequest.OWNED_BY_LIST, Arrays.asList((Object) i)));
+            }
+            assertEquals(nextId, _idSet.id);
+            _respondList.put(nextId, serverRPC.requestPool.obtain(14, nextId, RPC.RPCRequest.OWNED_BY_LIST, Arrays.asList((Object) 0)));
+            serverRPC.invokeSequential(_idSet, _respondList);
+        }
+        for (int i = 0; i < 50 && invoked.size() < 6; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), invoked);
+    }
+
+    @Test
+    public void sequentialSenderTest() throws Throwable {
+        System.out.println("+++++ sequentialSenderTest +++++");
+
+        final SequentialSender sender = new SequentialSender(16);
+        assertEquals(16, sender.getCapacity());
+
+        // sent out of order
+        final List<Long> ran = Collections.synchronizedList(new ArrayList<Long>());
+        long first = sender.acquireSequenceId();
+        long second = sender.acquireSequenceId();
+        sender.send(second, new SequenceTask(ran, second));
+        assertTrue(ran.isEmpty());
+        sender.send(first, new SequenceTask(ran, first));
+        assertEquals(Arrays.asList(first, second), ran);
+        assertEquals(2, sender.getCurrentSequenceId());
+        // already run
+        sender.send(first, new SequenceTask(ran, first));
+        assertEquals(2, ran.size());
+
+        // multiple producers, more tasks than the capacity
+        ran.clear();
+        final int count = 10000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < count; j++) {
+                            long sequenceId = sender.acquireSequenceId();
+                            sender.send(sequenceId, new SequenceTask(ran, sequenceId));
+                        }
+                    } catch (InterruptedException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4 * count, ran.size());
+        for (int i = 0; i < ran.size(); i++) {
+            assertEquals(i + 2, (long) ran.get(i));
+        }
+
+        // a capacity ahead: times out, then sent after the ones before run
+        ran.clear();
+        long start = sender.getCurrentSequenceId();
+        long abandoned = sender.acquireSequenceId();
+        for (int i = 0; i < 16; i++) {
+            sender.acquireSequenceId();
+        }
+        long ahead = start + 16;
+        assertFalse(sender.send(ahead, new SequenceTask(ran, ahead), 100));
+        for (long sequenceId = abandoned + 1; sequenceId < ahead; sequenceId++) {
+            sender.send(sequenceId, new SequenceTask(ran, sequenceId));
+        }
+        assertTrue(ran.isEmpty());
+        // the abandoned sequence id is skipped, the ones after it run
+        sender.skip(abandoned);
+        assertEquals(15, ran.size());
+        assertTrue(sender.send(ahead, new SequenceTask(ran, ahead), 100));
+        assertEquals(16, ran.size());
+        assertEquals(ahead, (long) ran.get(15));
+        assertEquals(ahead + 1, sender.getCurrentSequenceId());
+
+        // a task run by the sender cannot wait for a slot it holds
+        final long next = sender.acquireSequenceId();
+        final AtomicBoolean rejected = new AtomicBoolean(false);
+        sender.send(next, new Runnable() {
+
+            @Override
+            public void run() {
+                long far = next + 17;
+                while (sender.acquireSequenceId() < far) {
+                }
+                try {
+                    sender.send(far, new SequenceTask(ran, far));
+                } catch (IllegalStateException ex) {
+                    rejected.set(true);
+                } catch (InterruptedException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+        assertTrue(rejected.get());
+    }
+
+    protected static class SequenceTask implements Runnable {
+
+        protected final List<Long> ran;
+        protected final long sequenceId;
+
+        protected SequenceTask(List<Long> ran, long sequenceId) {
+            this.ran = ran;
+            this.sequenceId = sequenceId;
+        }
+
+        @Override
+        public void run() {
+            ran.add(sequenceId);
+        }
+    }
+
+    @Test
+    public void connectionRoutingTest() throws Throwable {
+        System.out.println("+++++ connectionRoutingTest +++++");
+
+        final int rpcCount = serverRPCRegistry.getRPCCount();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int threadIndex = i;
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            Integer userObject = 1000 + threadIndex * 50 + j;
+                            RPC<Integer> rpc = serverRPCRegistry.getRPC(Integer.class);
+                            rpc.setUserObject(userObject);
+                            if (serverRPCRegistry.get(userObject) != rpc) {
+                                failed.set(true);
+                            }
+                            rpc.close();
+                            if (serverRPCRegistry.get(userObject) != null) {
+                                failed.set(true);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        Logger.getLogger(RPCTest.class.getName()).log(Level.SEVERE, null, ex);
+                        failed.set(true);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(rpcCount, serverRPCRegistry.getRPCCount());
+        assertNull(serverRPCRegistry.get(null));
+
+        // the user object taken by another connection is not removed when the previous one closed
+        RPC<Integer> rpc1 = serverRPCRegistry.getRPC(Integer.class);
+        RPC<Integer> rpc2 = serverRPCRegistry.getRPC(Integer.class);
+        rpc1.setUserObject(5000);
+        rpc2.setUserObject(5000);
+        rpc1.close();
+        assertSame(rpc2, serverRPCRegistry.get(5000));
+        rpc2.close();
+        assertNull(serverRPCRegistry.get(5000));
+        assertEquals(rpcCount, serverRPCRegistry.getRPCCount());
+    }
+
+    @Test
+    public void workerShardTest() throws Throwable {
+        System.out.println("+++++ workerShardTest +++++");
+
+        serverRPCRegistry.stop();
+        assertNull(serverRPCRegistry.workers);
+        serverRPCRegistry.setWorkerCount(3);
+        serverRPCRegistry.start();
+        assertEquals(3, serverRPCRegistry.workers.length);
+
+        List<RPC<Integer>> rpcs = new ArrayList<RPC<Integer>>();
+        for (int i = 0; i < 9; i++) {
+            rpcs.add(serverRPCRegistry.getRPC(Integer.class));
+        }
+        List<RPCRegistry.RPCRegistryWorker> owners = new ArrayList<RPCRegistry.RPCRegistryWorker>();
+        for (RPC<Integer> rpc : rpcs) {
+            int ownerCount = 0;
+            for (RPCRegistry.RPCRegistryWorker worker : serverRPCRegistry.workers) {
+                assertTrue(worker.thread.isAlive());
+                if (worker.connections.contains(rpc)) {
+                    ownerCount++;
+                }
+            }
+            assertEquals(1, ownerCount);
+            owners.add(serverRPCRegistry.getWorker(rpc));
+        }
+        // the connections are spread over all the workers
+        assertEquals(3, new HashSet<RPCRegistry.RPCRegistryWorker>(owners).size());
+
+        // the same shard is kept after restart
+        RPCRegistry.RPCRegistryWorker[] previousWorkers = serverRPCRegistry.workers;
+        serverRPCRegistry.stop();
+        for (RPCRegistry.RPCRegistryWorker worker : previousWorkers) {
+            assertFalse(worker.thread.isAlive());
+        }
+        serverRPCRegistry.start();
+        for (int i = 0; i < rpcs.size(); i++) {
+            int previousIndex = Arrays.asList(previousWorkers).indexOf(owners.get(i));
+            assertTrue(serverRPCRegistry.workers[previousIndex].connections.contains(rpcs.get(i)));
+        }
+
+        for (RPC<Integer> rpc : rpcs) {
+            rpc.close();
+            assertFalse(serverRPCRegistry.getWorker(rpc).connections.contains(rpc));
+        }
+    }
+
+    @Test
+    public void resultStreamTest() throws Throwable {
+        System.out.println("+++++ resultStreamTest +++++");
+
+        serverRPCRegistry.setResultBatchSize(10);
+
+        Iterator<Integer> iterator = serverInterface.range(10000);
+        assertTrue(iterator instanceof RPCResultIterator);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertEquals(count, (int) iterator.next());
+            count++;
+        }
+        assertEquals(10000, count);
+        assertFalse(iterator.hasNext());
+
+        iterator = serverInterface.range(0);
+        assertFalse(iterator.hasNext());
+
+        // the items are produced only as fast as they are consumed, stop the remote side by closing
+        iterator = serverInterface.range(Integer.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) iterator.next());
+        }
+        assertEquals(1, serverRPC.outgoingResults.size());
+        ((RPCResultIterator<Integer>) iterator).close();
+        for (int i = 0; i < 50 && !(serverRPC.outgoingResults.isEmpty() && clientRPC.incomingResults.isEmpty()); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(serverRPC.outgoingResults.isEmpty());
+        assertTrue(clientRPC.incomingResults.isEmpty());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void topicTest() throws Throwable {
+        System.out.println("+++++ topicTest +++++");
+
+        final List<Integer> updates = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger tests = new AtomicInteger();
+        clientRPC.bind(ClientInterface.class, new ClientInterfaceImplementation() {
+
+            @Override
+            public void test() {
+                tests.incrementAndGet();
+            }
+
+            @Override
+            public void update(int value) {
+                updates.add(value);
+            }
+        });
+
+        RPCTopic topic = serverRPCRegistry.getTopic("feed");
+        assertSame(topic, serverRPCRegistry.getTopic("feed"));
+        assertTrue(topic.subscribe((Object) 10));
+        assertFalse(topic.subscribe(serverRPC));
+        assertFalse(topic.subscribe((Object) 11));
+        assertEquals(1, topic.getSubscriberCount());
+
+        // a subscriber with the output blocked does not delay the others
+        final CountDownLatch stalledWritten = new CountDownLatch(1);
+        final CountDownLatch stalledRelease = new CountDownLatch(1);
+        RPC<Integer> stalledRPC = serverRPCRegistry.getRPC(Integer.class);
+        stalledRPC.out = new RemoteOutput() {
+
+            @Override
+            public void write(byte[] b) throws IOException {
+                stalledWritten.countDown();
+                try {
+                    stalledRelease.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+        assertTrue(topic.subscribe(stalledRPC));
+
+        ClientInterface publisher = topic.getPublisher(ClientInterface.class);
+        publisher.update(-1);
+        assertTrue(stalledWritten.await(5, TimeUnit.SECONDS));
+        // the messages of different methods are conflated separately, the last update is not replaced by the test
+        for (int i = 0; i < 1000; i++) {
+            publisher.update(i);
+            publisher.test();
+        }
+        for (int i = 0; i < 50 && (updates.isEmpty() || updates.get(updates.size() - 1) != 999); i++) {
+            Thread.sleep(100);
+        }
+        // the latest value always arrives, in order, the values replaced before sent are skipped
+        assertEquals(999, (int) updates.get(updates.size() - 1));
+        for (int i = 1; i < updates.size(); i++) {
+            assertTrue(updates.get(i - 1) < updates.get(i));
+        }
+        // the stalled subscriber took the first update and holds the last update and the last test
+        for (int i = 0; i < 50 && updates.size() + tests.get() + topic.getConflatedMessages() + 1 + 2 != 2 * 2001; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(tests.get() > 0);
+        assertEquals(2001, topic.getPublishedMessages());
+        assertEquals(2 * 2001, updates.size() + tests.get() + topic.getConflatedMessages() + 1 + 2);
+        stalledRelease.countDown();
+        assertTrue(topic.unsubscribe(stalledRPC));
+        stalledRPC.close();
+
+        try {
+            publisher.notifyClient(new Integer[]{10});
+            fail();
+        } catch (UnsupportedOperationException ex) {
+        }
+
+        assertTrue(topic.unsubscribe(serverRPC));
+        assertEquals(0, topic.getSubscriberCount());
+        int received = updates.size();
+        publisher.update(1000);
+        Thread.sleep(200);
+        assertEquals(received, updates.size());
+
+        // the connection closed is unsubscribed
+        topic.subscribe(serverRPC);
+        serverRPC.close();
+        assertEquals(0, topic.getSubscriberCount());
+    }
+
+    @Test
+    public void idempotentTest() throws Throwable {
+        System.out.println("+++++ idempotentTest +++++");
+
+        final int threadCount = 8;
+        final AtomicInteger invocations = new AtomicInteger(0);
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public String lookup(String key) {
+                invocations.incrementAndGet();
+                // hold the respond until the other calls joined this one
+                long end = System.currentTimeMillis() + 5000;
+                while (clientRPC.getCoalescedCallCount() < threadCount - 1 && System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ex) {
+                        return null;
+                    }
+                }
+                return super.lookup(key);
+            }
+        });
+
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    results.add(serverInterface.lookup("a"));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount, results.size());
+        for (String result : results) {
+            assertEquals("value of a", result);
+        }
+        assertEquals(1, invocations.get());
+        assertEquals(threadCount - 1, clientRPC.getCoalescedCallCount());
+        assertTrue(clientRPC.coalescedCalls.isEmpty());
+
+        // the calls with different arguments or after the respond are sent
+        assertEquals("value of b", serverInterface.lookup("b"));
+        assertEquals("value of a", serverInterface.lookup("a"));
+        assertEquals(3, invocations.get());
+    }
+
+    @Test
+    public void cacheTest() throws Throwable {
+        System.out.println("+++++ cacheTest +++++");
+
+        final AtomicInteger invocations = new AtomicInteger(0);
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public Integer version(String name) {
+                invocations.incrementAndGet();
+                return super.version(name);
+            }
+        });
+        RPCResponseCache cache = clientRPC.getResponseCache(13);
+        assertNotNull(cache);
+        assertNull(clientRPC.getResponseCache(6));
+
+        assertEquals(1, (int) serverInterface.version("a"));
+        assertEquals(1, (int) serverInterface.version("a"));
+        assertEquals(1, invocations.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // the least recently used is removed
+        assertEquals(2, (int) serverInterface.version("bb"));
+        assertEquals(3, (int) serverInterface.version("ccc"));
+        assertEquals(2, cache.size());
+        assertEquals(1, (int) serverInterface.version("a"));
+        assertEquals(4, invocations.get());
+        assertEquals(3, (int) serverInterface.version("ccc"));
+        assertEquals(4, invocations.get());
+
+        // invalidated by the remote side
+        serverRPC.invalidateRemoteCache(13);
+        long end = System.currentTimeMillis() + 5000;
+        while (cache.size() != 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(3, (int) serverInterface.version("ccc"));
+        assertEquals(5, invocations.get());
+
+        // expired
+        RPCResponseCache expiringCache = new RPCResponseCache(50, 10);
+        expiringCache.put("a", 1, expiringCache.getGeneration());
+        assertEquals(1, expiringCache.get("a"));
+        Thread.sleep(100);
+        assertNull(expiringCache.get("a"));
+
+        // the result of a request sent before the invalidation is not cached
+        long generation = expiringCache.getGeneration();
+        expiringCache.invalidate();
+        expiringCache.put("a", 1, generation);
+        assertEquals(0, expiringCache.size());
+    }
+
+    @Test
+    public void priorityTest() throws Throwable {
+        System.out.println("+++++ priorityTest +++++");
+
+        assertEquals(RPCPriority.CONTROL, clientRPC.getPriority(false, 0, Arrays.asList(new Object[]{null})));
+        assertEquals(RPCPriority.BULK, clientRPC.getPriority(false, RPC.BULK_SEQUENTIAL_ID, Arrays.asList(new Object[]{RPCControl.STREAM_DATA.getValue(), 1, new byte[1]})));
+        assertEquals(RPCPriority.CONTROL, clientRPC.getPriority(true, RPC.BULK_SEQUENTIAL_ID, Arrays.asList(new Object[]{null})));
+        assertEquals(RPCPriority.INTERACTIVE, clientRPC.getPriority(false, 6, Arrays.asList(new Object[]{1.0D})));
+        assertEquals(RPCPriority.BULK, clientRPC.getPriority(false, 10, Arrays.asList(new Object[]{new long[1], new HashSet<Integer>()})));
+        assertEquals(RPCPriority.BULK, serverRPC.getPriority(true, 10, Arrays.asList(new Object[]{1L})));
+        assertEquals(RPCPriority.CONTROL, serverRPC.getPriority(true, 10, Arrays.asList(new Object[]{null, RPCError.REQUEST_CANCELLED.getValue()})));
+
+        // a request larger than the fragment size is sent in fragments and put together by the receiver
+        Random random = new Random(0);
+        long[] values = new long[100000];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt();
+            sum += values[i];
+        }
+        long fragmentsWritten = clientRPC.getOutputScheduler().getFragmentsWritten();
+        assertEquals(sum, (long) serverInterface.sum(values, new HashSet<Integer>()));
+        assertTrue(clientRPC.getOutputScheduler().getFragmentsWritten() > fragmentsWritten);
+        assertTrue(serverRPC.fragments.isEmpty());
+
+        // the packets queued while a fragment is written go before the rest of the fragments
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch firstWritten = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RPC<Integer> rpc = clientRPCRegistry.getRPC(Integer.class);
+        rpc.out = new RemoteOutput() {
+
+            @Override
+            public void write(byte[] b) throws IOException {
+                written.add(b);
+                if (written.size() == 1) {
+                    firstWritten.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+        final RPCOutputScheduler scheduler = new RPCOutputScheduler(rpc, 1024);
+        Thread bulkThread = startWrite(scheduler, new byte[5000], RPCPriority.BULK, null);
+        firstWritten.await();
+
+        // the callers wait for their packets written by the thread writing
+        byte[] bulk = new byte[10];
+        byte[] interactive = new byte[10];
+        byte[] control = new byte[10];
+        List<Thread> writeThreads = new ArrayList<Thread>();
+        writeThreads.add(startWrite(scheduler, bulk, RPCPriority.BULK, null));
+        writeThreads.add(startWrite(scheduler, interactive, RPCPriority.INTERACTIVE, null));
+        writeThreads.add(startWrite(scheduler, control, RPCPriority.CONTROL, null));
+        while (scheduler.getQueueSize(RPCPriority.CONTROL) + scheduler.getQueueSize(RPCPriority.INTERACTIVE) + scheduler.getQueueSize(RPCPriority.BULK) < 4) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, scheduler.getQueueSize(RPCPriority.CONTROL));
+        release.countDown();
+        bulkThread.join();
+        for (Thread thread : writeThreads) {
+            thread.join();
+        }
+
+        assertEquals(8, written.size());
+        assertSame(control, written.get(1));
+        assertSame(interactive, written.get(2));
+        assertSame(bulk, written.get(7));
+        assertEquals(5, scheduler.getFragmentsWritten());
+        rpc.close();
+
+        // a caller writes the packets queued before its own only, and the error goes to the owner of the packet
+        final List<Thread> writers = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch controlWritten = new CountDownLatch(1);
+        final CountDownLatch controlRelease = new CountDownLatch(1);
+        rpc = clientRPCRegistry.getRPC(Integer.class);
+        rpc.out = new RemoteOutput() {
+
+            @Override
+            public void write(byte[] b) throws IOException {
+                writers.add(Thread.currentThread());
+                if (writers.size() == 1) {
+                    controlWritten.countDown();
+                    try {
+                        controlRelease.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (b.length == 7) {
+                    throw new IOException("write failed");
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        };
+        RPCOutputScheduler scheduler2 = new RPCOutputScheduler(rpc, 1024);
+        List<IOException> controlErrors = Collections.synchronizedList(new ArrayList<IOException>());
+        List<IOException> bulkErrors = Collections.synchronizedList(new ArrayList<IOException>());
+        List<IOException> failedErrors = Collections.synchronizedList(new ArrayList<IOException>());
+        Thread controlThread = startWrite(scheduler2, new byte[10], RPCPriority.CONTROL, controlErrors);
+        controlWritten.await();
+        Thread bulkThread2 = startWrite(scheduler2, new byte[5000], RPCPriority.BULK, bulkErrors);
+        Thread failedThread = startWrite(scheduler2, new byte[7], RPCPriority.INTERACTIVE, failedErrors);
+        while (scheduler2.getQueueSize(RPCPriority.INTERACTIVE) + scheduler2.getQueueSize(RPCPriority.BULK) < 2) {
+            Thread.sleep(1);
+        }
+        controlRelease.countDown();
+        controlThread.join();
+        bulkThread2.join();
+        failedThread.join();
+
+        assertEquals(7, writers.size());
+        assertEquals(1, Collections.frequency(writers, controlThread));
+        // the failed packet is written by its owner or by the bulk thread before its fragments
+        assertTrue(Collections.frequency(writers, bulkThread2) >= 5);
+        assertTrue(controlErrors.isEmpty());
+        assertTrue(bulkErrors.isEmpty());
+        assertEquals(1, failedErrors.size());
+        assertEquals("write failed", failedErrors.get(0).getMessage());
+        rpc.close();
+    }
+
+    /**
+     * Write the packet in a new thread, the error is added to {@code errors} if it is not null.
+     */
+    protected static Thread startWrite(final RPCOutputScheduler scheduler, final byte[] packetData, final RPCPriority priority, final List<IOException> errors) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    scheduler.write(packetData, priority);
+                } catch (IOException ex) {
+                    if (errors != null) {
+                        errors.add(ex);
+                    } else {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void fragmentTest() throws Throwable {
+        System.out.println("+++++ fragmentTest +++++");
+
+        short fragment = RPCControl.FRAGMENT.getValue();
+
+        // the total length is bounded and the piece has to be in the packet
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 0, serverRPCRegistry.getMaxPacketSize() + 1, new byte[10]})));
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 100, 200, new byte[150]})));
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, Integer.MAX_VALUE, 200, new byte[10]})));
+        assertTrue(serverRPC.fragments.isEmpty());
+
+        // the fragments after the first one lost are ignored
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 100, 300, new byte[100]})));
+        assertTrue(serverRPC.fragments.isEmpty());
+
+        // a duplicate is not counted again
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 0, 300, new byte[100]})));
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 0, 300, new byte[100]})));
+        assertEquals(100, serverRPC.fragments.get(1).received);
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 100, 300, new byte[100]})));
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 1, 100, 300, new byte[100]})));
+        assertEquals(200, serverRPC.fragments.get(1).received);
+
+        // the packet is dropped if a fragment lost
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 2, 0, 300, new byte[100]})));
+        assertTrue(serverRPC.fragmentReceived(Arrays.asList(new Object[]{fragment, 2, 200, 300, new byte[100]})));
+        assertNull(serverRPC.fragments.get(2));
+
+        // the packet with no fragment received for the retry timeout is dropped
+        serverRPC.expireFragments(System.currentTimeMillis());
+        assertNotNull(serverRPC.fragments.get(1));
+        serverRPC.expireFragments(System.currentTimeMillis() + serverRPC.roundTripTimer.getTimeout() + 1);
+        assertTrue(serverRPC.fragments.isEmpty());
+    }
+
     @Test
     public void reuseRequestId_heartBeat_Test() throws Throwable {
         System.out.println("+++++ reuseRequestId_heartBeat_Test +++++");
@@ -429,4 +1784,205 @@ public class RPCTest {
         assertEquals(2, serverRPC._sequentialRespondIdSet[1].respondedId);
         assertEquals(2, serverRPC.sequentialRespondIdSet[2].respondedId);
     }
+
+    @Test
+    public void typedArgumentTest() throws Throwable {
+        System.out.println("+++++ typedArgumentTest +++++");
+
+        assertEquals(17L, (long) serverInterface.sum(new long[]{1L, 2L, Integer.MAX_VALUE + 1L}, new HashSet<Integer>(Arrays.asList(new Integer[]{3, 10}))) - Integer.MAX_VALUE);
+        assertEquals(0L, (long) serverInterface.sum(new long[0], new HashSet<Integer>()));
+    }
+
+    @Test
+    public void codecTest() throws Throwable {
+        System.out.println("+++++ codecTest +++++");
+
+        CodecProvider codecProvider = new LengthPrefixedCodecProvider(1);
+        CodecFactory.registerCodecProvider(codecProvider);
+        try {
+            // version not match
+            TestSuite.suppressErrorOutput();
+            clientRPC.setCodecProvider(new LengthPrefixedCodecProvider(2));
+            Thread.sleep(500);
+            TestSuite.restoreErrorOutput();
+            assertSame(CodecFactory.getDefaultCodecProvider(), clientRPC.packetizer.getCodecProvider());
+
+            clientRPC.setCodecProvider(codecProvider);
+            for (int i = 0; i < 50 && clientRPC.packetizer.getCodecProvider() != codecProvider; i++) {
+                Thread.sleep(100);
+            }
+            assertSame(codecProvider, clientRPC.packetizer.getCodecProvider());
+            assertEquals(1.0F, serverInterface.eval(1.0F), 0.0F);
+            List<Object> list = serverInterface.eval();
+            assertEquals(1, list.get(0));
+            assertEquals("eval", list.get(1));
+
+            clientRPC.setCodecProvider(CodecFactory.getDefaultCodecProvider());
+            assertSame(CodecFactory.getDefaultCodecProvider(), clientRPC.packetizer.getCodecProvider());
+            assertEquals(2.0F, serverInterface.eval(2.0F), 0.0F);
+        } finally {
+            CodecFactory.unregisterCodecProvider(codecProvider);
+        }
+    }
+
+    @Test
+    public void codecOptionTest() throws Throwable {
+        System.out.println("+++++ codecOptionTest +++++");
+
+        final Map<Object, Object> shared = new HashMap<Object, Object>();
+        shared.put("name", "shared");
+        serverRPC.bind(ServerInterface.class, new ServerInterfaceImplementation() {
+
+            @Override
+            public Double ljkihy(Integer userObject, Map<Integer, List<String>> test) {
+                return (double) test.get(0).size();
+            }
+
+            @Override
+            public List<Object> eval() {
+                List<Object> returnList = new ArrayList<Object>();
+                returnList.add(1);
+                returnList.add(Arrays.asList(new Object[]{"eval", 2L}));
+                returnList.add(shared);
+                returnList.add(shared);
+                return returnList;
+            }
+        });
+
+        // the length-prefixed containers are used after the remote side accepted the codec version
+        DefaultCodecProvider clientCodec = new DefaultCodecProvider(true, false, true);
+        DefaultCodecProvider serverCodec = new DefaultCodecProvider(true, false, true);
+        assertEquals(DefaultCodecProvider.EXTENDED_VERSION, clientCodec.getVersion());
+        clientRPC.setCodecProvider(clientCodec);
+        serverRPC.setCodecProvider(serverCodec);
+        for (int i = 0; i < 50 && (clientRPC.packetizer.getCodecProvider() != clientCodec || serverRPC.packetizer.getCodecProvider() != serverCodec); i++) {
+            Thread.sleep(100);
+        }
+        assertSame(clientCodec, clientRPC.packetizer.getCodecProvider());
+        assertSame(serverCodec, serverRPC.packetizer.getCodecProvider());
+
+        Map<Integer, List<String>> map = new HashMap<Integer, List<String>>();
+        map.put(0, Arrays.asList(new String[]{"rpc test", "rpc", "test"}));
+        assertEquals(3.0D, serverInterface.ljkihy(0, map), 0.0D);
+        List<Object> list = serverInterface.eval();
+        // decoded lazily
+        assertTrue(list.getClass().getName().endsWith("LazyList"));
+        assertEquals(1, list.get(0));
+        assertEquals(Arrays.asList(new Object[]{"eval", 2L}), list.get(1));
+        assertEquals(shared, list.get(2));
+        assertEquals(shared, list.get(3));
+
+        // the messages with back-references are decoded eagerly even if the lazy containers is enabled
+        serverCodec = new DefaultCodecProvider(true, true, false);
+        serverRPC.setCodecProvider(serverCodec);
+        for (int i = 0; i < 50 && serverRPC.packetizer.getCodecProvider() != serverCodec; i++) {
+            Thread.sleep(100);
+        }
+        assertSame(serverCodec, serverRPC.packetizer.getCodecProvider());
+        list = serverInterface.eval();
+        assertFalse(list.getClass().getName().endsWith("LazyList"));
+        assertEquals(shared, list.get(2));
+        assertSame(list.get(2), list.get(3));
+
+        // back to the default codec without negotiation
+        clientRPC.setCodecProvider(CodecFactory.getDefaultCodecProvider());
+        assertSame(CodecFactory.getDefaultCodecProvider(), clientRPC.packetizer.getCodecProvider());
+        assertEquals(1.0D, serverInterface.ljkihy(0, Collections.singletonMap(0, Arrays.asList(new String[]{"rpc"}))), 0.0D);
+    }
+
+    protected static class LengthPrefixedCodecProvider implements CodecProvider {
+
+        protected final int version;
+
+        protected LengthPrefixedCodecProvider(int version) {
+            this.version = version;
+        }
+
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public Generator getGenerator() {
+            DefaultGenerator generator = (DefaultGenerator) CodecFactory.getGenerator();
+            generator.setLengthPrefixedContainer(true);
+            return generator;
+        }
+
+        @Override
+        public Parser getParser() {
+            return CodecFactory.getParser();
+        }
+    }
+
+    @Test
+    public void streamTest() throws Throwable {
+        System.out.println("+++++ streamTest +++++");
+
+        // larger than the 16777215 bytes limit of byte[]
+        int length = 20000000;
+        CRC32 crc32 = new CRC32();
+        assertEquals(crc32(length, crc32), (long) serverInterface.upload(new RandomInputStream(length, crc32)));
+        assertTrue(clientRPC.outgoingStreams.isEmpty());
+        assertTrue(serverRPC.incomingStreams.isEmpty());
+
+        // empty stream
+        assertEquals(0L, (long) serverInterface.upload(new RandomInputStream(0, new CRC32())));
+
+        // the handler stop reading in the middle, the sender should be stopped
+        crc32 = new CRC32();
+        assertEquals(crc32(100000, crc32), (long) serverInterface.uploadHead(Channels.newChannel(new RandomInputStream(length, new CRC32())), 100000));
+        Thread.sleep(500);
+        assertTrue(clientRPC.outgoingStreams.isEmpty());
+        assertTrue(serverRPC.incomingStreams.isEmpty());
+
+        assertEquals(1.0F, serverInterface.eval(1.0F), 0.0F);
+    }
+
+    protected static long crc32(int length, CRC32 crc32) throws IOException {
+        InputStream in = new RandomInputStream(length, crc32);
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+        }
+        return crc32.getValue();
+    }
+
+    protected static class RandomInputStream extends InputStream {
+
+        protected final Random random;
+        protected final CRC32 crc32;
+        protected int remaining;
+
+        protected RandomInputStream(int length, CRC32 crc32) {
+            random = new Random(0);
+            this.crc32 = crc32;
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = Math.min(Math.min(len, remaining), 10000);
+            for (int i = off, iEnd = off + read; i < iEnd; i++) {
+                b[i] = (byte) random.nextInt(256);
+            }
+            crc32.update(b, off, read);
+            remaining -= read;
+            return read;
+        }
+    }
 }
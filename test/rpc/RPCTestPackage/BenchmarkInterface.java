@@ -0,0 +1,33 @@
+package rpc.RPCTestPackage;
+
+import rpc.annotation.Blocking;
+import rpc.annotation.Broadcast;
+import rpc.annotation.NoRespond;
+import rpc.annotation.RequestTypeId;
+import rpc.annotation.Sequential;
+
+/**
+ * The methods of {@link rpc.RPCBenchmark}, the {@code sendTime} is the {@link System#nanoTime()} when the call is made.
+ */
+public interface BenchmarkInterface {
+
+    @RequestTypeId(1)
+    @Blocking()
+    Long blocking(long sendTime);
+
+    @RequestTypeId(2)
+    void nonBlocking(long sendTime);
+
+    @RequestTypeId(3)
+    @NoRespond()
+    void noRespond(long sendTime);
+
+    @RequestTypeId(4)
+    @Blocking()
+    @Sequential(1)
+    Long sequential(long sendTime);
+
+    @RequestTypeId(5)
+    @Broadcast()
+    void broadcast(Integer[] broadcastList, long sendTime);
+}
@@ -11,7 +11,10 @@ public interface ClientInterface {
     @Blocking()
     void test() throws IOException;
 
-    @RequestTypeId(16383)
+    @RequestTypeId(2)
+    void update(int value);
+
+    @RequestTypeId(16382)
     @Broadcast()
     void notifyClient(Integer[] broadcastList);
 }
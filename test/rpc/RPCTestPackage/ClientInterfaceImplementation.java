@@ -9,6 +9,10 @@ public class ClientInterfaceImplementation implements ClientInterface {
     public void test() {
     }
 
+    @Override
+    public void update(int value) {
+    }
+
     @Override
     public void notifyClient(Integer[] broadcastList) {
     }
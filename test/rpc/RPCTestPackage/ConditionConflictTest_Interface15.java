@@ -0,0 +1,15 @@
+package rpc.RPCTestPackage;
+
+import java.io.InputStream;
+import rpc.annotation.Broadcast;
+import rpc.annotation.RequestTypeId;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface ConditionConflictTest_Interface15 {
+
+    @RequestTypeId(1)
+    @Broadcast()
+    void test(Integer[] userObjects, InputStream in);
+}
@@ -0,0 +1,15 @@
+package rpc.RPCTestPackage;
+
+import java.nio.channels.ReadableByteChannel;
+import rpc.annotation.RequestTypeId;
+import rpc.annotation.Sequential;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface ConditionConflictTest_Interface16 {
+
+    @RequestTypeId(1)
+    @Sequential(1)
+    void test(ReadableByteChannel in);
+}
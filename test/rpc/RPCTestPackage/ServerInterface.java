@@ -1,9 +1,17 @@
 package rpc.RPCTestPackage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import rpc.RPCPriority;
 import rpc.annotation.Blocking;
+import rpc.annotation.Cached;
+import rpc.annotation.Idempotent;
+import rpc.annotation.Priority;
 import rpc.annotation.RequestTypeId;
 import rpc.annotation.Sequential;
 import rpc.annotation.UserObject;
@@ -35,4 +43,36 @@ public interface ServerInterface {
     @Blocking()
     @RequestTypeId(7)
     List<Object> eval();
-}
\ No newline at end of file
+
+    @Blocking()
+    @RequestTypeId(8)
+    Long upload(InputStream in) throws IOException;
+
+    @Blocking()
+    @RequestTypeId(9)
+    Long uploadHead(ReadableByteChannel in, int length) throws IOException;
+
+    @Blocking()
+    @RequestTypeId(10)
+    @Priority(RPCPriority.BULK)
+    Long sum(long[] values, Set<Integer> set);
+
+    @Blocking()
+    @RequestTypeId(11)
+    Iterator<Integer> range(int count);
+
+    @Blocking()
+    @Idempotent()
+    @RequestTypeId(12)
+    String lookup(String key);
+
+    @Blocking()
+    @Cached(timeToLive = 60000, maxSize = 2)
+    @RequestTypeId(13)
+    Integer version(String name);
+
+    @RequestTypeId(14)
+    @Blocking()
+    @Sequential(2)
+    void testSequential2(int value) throws IOException;
+}
@@ -1,9 +1,15 @@
 package rpc.RPCTestPackage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * @author Chan Wai Shing <cws1989@gmail.com>
@@ -40,4 +46,74 @@ public class ServerInterfaceImplementation implements ServerInterface {
         returnList.add("eval");
         return returnList;
     }
+
+    @Override
+    public Long upload(InputStream in) throws IOException {
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc32.update(buffer, 0, read);
+        }
+        return crc32.getValue();
+    }
+
+    @Override
+    public Long uploadHead(ReadableByteChannel in, int length) throws IOException {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+        }
+        crc32.update(buffer.array(), 0, buffer.position());
+        return crc32.getValue();
+    }
+
+    @Override
+    public Long sum(long[] values, Set<Integer> set) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        for (Integer value : set) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Override
+    public Iterator<Integer> range(final int count) {
+        return new Iterator<Integer>() {
+
+            protected int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Integer next() {
+                return next++;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String lookup(String key) {
+        return "value of " + key;
+    }
+
+    @Override
+    public Integer version(String name) {
+        return name.length();
+    }
+
+    @Override
+    public void testSequential2(int value) throws IOException {
+    }
 }
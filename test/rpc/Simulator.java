@@ -26,6 +26,9 @@ public class Simulator implements RemoteInput, RemoteOutput {
     protected Thread sendThread;
     protected final AtomicInteger sequenceId;
     protected Map<Integer, Error> errorList;
+    // random error, applied to the packets without error specified in errorList
+    protected volatile double errorRate;
+    protected volatile int errorByteLength;
 
     protected Simulator(RPC<Integer> localRPC) {
         this.localRPC = localRPC;
@@ -48,7 +51,12 @@ public class Simulator implements RemoteInput, RemoteOutput {
                         synchronized (sequenceId) {
                             byte[] feedBytes = null;
                             Error error = null;
-                            if ((error = errorList.get(sequenceId.getAndIncrement())) != null) {
+                            int sequence = sequenceId.getAndIncrement();
+                            if ((error = errorList.get(sequence)) == null && errorRate > 0 && random.nextDouble() < errorRate) {
+                                ErrorMode[] errorModes = ErrorMode.values();
+                                error = new Error(sequence, errorModes[random.nextInt(errorModes.length)], errorByteLength);
+                            }
+                            if (error != null) {
                                 switch (error.errorMode) {
                                     case HEAD:
                                         feedBytes = new byte[packet.length + error.byteLength];
@@ -144,6 +152,8 @@ public class Simulator implements RemoteInput, RemoteOutput {
 
         sequenceId = new AtomicInteger(0);
         errorList = Collections.synchronizedMap(new HashMap<Integer, Error>());
+        errorRate = 0;
+        errorByteLength = 0;
     }
 
     public void setRemoteRPC(RemoteInput... remoteRPC) {
@@ -163,6 +173,15 @@ public class Simulator implements RemoteInput, RemoteOutput {
         }
     }
 
+    /**
+     * Apply a random error mode to the received packets with the probability {@code errorRate}.
+     * @param byteLength the number of bytes added or corrupted
+     */
+    public void setErrorRate(double errorRate, int byteLength) {
+        this.errorByteLength = byteLength;
+        this.errorRate = errorRate;
+    }
+
     public synchronized void stop() {
         if (receiveThread != null) {
             receiveThread.interrupt();